@@ -305,6 +305,8 @@ create table gisaid_api_sequence (
   sampling_strategy text,
   seq_original text,
   seq_aligned text,
+  metadata_hash text,
+  seq_original_hash text,
 
   nextclade_clade text,
   nextclade_qc_overall_score float,
@@ -358,6 +360,19 @@ create index on gisaid_api_sequence_mutation_nucleotide (gisaid_epi_isl);
 create index on gisaid_api_sequence_mutation_nucleotide (position);
 create index on gisaid_api_sequence_mutation_nucleotide (position, mutation);
 
+-- The sequences that the NucleotideMutationImporter processed but that have no row in the mutation table: they have
+-- no mutations (only with the rows storage) or could not be analyzed (analyzable = false).
+create table gisaid_api_sequence_mutation_nucleotide_empty
+(
+  gisaid_epi_isl text primary key
+    references gisaid_api_sequence (gisaid_epi_isl) on update cascade on delete cascade,
+  analyzable boolean not null
+);
+
+-- The default storage of the nucleotide mutations (nucleotide_mutation_storage: rows). The packed storage replaces
+-- this table with gisaid_api_sequence_mutation_nucleotide_packed and a view, see
+-- "sql/2026-10-17 packed nucleotide mutations.sql". The migration can also be applied to a new database.
+
 
 -- Released sequence IDs
 create table sequence_identifier (
@@ -415,6 +430,15 @@ create index consensus_sequence_mutation_nucleotide_sample_name_index
 create index consensus_sequence_mutation_nucleotide_position_index
 	on consensus_sequence_mutation_nucleotide (position);
 
+-- The sequences that the NucleotideMutationImporter processed but that have no row in
+-- consensus_sequence_mutation_nucleotide: they have no mutations or could not be analyzed (analyzable = false).
+create table consensus_sequence_mutation_nucleotide_empty
+(
+  sample_name text primary key
+    references consensus_sequence on update cascade on delete cascade,
+  analyzable boolean not null
+);
+
 
 create table consensus_sequence_nextclade_data
 (
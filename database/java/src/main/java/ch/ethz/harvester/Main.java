@@ -8,7 +8,13 @@ import ch.ethz.harvester.gisaid.GisaidApiImporter;
 import ch.ethz.harvester.gisaid.SubmitterInformationFetcher;
 import ch.ethz.harvester.origincountry.OriginCountryEstimator;
 import ch.ethz.harvester.pangolineage.PangolinLineageAliasImporter;
+import ch.ethz.harvester.playground.AminoAcidMutationFinderValidation;
+import ch.ethz.harvester.playground.DataPackageLineParserBenchmark;
+import ch.ethz.harvester.playground.GisaidEpiIslSetBenchmark;
 import ch.ethz.harvester.playground.NexteraQC;
+import ch.ethz.harvester.playground.NucleotideMutationFinderBenchmark;
+import ch.ethz.harvester.playground.ReferenceAlignerValidation;
+import ch.ethz.harvester.playground.XZDecompressionBenchmark;
 import ch.ethz.harvester.pubmed.PubmedImporter;
 import ch.ethz.harvester.rxiv.RxivDownloader;
 import ch.ethz.harvester.spsp.SpspExporter;
@@ -41,6 +47,12 @@ public class Main {
             add(new SubmitterInformationFetcher());
             add(new PangolinLineageAliasImporter());
             add(new ViollierMetadataReceiver());
+            add(new DataPackageLineParserBenchmark());
+            add(new XZDecompressionBenchmark());
+            add(new GisaidEpiIslSetBenchmark());
+            add(new NucleotideMutationFinderBenchmark());
+            add(new ReferenceAlignerValidation());
+            add(new AminoAcidMutationFinderValidation());
         }};
         subProgramMap = new HashMap<>();
         for (SubProgram subProgram : subPrograms) {
@@ -5,7 +5,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 
 public class ExhaustibleLinkedBlockingQueue<E> extends LinkedBlockingQueue<E> implements ExhaustibleBlockingQueue<E> {
-    private boolean exhausted = false;
+    private volatile boolean exhausted = false;
 
 
     public ExhaustibleLinkedBlockingQueue() {
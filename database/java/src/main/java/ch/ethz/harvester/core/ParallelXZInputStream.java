@@ -0,0 +1,179 @@
+package ch.ethz.harvester.core;
+
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+import org.tukaani.xz.XZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Decompresses a .xz file with multiple threads. Files that were compressed in multi-threaded mode (e.g., with
+ * "xz -T0") consist of many independent blocks. These blocks are decoded in parallel and handed out in their original
+ * order, so the stream returns exactly the same bytes as a {@link XZInputStream}.
+ *
+ * Use {@link #open(Path, int)} to get a stream: it falls back to a {@link ReadAheadInputStream} that decompresses in a
+ * dedicated thread if the file consists of a single block or of blocks that are too large to be kept in memory.
+ */
+public class ParallelXZInputStream extends InputStream {
+
+    /**
+     * Blocks are decoded into byte arrays. Files with larger blocks fall back to the read-ahead mode.
+     */
+    private static final long MAX_BLOCK_SIZE = 256L * 1024 * 1024;
+
+
+    /**
+     * @param numberThreads The number of threads that decompress in parallel. With 1, the file is decompressed in a
+     *                      dedicated read-ahead thread.
+     */
+    public static InputStream open(Path file, int numberThreads) throws IOException {
+        if (numberThreads > 1) {
+            int blockCount;
+            long largestBlockSize;
+            try (SeekableXZInputStream probe = new SeekableXZInputStream(new SeekableFileInputStream(file.toFile()))) {
+                blockCount = probe.getBlockCount();
+                largestBlockSize = probe.getLargestBlockSize();
+            }
+            if (blockCount > 1 && largestBlockSize <= MAX_BLOCK_SIZE) {
+                return new ParallelXZInputStream(file, numberThreads, blockCount);
+            }
+            System.out.println("The file " + file + " cannot be decompressed in parallel (" + blockCount
+                    + " block(s), the largest with " + largestBlockSize + " bytes). Using a read-ahead thread.");
+        }
+        return new ReadAheadInputStream(
+                new XZInputStream(new BufferedInputStream(new FileInputStream(file.toFile()))));
+    }
+
+
+    private final Path file;
+    private final int blockCount;
+    private final int numberBlocksAhead;
+    private final ExecutorService executor;
+    private final List<SeekableXZInputStream> openedStreams = Collections.synchronizedList(new ArrayList<>());
+    private final ThreadLocal<SeekableXZInputStream> threadStreams;
+    private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+    private int nextBlockToSubmit = 0;
+    private byte[] current;
+    private int currentPosition;
+
+
+    private ParallelXZInputStream(Path file, int numberThreads, int blockCount) {
+        this.file = file;
+        this.blockCount = blockCount;
+        this.numberBlocksAhead = numberThreads * 2;
+        this.executor = Executors.newFixedThreadPool(numberThreads, runnable -> {
+            Thread thread = new Thread(runnable, "xz-decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.threadStreams = ThreadLocal.withInitial(() -> {
+            try {
+                SeekableXZInputStream stream
+                        = new SeekableXZInputStream(new SeekableFileInputStream(this.file.toFile()));
+                openedStreams.add(stream);
+                return stream;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        submitBlocks();
+    }
+
+
+    private void submitBlocks() {
+        while (nextBlockToSubmit < blockCount && pendingBlocks.size() < numberBlocksAhead) {
+            final int blockNumber = nextBlockToSubmit++;
+            pendingBlocks.add(executor.submit(() -> decodeBlock(blockNumber)));
+        }
+    }
+
+
+    private byte[] decodeBlock(int blockNumber) throws IOException {
+        SeekableXZInputStream stream = threadStreams.get();
+        stream.seekToBlock(blockNumber);
+        byte[] bytes = new byte[(int) stream.getBlockSize(blockNumber)];
+        int read = stream.readNBytes(bytes, 0, bytes.length);
+        if (read != bytes.length) {
+            throw new IOException("Block " + blockNumber + " of " + file + " is truncated.");
+        }
+        return bytes;
+    }
+
+
+    /**
+     * @return False if the end of the stream is reached
+     */
+    private boolean ensureBlock() throws IOException {
+        while (current == null || currentPosition >= current.length) {
+            Future<byte[]> next = pendingBlocks.poll();
+            if (next == null) {
+                return false;
+            }
+            try {
+                current = next.get();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting for the decompression", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
+            currentPosition = 0;
+            submitBlocks();
+        }
+        return true;
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureBlock()) {
+            return -1;
+        }
+        return current[currentPosition++] & 0xff;
+    }
+
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - currentPosition);
+        System.arraycopy(current, currentPosition, b, off, n);
+        currentPosition += n;
+        return n;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        for (Future<byte[]> pendingBlock : pendingBlocks) {
+            pendingBlock.cancel(true);
+        }
+        pendingBlocks.clear();
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ignored) {
+        }
+        synchronized (openedStreams) {
+            for (SeekableXZInputStream stream : openedStreams) {
+                stream.close();
+            }
+        }
+    }
+}
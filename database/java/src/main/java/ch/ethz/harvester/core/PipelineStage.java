@@ -0,0 +1,184 @@
+package ch.ethz.harvester.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+
+/**
+ * A stage of the import pipeline: a fixed number of threads take the elements from a bounded input queue, process
+ * them and put the results into a bounded output queue. When the input queue is exhausted and all threads are
+ * finished, the output queue is marked as exhausted, so that the next stage finishes as well.
+ *
+ * A thread may take several elements at once (up to maxGroupSize) if they are already waiting in the queue. This is
+ * used by the database writer to commit several batches together.
+ *
+ * The stage measures its throughput and how much time its threads spent working, waiting for input (the stage is
+ * faster than its producer) and waiting for space in the output queue (the stage is faster than its consumer). The
+ * numbers are logged every few minutes and at the end.
+ */
+public class PipelineStage<I, O> {
+
+    public interface Worker<I, O> {
+        List<O> process(List<I> inputs) throws Exception;
+    }
+
+    private static final long LOG_INTERVAL_NANOS = 10L * 60 * 1_000_000_000;
+
+    private final String name;
+    private final int numberThreads;
+    private final int maxGroupSize;
+    private final ExhaustibleBlockingQueue<I> input;
+    private final BlockingQueue<O> output;
+    private final ToIntFunction<I> numberSequences;
+    private final AtomicBoolean emergencyBrake;
+    private final Queue<Exception> unhandledExceptions;
+    private final AtomicInteger runningThreads = new AtomicInteger();
+    private final AtomicLong processedElements = new AtomicLong();
+    private final AtomicLong processedSequences = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong inputWaitNanos = new AtomicLong();
+    private final AtomicLong outputWaitNanos = new AtomicLong();
+    private ExecutorService executor;
+    private long startNanos;
+    private long lastLogNanos;
+
+
+    /**
+     * @param output The queue for the results. If it is an {@link ExhaustibleBlockingQueue}, it is marked as
+     *               exhausted when the stage is finished.
+     * @param numberSequences Counts the sequences of an input element for the throughput
+     */
+    public PipelineStage(
+            String name,
+            int numberThreads,
+            int maxGroupSize,
+            ExhaustibleBlockingQueue<I> input,
+            BlockingQueue<O> output,
+            ToIntFunction<I> numberSequences,
+            AtomicBoolean emergencyBrake,
+            Queue<Exception> unhandledExceptions
+    ) {
+        this.name = name;
+        this.numberThreads = numberThreads;
+        this.maxGroupSize = Math.max(1, maxGroupSize);
+        this.input = input;
+        this.output = output;
+        this.numberSequences = numberSequences;
+        this.emergencyBrake = emergencyBrake;
+        this.unhandledExceptions = unhandledExceptions;
+    }
+
+
+    /**
+     * Starts the threads. Every thread gets its own worker from the factory.
+     */
+    public void start(IntFunction<Worker<I, O>> workerFactory) {
+        startNanos = System.nanoTime();
+        lastLogNanos = startNanos;
+        executor = Executors.newFixedThreadPool(numberThreads);
+        runningThreads.set(numberThreads);
+        for (int i = 0; i < numberThreads; i++) {
+            final int finalI = i;
+            executor.submit(() -> {
+                try {
+                    processElements(workerFactory.apply(finalI));
+                } catch (InterruptedException e) {
+                    // When the emergency brake is pulled, it is likely that a worker will be interrupted. This is
+                    // normal and does not constitute an additional error.
+                    if (!emergencyBrake.get()) {
+                        unhandledExceptions.add(e);
+                    }
+                } catch (Exception e) {
+                    unhandledExceptions.add(e);
+                    emergencyBrake.set(true);
+                } finally {
+                    if (runningThreads.decrementAndGet() == 0 && output instanceof ExhaustibleBlockingQueue) {
+                        ((ExhaustibleBlockingQueue<O>) output).setExhausted(true);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+
+    private void processElements(Worker<I, O> worker) throws Exception {
+        while (!emergencyBrake.get() && (!input.isExhausted() || !input.isEmpty())) {
+            long waitStart = System.nanoTime();
+            I first = input.poll(5, TimeUnit.SECONDS);
+            inputWaitNanos.addAndGet(System.nanoTime() - waitStart);
+            if (first == null) {
+                continue;
+            }
+            List<I> group = new ArrayList<>();
+            group.add(first);
+            input.drainTo(group, maxGroupSize - 1);
+
+            long processStart = System.nanoTime();
+            List<O> results = worker.process(group);
+            busyNanos.addAndGet(System.nanoTime() - processStart);
+            processedElements.addAndGet(group.size());
+            processedSequences.addAndGet(group.stream().mapToInt(numberSequences).sum());
+
+            long offerStart = System.nanoTime();
+            for (O result : results) {
+                while (!emergencyBrake.get() && !output.offer(result, 5, TimeUnit.SECONDS)) {
+                    // Wait for the next stage
+                }
+            }
+            outputWaitNanos.addAndGet(System.nanoTime() - offerStart);
+            logThroughputPeriodically();
+        }
+    }
+
+
+    /**
+     * Waits until the threads are finished.
+     *
+     * @return False if the timeout elapsed before
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+
+    /**
+     * Interrupts the threads.
+     */
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+
+    private synchronized void logThroughputPeriodically() {
+        long now = System.nanoTime();
+        if (now - lastLogNanos > LOG_INTERVAL_NANOS) {
+            lastLogNanos = now;
+            logThroughput();
+        }
+    }
+
+
+    /**
+     * Logs the throughput of the stage since the start and how its threads spent their time.
+     */
+    public void logThroughput() {
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        double threadNanos = Math.max(1, numberThreads * (System.nanoTime() - startNanos));
+        System.out.println(String.format("[stage %s] %d threads, %d batches, %d sequences in %.1f min: "
+                        + "%.1f sequences/s; working %.0f%%, waiting for input %.0f%%, waiting for output %.0f%%",
+                name, numberThreads, processedElements.get(), processedSequences.get(), elapsedSeconds / 60,
+                processedSequences.get() / Math.max(elapsedSeconds, 1e-9), 100 * busyNanos.get() / threadNanos,
+                100 * inputWaitNanos.get() / threadNanos, 100 * outputWaitNanos.get() / threadNanos));
+    }
+}
@@ -0,0 +1,118 @@
+package ch.ethz.harvester.core;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+
+/**
+ * Writes rows into a table with "COPY ... FROM STDIN" (text format). The rows are buffered and sent in chunks. The
+ * COPY runs in the current transaction of the connection.
+ *
+ * Usage:
+ *   try (PostgresCopyWriter writer = new PostgresCopyWriter(conn, "my_table", "col1", "col2")) {
+ *       writer.add("a").add(1).endRow();
+ *       writer.finish();
+ *   }
+ */
+public class PostgresCopyWriter implements AutoCloseable {
+
+    private static final int FLUSH_THRESHOLD = 64 * 1024;
+
+    private final CopyIn copyIn;
+    private final int numberColumns;
+    private final StringBuilder buffer = new StringBuilder(FLUSH_THRESHOLD + 1024);
+    private int fieldsInRow = 0;
+    private boolean finished = false;
+
+
+    public PostgresCopyWriter(Connection conn, String table, String... columns) throws SQLException {
+        String sql = "copy " + table + " (" + String.join(", ", columns) + ") from stdin";
+        this.copyIn = conn.unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
+        this.numberColumns = columns.length;
+    }
+
+
+    /**
+     * Appends a field to the current row. Null is written as NULL, all other values with their toString() value.
+     * Numbers, strings and java.time/java.sql dates are supported.
+     */
+    public PostgresCopyWriter add(Object value) {
+        if (fieldsInRow > 0) {
+            buffer.append('\t');
+        }
+        if (value == null) {
+            buffer.append("\\N");
+        } else if (value instanceof Boolean) {
+            buffer.append((Boolean) value ? 't' : 'f');
+        } else {
+            appendEscaped(value.toString());
+        }
+        fieldsInRow++;
+        return this;
+    }
+
+
+    public void endRow() throws SQLException {
+        if (fieldsInRow != numberColumns) {
+            throw new IllegalStateException("The row has " + fieldsInRow + " fields but " + numberColumns
+                    + " columns are expected.");
+        }
+        buffer.append('\n');
+        fieldsInRow = 0;
+        if (buffer.length() >= FLUSH_THRESHOLD) {
+            flush();
+        }
+    }
+
+
+    /**
+     * Completes the COPY.
+     *
+     * @return The number of written rows
+     */
+    public long finish() throws SQLException {
+        flush();
+        finished = true;
+        return copyIn.endCopy();
+    }
+
+
+    /**
+     * Cancels the COPY if {@link #finish()} was not called (e.g., because of an exception)
+     */
+    @Override
+    public void close() throws SQLException {
+        if (!finished && copyIn.isActive()) {
+            finished = true;
+            copyIn.cancelCopy();
+        }
+    }
+
+
+    private void flush() throws SQLException {
+        if (buffer.length() == 0) {
+            return;
+        }
+        byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        copyIn.writeToCopy(bytes, 0, bytes.length);
+        buffer.setLength(0);
+    }
+
+
+    private void appendEscaped(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\' -> buffer.append("\\\\");
+                case '\t' -> buffer.append("\\t");
+                case '\n' -> buffer.append("\\n");
+                case '\r' -> buffer.append("\\r");
+                default -> buffer.append(c);
+            }
+        }
+    }
+}
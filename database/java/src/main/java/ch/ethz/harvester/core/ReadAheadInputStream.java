@@ -0,0 +1,151 @@
+package ch.ethz.harvester.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Reads the source stream in a dedicated thread and buffers a few chunks ahead of the consumer. This is useful if
+ * reading the source is expensive (e.g., decompression) and the consumer has its own work to do: both run on separate
+ * cores.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    private static class Chunk {
+        private final byte[] bytes;
+        private final int length;
+        private final IOException exception;
+
+        private Chunk(byte[] bytes, int length, IOException exception) {
+            this.bytes = bytes;
+            this.length = length;
+            this.exception = exception;
+        }
+    }
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final Chunk END_OF_STREAM = new Chunk(null, -1, null);
+    private static final long CLOSE_TIMEOUT_MILLIS = 10_000;
+
+    private final InputStream source;
+    private final BlockingQueue<Chunk> chunks;
+    private final Thread readerThread;
+    private Chunk current;
+    private int currentPosition;
+    private boolean ended = false;
+
+
+    /**
+     * @param numberChunksAhead The maximal number of chunks (of 1 MB each) that are read ahead
+     */
+    public ReadAheadInputStream(InputStream source, int numberChunksAhead) {
+        this.source = source;
+        this.chunks = new ArrayBlockingQueue<>(numberChunksAhead);
+        this.readerThread = new Thread(this::readSource, "read-ahead");
+        this.readerThread.setDaemon(true);
+        this.readerThread.start();
+    }
+
+
+    public ReadAheadInputStream(InputStream source) {
+        this(source, 16);
+    }
+
+
+    private void readSource() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                byte[] bytes = new byte[CHUNK_SIZE];
+                int length = source.readNBytes(bytes, 0, CHUNK_SIZE);
+                if (length > 0) {
+                    chunks.put(new Chunk(bytes, length, null));
+                }
+                if (length < CHUNK_SIZE) {
+                    chunks.put(END_OF_STREAM);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            try {
+                chunks.put(new Chunk(null, -1, e));
+            } catch (InterruptedException ignored) {
+            }
+        } catch (InterruptedException ignored) {
+            // The stream was closed.
+        } catch (RuntimeException e) {
+            // The source may fail if it was closed while it was read (see close()). The consumer gets the error
+            // unless it has closed the stream.
+            chunks.offer(new Chunk(null, -1, new IOException(e)));
+        }
+    }
+
+
+    /**
+     * @return False if the end of the stream is reached
+     */
+    private boolean ensureChunk() throws IOException {
+        if (ended) {
+            return false;
+        }
+        if (current != null && currentPosition < current.length) {
+            return true;
+        }
+        try {
+            current = chunks.take();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for data", e);
+        }
+        currentPosition = 0;
+        if (current.exception != null) {
+            ended = true;
+            throw current.exception;
+        }
+        if (current == END_OF_STREAM) {
+            ended = true;
+            return false;
+        }
+        return true;
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureChunk()) {
+            return -1;
+        }
+        return current.bytes[currentPosition++] & 0xff;
+    }
+
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - currentPosition);
+        System.arraycopy(current.bytes, currentPosition, b, off, n);
+        currentPosition += n;
+        return n;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        ended = true;
+        // The source is not thread-safe, so it is only closed when the reader thread has stopped. The thread notices
+        // the interrupt after it has read the current chunk. If the source blocks for longer (e.g., a stalled
+        // download), closing the source is the only way to stop it.
+        readerThread.interrupt();
+        try {
+            readerThread.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        source.close();
+    }
+}
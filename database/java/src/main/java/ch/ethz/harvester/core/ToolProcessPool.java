@@ -0,0 +1,249 @@
+package ch.ethz.harvester.core;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Runs an external command-line tool (e.g., mafft or Nextclade) with a limited number of concurrent processes. The
+ * pool is shared by all workers so that the limit applies to the whole program.
+ *
+ * The input is written into the stdin of the process by a separate thread while the stdout is passed to the caller
+ * as it is produced. Neither the input nor the output is stored in a file. The stderr is drained and its last lines
+ * are included in the error message if the process fails.
+ *
+ * mafft and the Nextclade CLI have no mode to process several requests in one process, so every call starts a new
+ * process.
+ */
+public class ToolProcessPool {
+
+    public interface InputWriter {
+        void write(Writer stdin) throws IOException;
+    }
+
+    public interface OutputReader {
+        void read(BufferedReader stdout) throws IOException;
+    }
+
+    private static final int STDERR_LINES_KEPT = 20;
+
+    private static final ExecutorService ioThreads = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "tool-process-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tool-process-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+    private final Semaphore permits;
+    private final Duration timeout;
+
+
+    /**
+     * @param name The name of the tool for logs and error messages
+     * @param maxProcesses The maximal number of processes that run at the same time
+     * @param timeoutMinutes A process is killed if it runs for longer (unless a different timeout is passed to run())
+     */
+    public ToolProcessPool(String name, int maxProcesses, long timeoutMinutes) {
+        this.name = name;
+        this.permits = new Semaphore(maxProcesses, true);
+        this.timeout = Duration.ofMinutes(timeoutMinutes);
+    }
+
+
+    /**
+     * A permit to run one process. It is returned to the pool when it is closed.
+     */
+    public class Permit implements AutoCloseable {
+        private boolean released = false;
+
+        private Permit() {
+        }
+
+        /**
+         * Runs the command with this permit and waits until it has finished
+         *
+         * @throws RuntimeException If the process timed out or exited with a non-zero exit code
+         */
+        public void run(List<String> command, InputWriter input, OutputReader output, Duration timeout)
+                throws IOException, InterruptedException {
+            runProcess(command, input, output, timeout);
+        }
+
+        public void run(List<String> command, InputWriter input, OutputReader output)
+                throws IOException, InterruptedException {
+            runProcess(command, input, output, ToolProcessPool.this.timeout);
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Runs the command and waits until it has finished. The call blocks while the maximal number of processes are
+     * running.
+     *
+     * @throws RuntimeException If the process timed out or exited with a non-zero exit code
+     */
+    public void run(List<String> command, InputWriter input, OutputReader output)
+            throws IOException, InterruptedException {
+        run(command, input, output, timeout);
+    }
+
+
+    /**
+     * Like {@link #run(List, InputWriter, OutputReader)} but with a different timeout
+     */
+    public void run(List<String> command, InputWriter input, OutputReader output, Duration timeout)
+            throws IOException, InterruptedException {
+        try (Permit permit = acquire()) {
+            permit.run(command, input, output, timeout);
+        }
+    }
+
+
+    /**
+     * Waits until a process may be started. This is for callers that need to prepare the command (e.g., decide on the
+     * number of threads) only when the process can actually run.
+     */
+    public Permit acquire() throws InterruptedException {
+        permits.acquire();
+        return new Permit();
+    }
+
+
+    /**
+     * Runs a command that prints the version of a tool (e.g., "mafft --version") and returns its output (stdout and
+     * stderr).
+     */
+    public static String readVersion(String... command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+        if (process.waitFor() != 0) {
+            throw new RuntimeException(String.join(" ", command) + " exited with code " + process.exitValue());
+        }
+        return output;
+    }
+
+
+    private void runProcess(List<String> command, InputWriter input, OutputReader output, Duration timeout)
+            throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).start();
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> watchdogTask = watchdog.schedule(() -> {
+            timedOut.set(true);
+            process.destroyForcibly();
+        }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+
+        Future<?> stdinWriter = ioThreads.submit(() -> {
+            try (Writer stdin = new BufferedWriter(
+                    new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024)) {
+                input.write(stdin);
+            }
+            return null;
+        });
+        Deque<String> stderrTail = new ArrayDeque<>();
+        Future<?> stderrReader = ioThreads.submit(() -> {
+            try (BufferedReader stderr = new BufferedReader(
+                    new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = stderr.readLine()) != null) {
+                    synchronized (stderrTail) {
+                        stderrTail.addLast(line);
+                        if (stderrTail.size() > STDERR_LINES_KEPT) {
+                            stderrTail.removeFirst();
+                        }
+                    }
+                }
+            }
+            return null;
+        });
+
+        try (BufferedReader stdout = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8), 64 * 1024)) {
+            output.read(stdout);
+            // Consume the rest so that the process does not block on a full pipe
+            while (stdout.readLine() != null) {
+                // Ignore
+            }
+        } catch (Throwable e) {
+            // Whatever went wrong, the process must not be left running. Its exit status is only added to the
+            // original error.
+            process.destroyForcibly();
+            try {
+                awaitExit(process, watchdogTask, stderrReader, timedOut, stderrTail, timeout);
+            } catch (Throwable secondary) {
+                e.addSuppressed(secondary);
+            }
+            throw e;
+        }
+        awaitExit(process, watchdogTask, stderrReader, timedOut, stderrTail, timeout);
+        try {
+            stdinWriter.get();
+            stderrReader.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Communication with " + name + " failed", e.getCause());
+        }
+    }
+
+
+    /**
+     * Waits until the process has exited and checks its exit status. The process is killed if the wait is interrupted.
+     *
+     * @throws RuntimeException If the process timed out or exited with a non-zero exit code
+     */
+    private void awaitExit(
+            Process process,
+            ScheduledFuture<?> watchdogTask,
+            Future<?> stderrReader,
+            AtomicBoolean timedOut,
+            Deque<String> stderrTail,
+            Duration timeout
+    ) throws InterruptedException {
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            throw e;
+        } finally {
+            watchdogTask.cancel(false);
+        }
+        awaitQuietly(stderrReader);
+        if (timedOut.get()) {
+            throw new RuntimeException(name + " timed out (after " + timeout.toSeconds() + " seconds)");
+        }
+        if (exitCode != 0) {
+            String stderr;
+            synchronized (stderrTail) {
+                stderr = String.join("\n", stderrTail);
+            }
+            throw new RuntimeException(name + " exited with code " + exitCode + ":\n" + stderr);
+        }
+    }
+
+
+    private static void awaitQuietly(Future<?> future) throws InterruptedException {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException ignored) {
+            // The stderr is only used for error messages.
+        }
+    }
+}
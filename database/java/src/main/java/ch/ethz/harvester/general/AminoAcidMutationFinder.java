@@ -0,0 +1,305 @@
+package ch.ethz.harvester.general;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Finds the amino acid substitutions and deletions of an aligned sequence (same length as the reference, e.g., the
+ * output of "mafft --keeplength") without Nextclade. The mutations have the format of the aaSubstitutions and
+ * aaDeletions of Nextclade, e.g., "S:N501Y" and "S:H69-", and are returned in the same order: first the substitutions,
+ * then the deletions, both by gene (in the order of the gene map) and codon.
+ *
+ * The rules follow Nextclade:
+ * - Codons in the leading and trailing deletions (outside the aligned range) and codons with a base other than A, C, G
+ *   and T are unknown (X) and not reported.
+ * - A codon of three deletions is a deletion.
+ * - A deletion whose length is a multiple of three but that does not start at a codon boundary is moved to the previous
+ *   or next codon boundary, whichever gives the better BLOSUM62 score for the codons around it (the previous one on a
+ *   tie). Nextclade gets the same result by aligning the translated gene with the reference peptide; e.g., the
+ *   deletion 21987-21995 of BA.1 becomes S:G142D, S:V143-, S:Y144-, S:Y145- and not S:G142-, S:V143-, S:Y144-,
+ *   S:Y145D.
+ * - Codons with other deletions (frame shifts) are unknown.
+ *
+ * The gene map is in the resource genemap.tsv. A finder can be shared by multiple threads.
+ */
+public class AminoAcidMutationFinder {
+
+    /**
+     * Part of the cache key of the analysis cache: must be increased when the results change.
+     */
+    public static final String VERSION = "1";
+
+    public static class Gene {
+        private final String name;
+        private final int start;
+        private final int end;
+
+        /**
+         * @param start The 1-based position of the first base
+         * @param end The 1-based position of the last base (inclusive)
+         */
+        public Gene(String name, int start, int end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getEnd() {
+            return end;
+        }
+    }
+
+    /**
+     * The standard genetic code. The index of a codon is 16 * first + 4 * second + third with T = 0, C = 1, A = 2 and
+     * G = 3.
+     */
+    private static final String CODON_TABLE = "FFLLSSSSYY**CC*WLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG";
+    private static final int[] BASE_INDEX = new int[128];
+    private static final String BLOSUM62_AMINO_ACIDS = "ARNDCQEGHILKMFPSTWYV";
+    private static final int[][] BLOSUM62 = {
+            {4, -1, -2, -2, 0, -1, -1, 0, -2, -1, -1, -1, -1, -2, -1, 1, 0, -3, -2, 0},
+            {-1, 5, 0, -2, -3, 1, 0, -2, 0, -3, -2, 2, -1, -3, -2, -1, -1, -3, -2, -3},
+            {-2, 0, 6, 1, -3, 0, 0, 0, 1, -3, -3, 0, -2, -3, -2, 1, 0, -4, -2, -3},
+            {-2, -2, 1, 6, -3, 0, 2, -1, -1, -3, -4, -1, -3, -3, -1, 0, -1, -4, -3, -3},
+            {0, -3, -3, -3, 9, -3, -4, -3, -3, -1, -1, -3, -1, -2, -3, -1, -1, -2, -2, -1},
+            {-1, 1, 0, 0, -3, 5, 2, -2, 0, -3, -2, 1, 0, -3, -1, 0, -1, -2, -1, -2},
+            {-1, 0, 0, 2, -4, 2, 5, -2, 0, -3, -3, 1, -2, -3, -1, 0, -1, -3, -2, -2},
+            {0, -2, 0, -1, -3, -2, -2, 6, -2, -4, -4, -2, -3, -3, -2, 0, -2, -2, -3, -3},
+            {-2, 0, 1, -1, -3, 0, 0, -2, 8, -3, -3, -1, -2, -1, -2, -1, -2, -2, 2, -3},
+            {-1, -3, -3, -3, -1, -3, -3, -4, -3, 4, 2, -3, 1, 0, -3, -2, -1, -3, -1, 3},
+            {-1, -2, -3, -4, -1, -2, -3, -4, -3, 2, 4, -2, 2, 0, -3, -2, -1, -2, -1, 1},
+            {-1, 2, 0, -1, -3, 1, 1, -2, -1, -3, -2, 5, -1, -3, -1, 0, -1, -3, -2, -2},
+            {-1, -1, -2, -3, -1, 0, -2, -3, -2, 1, 2, -1, 5, 0, -2, -1, -1, -1, -1, 1},
+            {-2, -3, -3, -3, -2, -3, -3, -3, -1, 0, 0, -3, 0, 6, -4, -2, -2, 1, 3, -1},
+            {-1, -2, -2, -1, -3, -1, -1, -2, -2, -3, -3, -1, -2, -4, 7, -1, -1, -4, -3, -2},
+            {1, -1, 1, 0, -1, 0, 0, 0, -1, -2, -2, 0, -1, -2, -1, 4, 1, -3, -2, -2},
+            {0, -1, 0, -1, -1, -1, -1, -2, -2, -1, -1, -1, -1, -2, -1, 1, 5, -2, -2, 0},
+            {-3, -3, -4, -4, -2, -2, -3, -2, -2, -3, -2, -3, -1, 1, -4, -3, -2, 11, 2, -3},
+            {-2, -2, -2, -3, -2, -1, -2, -3, 2, -1, -1, -2, -1, 3, -3, -2, -2, 2, 7, -1},
+            {0, -3, -3, -3, -1, -2, -2, -3, -3, 3, 1, -2, 1, -1, -2, -2, 0, -3, -1, 4}
+    };
+
+    static {
+        Arrays.fill(BASE_INDEX, -1);
+        BASE_INDEX['T'] = 0;
+        BASE_INDEX['C'] = 1;
+        BASE_INDEX['A'] = 2;
+        BASE_INDEX['G'] = 3;
+    }
+
+    private final char[] reference;
+    private final List<Gene> genes;
+    private final List<char[]> referencePeptides = new ArrayList<>();
+
+
+    public AminoAcidMutationFinder(String reference, List<Gene> genes) {
+        this.reference = reference.toUpperCase().toCharArray();
+        this.genes = genes;
+        for (Gene gene : genes) {
+            if ((gene.end - gene.start + 1) % 3 != 0 || gene.end > this.reference.length) {
+                throw new IllegalArgumentException("The gene " + gene.name + " does not fit the reference.");
+            }
+            char[] nucleotides = Arrays.copyOfRange(this.reference, gene.start - 1, gene.end);
+            char[] peptide = new char[nucleotides.length / 3];
+            for (int i = 0; i < peptide.length; i++) {
+                peptide[i] = translate(nucleotides, 3 * i);
+            }
+            referencePeptides.add(peptide);
+        }
+    }
+
+
+    /**
+     * Loads the genes of the SARS-CoV-2 reference from the resource genemap.tsv.
+     */
+    public static List<Gene> loadGeneMap() {
+        List<Gene> genes = new ArrayList<>();
+        try (InputStream in = AminoAcidMutationFinder.class.getResourceAsStream("genemap.tsv")) {
+            if (in == null) {
+                throw new RuntimeException("The resource genemap.tsv is missing.");
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#") || line.startsWith("gene\t")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                genes.add(new Gene(fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return genes;
+    }
+
+
+    public List<Gene> getGenes() {
+        return genes;
+    }
+
+
+    /**
+     * @param alignedSeq The aligned sequence, it must have the same length as the reference
+     * @return The amino acid substitutions and deletions, e.g., S:N501Y and S:H69-
+     */
+    public List<String> findMutations(String alignedSeq) {
+        if (alignedSeq.length() != reference.length) {
+            throw new RuntimeException("The sequence does not have the same length as the reference. " +
+                    "Please align the sequence first.");
+        }
+        char[] seq = alignedSeq.toUpperCase().toCharArray();
+        int firstBase = 0;
+        while (firstBase < seq.length && seq[firstBase] == '-') {
+            firstBase++;
+        }
+        int lastBase = seq.length - 1;
+        while (lastBase >= firstBase && seq[lastBase] == '-') {
+            lastBase--;
+        }
+
+        List<String> substitutions = new ArrayList<>();
+        List<String> deletions = new ArrayList<>();
+        for (int g = 0; g < genes.size(); g++) {
+            Gene gene = genes.get(g);
+            char[] referencePeptide = referencePeptides.get(g);
+            char[] query = Arrays.copyOfRange(seq, gene.start - 1, gene.end);
+            for (int i = 0; i < query.length; i++) {
+                int pos = gene.start - 1 + i;
+                if (pos < firstBase || pos > lastBase) {
+                    query[i] = 'N';
+                }
+            }
+            moveDeletionsToCodonBoundaries(query, referencePeptide);
+            for (int codon = 0; codon < referencePeptide.length; codon++) {
+                char aa = translate(query, 3 * codon);
+                if (aa == 'X' || aa == referencePeptide[codon]) {
+                    continue;
+                }
+                String mutation = gene.name + ":" + referencePeptide[codon] + (codon + 1) + aa;
+                if (aa == '-') {
+                    deletions.add(mutation);
+                } else {
+                    substitutions.add(mutation);
+                }
+            }
+        }
+        substitutions.addAll(deletions);
+        return substitutions;
+    }
+
+
+    /**
+     * Moves every deletion whose length is a multiple of three to a codon boundary (see the class documentation).
+     */
+    private static void moveDeletionsToCodonBoundaries(char[] query, char[] referencePeptide) {
+        int i = 0;
+        while (i < query.length) {
+            if (query[i] != '-') {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < query.length && query[i] == '-') {
+                i++;
+            }
+            int end = i;
+            int length = end - start;
+            int offset = start % 3;
+            if (length % 3 != 0 || offset == 0) {
+                continue;
+            }
+
+            // Option 1: move the bases before the deletion (in the same codon) behind it
+            char[] left = query.clone();
+            System.arraycopy(query, start - offset, left, start - offset + length, offset);
+            Arrays.fill(left, start - offset, start - offset + length, '-');
+            int leftScore = score(left, referencePeptide, start - offset, end);
+
+            // Option 2: move the bases after the deletion (to the end of the codon) in front of it
+            int shift = 3 - offset;
+            char[] right = null;
+            int rightScore = Integer.MIN_VALUE;
+            if (end + shift <= query.length && !containsDeletion(query, end, end + shift)) {
+                right = query.clone();
+                System.arraycopy(query, end, right, start, shift);
+                Arrays.fill(right, start + shift, end + shift, '-');
+                rightScore = score(right, referencePeptide, start, end + shift);
+            }
+
+            char[] chosen = rightScore > leftScore ? right : left;
+            System.arraycopy(chosen, 0, query, 0, query.length);
+            i = rightScore > leftScore ? end + shift : end;
+        }
+    }
+
+
+    /**
+     * @return The BLOSUM62 score of the known amino acids of the codons between the nucleotides from (inclusive) and to
+     * (exclusive) against the reference
+     */
+    private static int score(char[] query, char[] referencePeptide, int from, int to) {
+        int score = 0;
+        for (int codon = from / 3; codon < (to + 2) / 3; codon++) {
+            char aa = translate(query, 3 * codon);
+            if (aa != 'X' && aa != '-') {
+                score += blosum62(aa, referencePeptide[codon]);
+            }
+        }
+        return score;
+    }
+
+
+    private static int blosum62(char a, char b) {
+        if (a == '*' || b == '*') {
+            return a == b ? 1 : -4;
+        }
+        return BLOSUM62[BLOSUM62_AMINO_ACIDS.indexOf(a)][BLOSUM62_AMINO_ACIDS.indexOf(b)];
+    }
+
+
+    private static boolean containsDeletion(char[] query, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (query[i] == '-') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @return The amino acid of the codon at nucleotides[offset..offset + 2], '-' for a deleted codon and 'X' if it is
+     * unknown
+     */
+    private static char translate(char[] nucleotides, int offset) {
+        char a = nucleotides[offset];
+        char b = nucleotides[offset + 1];
+        char c = nucleotides[offset + 2];
+        if (a == '-' && b == '-' && c == '-') {
+            return '-';
+        }
+        int i = a < 128 ? BASE_INDEX[a] : -1;
+        int j = b < 128 ? BASE_INDEX[b] : -1;
+        int k = c < 128 ? BASE_INDEX[c] : -1;
+        if (i < 0 || j < 0 || k < 0) {
+            return 'X';
+        }
+        return CODON_TABLE.charAt(16 * i + 4 * j + k);
+    }
+}
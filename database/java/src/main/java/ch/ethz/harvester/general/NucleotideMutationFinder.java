@@ -1,10 +1,15 @@
 package ch.ethz.harvester.general;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -60,59 +65,291 @@ public class NucleotideMutationFinder {
         }
     }
 
-    private final char[] reference;
+    /**
+     * A reusable output buffer for {@link #findMutations(byte[], int, int, MutationBuffer)}. The mutations are stored
+     * in a primitive array of positions and an array of bases; the arrays only grow.
+     */
+    public static class MutationBuffer {
+        private int[] positions = new int[256];
+        private byte[] bases = new byte[256];
+        private int size = 0;
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @return The 1-indexed position of the i-th mutation
+         */
+        public int getPosition(int i) {
+            return positions[i];
+        }
+
+        /**
+         * @return The base of the i-th mutation: A, C, G, T or -
+         */
+        public byte getBase(int i) {
+            return bases[i];
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        public List<Mutation> toMutations() {
+            List<Mutation> mutations = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                mutations.add(new Mutation(positions[i], (char) bases[i]));
+            }
+            return mutations;
+        }
+
+        private void add(int position, byte base) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, 2 * size);
+                bases = Arrays.copyOf(bases, 2 * size);
+            }
+            positions[size] = position;
+            bases[size] = base;
+            size++;
+        }
+    }
+
+    /**
+     * Maps a byte of the sequence to the upper-case base if it is A, C, G, T or - (in upper or lower case) and to 0
+     * otherwise. Only these bases can be mutations.
+     */
+    private static final byte[] CALLABLE_BASE = new byte[256];
+
+    static {
+        for (char base : new char[]{'A', 'C', 'G', 'T'}) {
+            CALLABLE_BASE[base] = (byte) base;
+            CALLABLE_BASE[Character.toLowerCase(base)] = (byte) base;
+        }
+        CALLABLE_BASE['-'] = '-';
+    }
+
+    private static final ThreadLocal<byte[]> SEQUENCE_BUFFER = new ThreadLocal<>();
+    private static final ThreadLocal<MutationBuffer> MUTATION_BUFFER = ThreadLocal.withInitial(MutationBuffer::new);
 
-    private  final Set<Integer> maskSites;
+    private static final VarHandle LONG_VIEW
+            = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long LOWER_CASE_BITS = 0x2020202020202020L;
+
+    private final byte[] reference;
+    private final byte[] referenceLowerCase;
+
+    /**
+     * Bit i is set if position i (1-indexed) is masked
+     */
+    private final long[] maskBits;
 
     /**
      * @param reference The reference genome
      * @param maskSites The positions of the sites that should be masked. The positions are 1-indexed.
      */
     public NucleotideMutationFinder(String reference, Set<Integer> maskSites) {
-        this.reference = reference.toUpperCase().toCharArray();
-        this.maskSites = maskSites;
+        this.reference = reference.toUpperCase().getBytes(StandardCharsets.US_ASCII);
+        this.referenceLowerCase = new byte[this.reference.length];
+        for (int i = 0; i < this.reference.length; i++) {
+            referenceLowerCase[i] = (byte) (this.reference[i] | 0x20);
+        }
+        this.maskBits = new long[(this.reference.length + 1 + 63) / 64];
+        for (int site : maskSites) {
+            if (site >= 1 && site <= this.reference.length) {
+                maskBits[site >>> 6] |= 1L << site;
+            }
+        }
     }
 
+    /**
+     * Finds the mutations of an aligned sequence. This is an adapter for {@link #findMutations(byte[], int, int,
+     * MutationBuffer)} that uses buffers of the calling thread; only the returned list is allocated.
+     */
     public List<Mutation> getMutations(String sequence) {
-        return getMutations(sequence.toUpperCase().toCharArray());
+        int length = sequence.length();
+        byte[] bytes = SEQUENCE_BUFFER.get();
+        if (bytes == null || bytes.length < length) {
+            bytes = new byte[Math.max(length, reference.length)];
+            SEQUENCE_BUFFER.set(bytes);
+        }
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) sequence.charAt(i);
+        }
+        MutationBuffer buffer = MUTATION_BUFFER.get();
+        buffer.clear();
+        findMutations(bytes, 0, length, buffer);
+        return buffer.toMutations();
     }
 
-    private List<Mutation> getMutations(char[] sequence) {
-        if (sequence.length != reference.length) {
+    /**
+     * Finds the mutations of an aligned sequence and appends them to the buffer. Nothing is allocated (unless the
+     * buffer has to grow).
+     *
+     * The sequence is read from data[from] to data[to - 1] and may contain line breaks (\n and \r), which are skipped.
+     * This allows to pass the sequence as it is in a (wrapped) FASTA file, e.g., the output of mafft, without copying
+     * it. Lower-case bases are accepted.
+     *
+     * Leading and trailing deletions are not reported: they are often actually unknowns but appear as deletions due to
+     * aligning.
+     *
+     * Most bases are equal to the reference, so the sequence is compared eight bases at a time: the bytes are read as
+     * a long, lower-cased by setting bit 5 of every byte and compared with the lower-cased reference. Only a word
+     * that differs is checked base by base.
+     *
+     * @return The number of mutations that were found
+     */
+    public int findMutations(byte[] data, int from, int to, MutationBuffer out) {
+        // The leading and trailing deletions are identified by the positions in data of the first and last base that
+        // is not a deletion.
+        int firstBase = from;
+        while (firstBase < to && (data[firstBase] == '-' || isLineBreak(data[firstBase]))) {
+            firstBase++;
+        }
+        int lastBase = to - 1;
+        while (lastBase >= firstBase && (data[lastBase] == '-' || isLineBreak(data[lastBase]))) {
+            lastBase--;
+        }
+
+        int sizeBefore = out.size();
+        int index = 0;
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = nextLineBreak(data, lineStart, to);
+            if (index + lineEnd - lineStart > reference.length) {
+                break;
+            }
+            compareLine(data, lineStart, lineEnd, index, firstBase, lastBase, out);
+            index += lineEnd - lineStart;
+            lineStart = lineEnd + 1;
+        }
+        if (index != reference.length || lineStart < to) {
+            out.size = sizeBefore;
             throw new RuntimeException("The sequence does not have the same length as the reference. " +
                     "Please align the sequence first.");
         }
+        return out.size() - sizeBefore;
+    }
 
-        // Masking leading and tailing deletions because they are often actually unknowns but appear here as
-        // deletions due to aligning.
-        for (int i = 0; i < sequence.length; i++) {
-            if (sequence[i] != '-') {
-                break;
+
+    /**
+     * Compares data[start] to data[end - 1] with the reference starting at referenceIndex.
+     */
+    private void compareLine(
+            byte[] data,
+            int start,
+            int end,
+            int referenceIndex,
+            int firstBase,
+            int lastBase,
+            MutationBuffer out
+    ) {
+        int i = start;
+        int refIndex = referenceIndex;
+        for (; i + 8 <= end; i += 8, refIndex += 8) {
+            long seqWord = (long) LONG_VIEW.get(data, i) | LOWER_CASE_BITS;
+            long refWord = (long) LONG_VIEW.get(referenceLowerCase, refIndex);
+            if (seqWord != refWord) {
+                compareBases(data, i, i + 8, refIndex, firstBase, lastBase, out);
             }
-            sequence[i] = 'N';
         }
-        for (int i = sequence.length - 1; i >= 0; i--) {
-            if (sequence[i] != '-') {
-                break;
+        compareBases(data, i, end, refIndex, firstBase, lastBase, out);
+    }
+
+
+    private void compareBases(
+            byte[] data,
+            int start,
+            int end,
+            int referenceIndex,
+            int firstBase,
+            int lastBase,
+            MutationBuffer out
+    ) {
+        for (int i = start, refIndex = referenceIndex; i < end; i++, refIndex++) {
+            byte seqBase = CALLABLE_BASE[data[i] & 0xff];
+            int pos = refIndex + 1;
+            if (seqBase != 0 && seqBase != reference[refIndex] && i >= firstBase && i <= lastBase
+                    && (maskBits[pos >>> 6] & (1L << pos)) == 0) {
+                out.add(pos, seqBase);
+            }
+        }
+    }
+
+
+    /**
+     * @return The position of the next \n or \r or "to" if there is none
+     */
+    private static int nextLineBreak(byte[] data, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            // Tests whether a byte of the word is smaller than 14 (\r is 13): see "Determine if a word has a byte less
+            // than n" in Bit Twiddling Hacks. Bases and gaps are all larger.
+            long word = (long) LONG_VIEW.get(data, i);
+            if (((word - 0x0e0e0e0e0e0e0e0eL) & ~word & 0x8080808080808080L) != 0) {
+                for (int j = i; j < i + 8; j++) {
+                    if (isLineBreak(data[j])) {
+                        return j;
+                    }
+                }
+            }
+        }
+        for (; i < to; i++) {
+            if (isLineBreak(data[i])) {
+                return i;
             }
-            sequence[i] = 'N';
         }
+        return to;
+    }
+
+
+    private static boolean isLineBreak(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
 
-        List<Mutation> mutations = new ArrayList<>();
-        for (int i = 0; i < reference.length; i++) {
-            int pos = i + 1;
-            char refBase = reference[i];
-            char seqBase = sequence[i];
-            if (maskSites.contains(pos)) {
+    /**
+     * Does the same as {@link #findMutations(byte[], int, int, MutationBuffer)} but compares base by base. It is kept
+     * as the reference for the benchmark (see NucleotideMutationFinderBenchmark).
+     */
+    public int findMutationsScalar(byte[] data, int from, int to, MutationBuffer out) {
+        // Find the first and last base that is not a deletion and check the length
+        int length = 0;
+        int firstBase = -1;
+        int lastBase = -1;
+        for (int i = from; i < to; i++) {
+            byte b = data[i];
+            if (b == '\n' || b == '\r') {
                 continue;
             }
-            if (seqBase != 'C' && seqBase != 'T' && seqBase != 'A' && seqBase != 'G' && seqBase != '-') {
+            if (b != '-') {
+                if (firstBase < 0) {
+                    firstBase = length;
+                }
+                lastBase = length;
+            }
+            length++;
+        }
+        if (length != reference.length) {
+            throw new RuntimeException("The sequence does not have the same length as the reference. " +
+                    "Please align the sequence first.");
+        }
+
+        int sizeBefore = out.size();
+        int index = 0;
+        for (int i = from; i < to; i++) {
+            byte b = data[i];
+            if (b == '\n' || b == '\r') {
                 continue;
             }
-            if (seqBase != refBase) {
-                mutations.add(new Mutation(pos, seqBase));
+            int pos = index + 1;
+            byte seqBase = CALLABLE_BASE[b & 0xff];
+            if (seqBase != 0 && seqBase != reference[index] && index >= firstBase && index <= lastBase
+                    && (maskBits[pos >>> 6] & (1L << pos)) == 0) {
+                out.add(pos, seqBase);
             }
+            index++;
         }
-        return mutations;
+        return out.size() - sizeBefore;
     }
 }
@@ -1,193 +1,430 @@
 package ch.ethz.harvester.general;
 
 import ch.ethz.harvester.core.DatabaseService;
+import ch.ethz.harvester.core.ExhaustibleBlockingQueue;
+import ch.ethz.harvester.core.ExhaustibleLinkedBlockingQueue;
+import ch.ethz.harvester.core.PipelineStage;
+import ch.ethz.harvester.core.PostgresCopyWriter;
 import ch.ethz.harvester.core.SubProgram;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 
+/**
+ * Finds the nucleotide mutations of the sequences in consensus_sequence and gisaid_api_sequence that do not have them
+ * yet. Each table is processed in a single pass in the order of its key:
+ *
+ *   reader (main thread) -> mutation finders ($numberWorkers threads) -> writer (COPY)
+ *
+ * The reader fetches the sequences page by page with keyset pagination ("key > last key of the previous page") and a
+ * cursor. The writer commits the mutations of a few chunks together with the new watermark (see
+ * {@link NucleotideMutationImporterState}), so an interrupted run continues where it stopped. The "not exists" filter
+ * skips the sequences that already have mutations and the sequences in the *_mutation_nucleotide_empty tables, which
+ * record the processed sequences without a row in the mutation table (no mutations with the rows storage, or not
+ * analyzable). Thanks to the keyset, the filter is not evaluated for the sequences before the watermark again.
+ */
 public class NucleotideMutationImporter extends SubProgram<NucleotideMutationImporterConfig> {
 
-    private static class Sample {
-        private final String sampleName;
-        private final String sequence;
+    private static final int PAGE_SIZE = 20000;
+    private static final int FETCH_SIZE = 1000;
+    private static final int CHUNK_SIZE = 500;
+    private static final int GROUP_COMMIT_CHUNKS = 8;
 
-        public Sample(String sampleName, String sequence) {
-            this.sampleName = sampleName;
-            this.sequence = sequence;
+    /**
+     * A table whose sequences are processed
+     */
+    private static class Source {
+        private final String name;
+        private final String fetchSql;
+        private final String mutationTable;
+        private final String emptyTable;
+        private final String keyColumn;
+        private final boolean packed;
+        private final Function<NucleotideMutationImporterState, String> getWatermark;
+        private final BiConsumer<NucleotideMutationImporterState, String> setWatermark;
+
+        public Source(
+                String name,
+                String fetchSql,
+                String mutationTable,
+                String emptyTable,
+                String keyColumn,
+                boolean packed,
+                Function<NucleotideMutationImporterState, String> getWatermark,
+                BiConsumer<NucleotideMutationImporterState, String> setWatermark
+        ) {
+            this.name = name;
+            this.fetchSql = fetchSql;
+            this.mutationTable = mutationTable;
+            this.emptyTable = emptyTable;
+            this.keyColumn = keyColumn;
+            this.packed = packed;
+            this.getWatermark = getWatermark;
+            this.setWatermark = setWatermark;
+        }
+    }
+
+    /**
+     * Consecutive sequences (in the order of the key). The mutation finders fill in the mutations; a sequence that
+     * could not be analyzed keeps null.
+     */
+    private static class Chunk {
+        private final long number;
+        private final List<String> keys = new ArrayList<>(CHUNK_SIZE);
+        private final List<String> sequences = new ArrayList<>(CHUNK_SIZE);
+        private int[][] mutations;
+
+        public Chunk(long number) {
+            this.number = number;
+        }
+
+        public String getLastKey() {
+            return keys.get(keys.size() - 1);
         }
     }
 
 
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+
     public NucleotideMutationImporter() {
         super("NucleotideMutationImporter", NucleotideMutationImporterConfig.class);
     }
 
 
     @Override
-    public void run(String[] args, NucleotideMutationImporterConfig config) throws SQLException {
+    public void run(String[] args, NucleotideMutationImporterConfig config) throws Exception {
+        NucleotideMutationStorage storage = config.getNucleotideMutationStorage() != null
+                ? config.getNucleotideMutationStorage() : NucleotideMutationStorage.ROWS;
+        int numberWorkers = config.getNumberWorkers() != null
+                ? config.getNumberWorkers() : Runtime.getRuntime().availableProcessors();
+
+        NucleotideMutationFinder mutationFinder;
         try (Connection conn = DatabaseService.openDatabaseConnection(config.getVineyard())) {
             String reference = NucleotideMutationFinder.loadReferenceGenome(conn);
             Set<Integer> maskSites = NucleotideMutationFinder.loadMaskSites(conn);
-            NucleotideMutationFinder mutationFinder = new NucleotideMutationFinder(reference, maskSites);
-            while (true) {
-                int inserted = importOurs(conn, mutationFinder);
-                if (inserted == 0) {
-                    break;
+            mutationFinder = new NucleotideMutationFinder(reference, maskSites);
+            storage.verifySchema(conn);
+        }
+
+        Source ours = new Source(
+                "consensus_sequence",
+                """
+                    select cs.sample_name as key, cs.seq
+                    from consensus_sequence cs
+                    where
+                      cs.sample_name > ?
+                      and cs.seq is not null
+                      and not exists(
+                        select
+                        from consensus_sequence_mutation_nucleotide cs2
+                        where cs.sample_name = cs2.sample_name
+                      )
+                      and not exists(
+                        select
+                        from consensus_sequence_mutation_nucleotide_empty cs3
+                        where cs.sample_name = cs3.sample_name
+                      )
+                    order by cs.sample_name
+                    limit ?;
+                """,
+                "consensus_sequence_mutation_nucleotide",
+                "consensus_sequence_mutation_nucleotide_empty",
+                "sample_name",
+                false,
+                NucleotideMutationImporterState::getConsensusSequenceWatermark,
+                NucleotideMutationImporterState::setConsensusSequenceWatermark
+        );
+        Source gisaidApi = new Source(
+                "gisaid_api_sequence",
+                """
+                    select gs.gisaid_epi_isl as key, gs.seq_aligned as seq
+                    from gisaid_api_sequence gs
+                    where
+                      gs.gisaid_epi_isl > ?
+                      and gs.seq_aligned is not null
+                      and not exists(
+                        select
+                        from NUC_MUTATION_TABLE gs2
+                        where gs.gisaid_epi_isl = gs2.gisaid_epi_isl
+                      )
+                      and not exists(
+                        select
+                        from gisaid_api_sequence_mutation_nucleotide_empty gs3
+                        where gs.gisaid_epi_isl = gs3.gisaid_epi_isl
+                      )
+                      and pangolin_lineage <> 'None'
+                    order by gs.gisaid_epi_isl
+                    limit ?;
+                """.replace("NUC_MUTATION_TABLE", storage.getTable()),
+                storage.getTable(),
+                "gisaid_api_sequence_mutation_nucleotide_empty",
+                "gisaid_epi_isl",
+                storage == NucleotideMutationStorage.PACKED,
+                NucleotideMutationImporterState::getGisaidApiSequenceWatermark,
+                NucleotideMutationImporterState::setGisaidApiSequenceWatermark
+        );
+
+        importMutations(config, ours, mutationFinder, numberWorkers);
+        importMutations(config, gisaidApi, mutationFinder, numberWorkers);
+    }
+
+
+    private void importMutations(
+            NucleotideMutationImporterConfig config,
+            Source source,
+            NucleotideMutationFinder mutationFinder,
+            int numberWorkers
+    ) throws Exception {
+        String watermark;
+        try (Connection conn = DatabaseService.openDatabaseConnection(config.getVineyard())) {
+            watermark = source.getWatermark.apply(loadState(conn));
+        }
+        System.out.println("[" + source.name + "] Start at " + (watermark != null ? watermark : "the beginning"));
+
+        ExhaustibleBlockingQueue<Chunk> chunkQueue = new ExhaustibleLinkedBlockingQueue<>(2 * numberWorkers);
+        ExhaustibleBlockingQueue<Chunk> analyzedChunkQueue
+                = new ExhaustibleLinkedBlockingQueue<>(GROUP_COMMIT_CHUNKS * 2);
+        ConcurrentLinkedQueue<Exception> unhandledExceptions = new ConcurrentLinkedQueue<>();
+        AtomicBoolean emergencyBrake = new AtomicBoolean(false);
+
+        PipelineStage<Chunk, Chunk> mutationStage = new PipelineStage<>(source.name + "-mutations",
+                numberWorkers, 1, chunkQueue, analyzedChunkQueue, chunk -> chunk.keys.size(), emergencyBrake,
+                unhandledExceptions);
+        PipelineStage<Chunk, Chunk> writerStage = new PipelineStage<>(source.name + "-writer",
+                1, GROUP_COMMIT_CHUNKS, analyzedChunkQueue, new LinkedBlockingQueue<>(),
+                chunk -> chunk.keys.size(), emergencyBrake, unhandledExceptions);
+        mutationStage.start(i -> {
+            NucleotideMutationFinder.MutationBuffer buffer = new NucleotideMutationFinder.MutationBuffer();
+            return chunks -> {
+                for (Chunk chunk : chunks) {
+                    findMutations(source, chunk, mutationFinder, buffer);
                 }
+                return chunks;
+            };
+        });
+        Connection writerConn = DatabaseService.openDatabaseConnection(config.getVineyard());
+        writerConn.setAutoCommit(false);
+        TreeMap<Long, String> writtenLastKeys = new TreeMap<>();
+        long[] nextChunkForWatermark = {0};
+        writerStage.start(i -> chunks -> {
+            for (Chunk chunk : chunks) {
+                writtenLastKeys.put(chunk.number, chunk.getLastKey());
             }
-            while (true) {
-                int inserted = importGisaidApi(conn, mutationFinder);
-                if (inserted == 0) {
-                    break;
+            // The watermark may only pass chunks that were written: a chunk can overtake its predecessor in the
+            // mutation stage.
+            String newWatermark = null;
+            while (writtenLastKeys.containsKey(nextChunkForWatermark[0])) {
+                newWatermark = writtenLastKeys.remove(nextChunkForWatermark[0]);
+                nextChunkForWatermark[0]++;
+            }
+            write(writerConn, source, chunks, newWatermark);
+            return List.of();
+        });
+
+        // Read the sequences page by page
+        long numberChunks = 0;
+        long numberSequences = 0;
+        String lastKey = watermark != null ? watermark : "";
+        try (Connection conn = DatabaseService.openDatabaseConnection(config.getVineyard())) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement statement = conn.prepareStatement(source.fetchSql)) {
+                statement.setFetchSize(FETCH_SIZE);
+                boolean lastPage = false;
+                while (!lastPage && !emergencyBrake.get()) {
+                    statement.setString(1, lastKey);
+                    statement.setInt(2, PAGE_SIZE);
+                    int rowsInPage = 0;
+                    Chunk chunk = new Chunk(numberChunks);
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next() && !emergencyBrake.get()) {
+                            lastKey = rs.getString("key");
+                            chunk.keys.add(lastKey);
+                            chunk.sequences.add(rs.getString("seq"));
+                            rowsInPage++;
+                            if (chunk.keys.size() == CHUNK_SIZE) {
+                                offer(chunkQueue, chunk, emergencyBrake);
+                                numberChunks++;
+                                chunk = new Chunk(numberChunks);
+                            }
+                        }
+                    }
+                    if (!chunk.keys.isEmpty()) {
+                        offer(chunkQueue, chunk, emergencyBrake);
+                        numberChunks++;
+                    }
+                    conn.commit();
+                    numberSequences += rowsInPage;
+                    lastPage = rowsInPage < PAGE_SIZE;
                 }
             }
+        } catch (Exception e) {
+            unhandledExceptions.add(e);
+            emergencyBrake.set(true);
+        } finally {
+            chunkQueue.setExhausted(true);
+        }
+
+        mutationStage.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        writerStage.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        mutationStage.logThroughput();
+        writerStage.logThroughput();
+
+        try {
+            if (!unhandledExceptions.isEmpty()) {
+                throw unhandledExceptions.peek();
+            }
+            // The pass is complete: the next run starts from the beginning again.
+            NucleotideMutationImporterState state = loadState(writerConn);
+            source.setWatermark.accept(state, null);
+            updateState(writerConn, state);
+            writerConn.commit();
+            System.out.println("[" + source.name + "] Finished: " + numberSequences + " sequences");
+        } finally {
+            writerConn.close();
         }
     }
 
 
-    /**
-     * @return The number of inserted mutations
-     */
-    private int importOurs(Connection conn, NucleotideMutationFinder mutationFinder) throws SQLException {
-        // Load sequences
-        List<Sample> samples = fetchOurSequences(conn);
-        System.out.println(samples.size() + " sequences were loaded.");
-
-        int numberMutations = 0;
-        for (Sample sample : samples) {
-            // Find mutations
-            List<NucleotideMutationFinder.Mutation> mutations = mutationFinder.getMutations(sample.sequence);
-
-            // Insert mutations to database
-            insertForOurSequences(conn, sample.sampleName, mutations);
-            numberMutations += mutations.size();
+    private static void findMutations(
+            Source source,
+            Chunk chunk,
+            NucleotideMutationFinder mutationFinder,
+            NucleotideMutationFinder.MutationBuffer buffer
+    ) {
+        chunk.mutations = new int[chunk.keys.size()][];
+        for (int i = 0; i < chunk.keys.size(); i++) {
+            byte[] sequence = chunk.sequences.get(i).getBytes(StandardCharsets.US_ASCII);
+            buffer.clear();
+            try {
+                mutationFinder.findMutations(sequence, 0, sequence.length, buffer);
+            } catch (RuntimeException e) {
+                System.out.println("[" + source.name + "] Skipping " + chunk.keys.get(i) + ": " + e.getMessage());
+                continue;
+            }
+            chunk.mutations[i] = PackedNucleotideMutations.encode(buffer);
         }
-        System.out.println(numberMutations + " mutations were inserted.");
-        return numberMutations;
+        // The sequences are not needed anymore and should not stay in memory while the chunk waits for the writer.
+        chunk.sequences.clear();
     }
 
 
     /**
-     * @return The number of inserted mutations
+     * Writes the mutations of the chunks with COPY and commits them together with the watermark.
+     *
+     * @param newWatermark The new watermark or null if the watermark does not change
      */
-    private int importGisaidApi(Connection conn, NucleotideMutationFinder mutationFinder) throws SQLException {
-        // Load sequences
-        List<Sample> samples = fetchGisaidApiSequences(conn);
-        System.out.println(samples.size() + " sequences were loaded.");
-
-        int numberMutations = 0;
-        for (Sample sample : samples) {
-            // Find mutations
-            List<NucleotideMutationFinder.Mutation> mutations = mutationFinder.getMutations(sample.sequence);
-
-            // Insert mutations to database
-            insertForGisaidApiSequences(conn, sample.sampleName, mutations);
-            numberMutations += mutations.size();
+    private void write(Connection conn, Source source, List<Chunk> chunks, String newWatermark)
+            throws SQLException, JsonProcessingException {
+        try {
+            if (source.packed) {
+                try (PostgresCopyWriter writer = new PostgresCopyWriter(conn, source.mutationTable,
+                        source.keyColumn, "mutations")) {
+                    for (Chunk chunk : chunks) {
+                        for (int i = 0; i < chunk.keys.size(); i++) {
+                            if (chunk.mutations[i] != null) {
+                                writer.add(chunk.keys.get(i))
+                                        .add(PackedNucleotideMutations.toArrayLiteral(chunk.mutations[i]))
+                                        .endRow();
+                            }
+                        }
+                    }
+                    writer.finish();
+                }
+            } else {
+                try (PostgresCopyWriter writer = new PostgresCopyWriter(conn, source.mutationTable,
+                        source.keyColumn, "position", "mutation")) {
+                    for (Chunk chunk : chunks) {
+                        for (int i = 0; i < chunk.keys.size(); i++) {
+                            if (chunk.mutations[i] == null) {
+                                continue;
+                            }
+                            for (int packed : chunk.mutations[i]) {
+                                writer.add(chunk.keys.get(i))
+                                        .add(PackedNucleotideMutations.position(packed))
+                                        .add(PackedNucleotideMutations.base(packed))
+                                        .endRow();
+                            }
+                        }
+                    }
+                    writer.finish();
+                }
+            }
+            // The sequences without a row in the mutation table are recorded so that they are not fetched and
+            // analyzed again in the next runs.
+            try (PostgresCopyWriter writer = new PostgresCopyWriter(conn, source.emptyTable,
+                    source.keyColumn, "analyzable")) {
+                for (Chunk chunk : chunks) {
+                    for (int i = 0; i < chunk.keys.size(); i++) {
+                        boolean analyzable = chunk.mutations[i] != null;
+                        if (!analyzable || (!source.packed && chunk.mutations[i].length == 0)) {
+                            writer.add(chunk.keys.get(i)).add(analyzable).endRow();
+                        }
+                    }
+                }
+                writer.finish();
+            }
+            if (newWatermark != null) {
+                NucleotideMutationImporterState state = loadState(conn);
+                source.setWatermark.accept(state, newWatermark);
+                updateState(conn, state);
+            }
+            conn.commit();
+        } catch (SQLException | JsonProcessingException e) {
+            conn.rollback();
+            throw e;
         }
-        System.out.println(numberMutations + " mutations were inserted.");
-        return numberMutations;
     }
 
 
-    private List<Sample> fetchOurSequences(Connection conn) throws SQLException {
-        // Fetch sequences without assigned nucleotide mutations
-        String fetchSeqsSql = """
-            select
-                cs.sample_name,
-                upper(cs.seq) as seq
-            from consensus_sequence cs
-            where not exists(
-                select *
-                from consensus_sequence_mutation_nucleotide cs2
-                where cs.sample_name = cs2.sample_name
-            )
-            limit 2000;
-        """;
-        List<Sample> samples = new ArrayList<>();
-        try (Statement statement = conn.createStatement()) {
-            try (ResultSet rs = statement.executeQuery(fetchSeqsSql)) {
-                while (rs.next()) {
-                    samples.add(new Sample(rs.getString("sample_name"), rs.getString("seq")));
-                }
-            }
+    private static void offer(ExhaustibleBlockingQueue<Chunk> queue, Chunk chunk, AtomicBoolean emergencyBrake)
+            throws InterruptedException {
+        while (!emergencyBrake.get() && !queue.offer(chunk, 5, TimeUnit.SECONDS)) {
+            // Wait for the mutation finders
         }
-        return samples;
     }
 
 
-    private List<Sample> fetchGisaidApiSequences(Connection conn) throws SQLException {
-        // Fetch sequences without assigned nucleotide mutations
-        String fetchSeqsSql = """
-            select
-                gs.gisaid_epi_isl,
-                upper(gs.seq_aligned) as seq
-            from gisaid_api_sequence gs
-            where
-              not exists(
-                select *
-                from gisaid_api_sequence_mutation_nucleotide gs2
-                where gs.gisaid_epi_isl = gs2.gisaid_epi_isl
-              )
-              and pangolin_lineage <> 'None'
-            order by gs.gisaid_epi_isl
-            limit 2000;
+    private NucleotideMutationImporterState loadState(Connection conn) throws SQLException, JsonProcessingException {
+        String fetchAutomationStateSql = """
+            select state
+            from automation_state
+            where program_name = 'nucleotide_mutation_importer';
         """;
-        List<Sample> samples = new ArrayList<>();
         try (Statement statement = conn.createStatement()) {
-            try (ResultSet rs = statement.executeQuery(fetchSeqsSql)) {
-                while (rs.next()) {
-                    samples.add(new Sample(rs.getString("gisaid_epi_isl"), rs.getString("seq")));
+            try (ResultSet rs = statement.executeQuery(fetchAutomationStateSql)) {
+                if (!rs.next()) {
+                    return new NucleotideMutationImporterState();
                 }
+                return objectMapper.readValue(rs.getString("state"), NucleotideMutationImporterState.class);
             }
         }
-        return samples;
-    }
-
-
-    private void insertForOurSequences(
-            Connection conn,
-            String sampleName,
-            List<NucleotideMutationFinder.Mutation> mutations
-    ) throws SQLException {
-        insert(conn, sampleName, mutations, "consensus_sequence_mutation_nucleotide", "sample_name");
     }
 
 
-    private void insertForGisaidApiSequences(
-            Connection conn,
-            String sampleName,
-            List<NucleotideMutationFinder.Mutation> mutations
-    ) throws SQLException {
-        insert(conn, sampleName, mutations, "gisaid_api_sequence_mutation_nucleotide", "gisaid_epi_isl");
-    }
-
-
-    private void insert(
-            Connection conn,
-            String sampleName,
-            List<NucleotideMutationFinder.Mutation> mutations,
-            String tableName,
-            String sampleNameColumn
-    ) throws SQLException {
-        conn.setAutoCommit(false);
-        String insertSql = """
-            insert into TABLE_NAME (SAMPLE_NAME_COLUMN, position, mutation)
-            values (?, ?, ?);
-        """.replace("TABLE_NAME", tableName).replace("SAMPLE_NAME_COLUMN", sampleNameColumn);
-        try (PreparedStatement statement = conn.prepareStatement(insertSql)) {
-            for (NucleotideMutationFinder.Mutation mutation : mutations) {
-                statement.setString(1, sampleName);
-                statement.setInt(2, mutation.getPosition());
-                statement.setString(3, String.valueOf(mutation.getMutation()));
-                statement.addBatch();
-            }
-            statement.executeBatch();
-            conn.commit();
-            conn.setAutoCommit(true);
+    private void updateState(Connection conn, NucleotideMutationImporterState state)
+            throws SQLException, JsonProcessingException {
+        String updateAutomationStateSql = """
+            insert into automation_state (program_name, state)
+            values ('nucleotide_mutation_importer', ?)
+            on conflict (program_name) do update set state = excluded.state;
+        """;
+        try (PreparedStatement statement = conn.prepareStatement(updateAutomationStateSql)) {
+            statement.setString(1, objectMapper.writeValueAsString(state));
+            statement.execute();
         }
     }
 }
@@ -5,6 +5,8 @@ import ch.ethz.harvester.core.DatabaseConfig;
 
 public class NucleotideMutationImporterConfig implements Config {
     private DatabaseConfig vineyard;
+    private NucleotideMutationStorage nucleotideMutationStorage;
+    private Integer numberWorkers;
 
     public DatabaseConfig getVineyard() {
         return vineyard;
@@ -13,4 +15,20 @@ public class NucleotideMutationImporterConfig implements Config {
     public void setVineyard(DatabaseConfig vineyard) {
         this.vineyard = vineyard;
     }
+
+    public NucleotideMutationStorage getNucleotideMutationStorage() {
+        return nucleotideMutationStorage;
+    }
+
+    public void setNucleotideMutationStorage(NucleotideMutationStorage nucleotideMutationStorage) {
+        this.nucleotideMutationStorage = nucleotideMutationStorage;
+    }
+
+    public Integer getNumberWorkers() {
+        return numberWorkers;
+    }
+
+    public void setNumberWorkers(Integer numberWorkers) {
+        this.numberWorkers = numberWorkers;
+    }
 }
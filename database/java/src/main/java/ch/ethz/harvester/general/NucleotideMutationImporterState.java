@@ -0,0 +1,33 @@
+package ch.ethz.harvester.general;
+
+
+/**
+ * The progress of the NucleotideMutationImporter that is kept between the runs. It is stored as JSON in the
+ * automation_state table.
+ *
+ * A watermark is the largest key (sample_name or gisaid_epi_isl) up to which all sequences have been processed. It is
+ * updated in the same transaction as the mutations. After a complete pass, it is reset to null so that the next run
+ * starts from the beginning again and also sees sequences that were added with a smaller key.
+ */
+class NucleotideMutationImporterState {
+    private String consensusSequenceWatermark;
+    private String gisaidApiSequenceWatermark;
+
+    public String getConsensusSequenceWatermark() {
+        return consensusSequenceWatermark;
+    }
+
+    public NucleotideMutationImporterState setConsensusSequenceWatermark(String consensusSequenceWatermark) {
+        this.consensusSequenceWatermark = consensusSequenceWatermark;
+        return this;
+    }
+
+    public String getGisaidApiSequenceWatermark() {
+        return gisaidApiSequenceWatermark;
+    }
+
+    public NucleotideMutationImporterState setGisaidApiSequenceWatermark(String gisaidApiSequenceWatermark) {
+        this.gisaidApiSequenceWatermark = gisaidApiSequenceWatermark;
+        return this;
+    }
+}
@@ -0,0 +1,68 @@
+package ch.ethz.harvester.general;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * How the nucleotide mutations of the GISAID API sequences are stored
+ */
+public enum NucleotideMutationStorage {
+
+    /**
+     * One row per mutation in gisaid_api_sequence_mutation_nucleotide (gisaid_epi_isl, position, mutation)
+     */
+    ROWS,
+
+    /**
+     * One row per sequence in gisaid_api_sequence_mutation_nucleotide_packed (gisaid_epi_isl, mutations int[]), see
+     * {@link PackedNucleotideMutations}. gisaid_api_sequence_mutation_nucleotide is a view that unpacks the mutations.
+     * This requires the migration "2026-10-17 packed nucleotide mutations.sql".
+     */
+    PACKED;
+
+    public static final String ROWS_TABLE = "gisaid_api_sequence_mutation_nucleotide";
+    public static final String PACKED_TABLE = "gisaid_api_sequence_mutation_nucleotide_packed";
+
+    public String getTable() {
+        return this == PACKED ? PACKED_TABLE : ROWS_TABLE;
+    }
+
+
+    /**
+     * Checks that the database has the tables of this storage: a new database (init.sql) has the rows table, a
+     * migrated database has the packed table and a view in place of the rows table.
+     *
+     * @throws RuntimeException If the schema belongs to the other storage
+     */
+    public void verifySchema(Connection conn) throws SQLException {
+        String relkind = loadRelkind(conn, getTable());
+        if (this == ROWS && !"r".equals(relkind)) {
+            throw new RuntimeException(ROWS_TABLE + " is not a table. The database uses the packed storage; set "
+                    + "\"nucleotide_mutation_storage: packed\" in the configuration.");
+        }
+        if (this == PACKED && relkind == null) {
+            throw new RuntimeException(PACKED_TABLE + " does not exist. Apply the migration \"sql/2026-10-17 packed "
+                    + "nucleotide mutations.sql\" or set \"nucleotide_mutation_storage: rows\" in the configuration.");
+        }
+    }
+
+
+    /**
+     * @return The kind of the relation ("r" for a table, "v" for a view) or null if it does not exist
+     */
+    private static String loadRelkind(Connection conn, String relation) throws SQLException {
+        String sql = """
+            select c.relkind
+            from pg_class c
+            where c.oid = to_regclass(?);
+        """;
+        try (PreparedStatement statement = conn.prepareStatement(sql)) {
+            statement.setString(1, relation);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getString("relkind") : null;
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ch.ethz.harvester.general;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Encodes the nucleotide mutations of a sequence as an int[] for the packed storage (see
+ * {@link NucleotideMutationStorage#PACKED}): every mutation is one int, (position << 3) | base code, with the base
+ * codes A = 1, C = 2, G = 3, T = 4 and - = 5. The ints are in the order of the positions.
+ *
+ * In SQL, a value m is decoded with "m >> 3" (position) and "substr('ACGT-', m & 7, 1)" (mutation).
+ */
+public class PackedNucleotideMutations {
+
+    private static final String BASES = "ACGT-";
+
+
+    public static int encode(int position, char base) {
+        int code = BASES.indexOf(Character.toUpperCase(base)) + 1;
+        if (code == 0) {
+            throw new IllegalArgumentException("The base " + base + " cannot be packed.");
+        }
+        return (position << 3) | code;
+    }
+
+
+    public static int[] encode(List<NucleotideMutationFinder.Mutation> mutations) {
+        int[] packed = new int[mutations.size()];
+        for (int i = 0; i < packed.length; i++) {
+            NucleotideMutationFinder.Mutation mutation = mutations.get(i);
+            packed[i] = encode(mutation.getPosition(), mutation.getMutation());
+        }
+        return packed;
+    }
+
+
+    public static int[] encode(NucleotideMutationFinder.MutationBuffer mutations) {
+        int[] packed = new int[mutations.size()];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = encode(mutations.getPosition(i), (char) mutations.getBase(i));
+        }
+        return packed;
+    }
+
+
+    public static int position(int packed) {
+        return packed >>> 3;
+    }
+
+
+    public static char base(int packed) {
+        return BASES.charAt((packed & 7) - 1);
+    }
+
+
+    public static List<NucleotideMutationFinder.Mutation> decode(int[] packed) {
+        List<NucleotideMutationFinder.Mutation> mutations = new ArrayList<>(packed.length);
+        for (int value : packed) {
+            mutations.add(new NucleotideMutationFinder.Mutation(position(value), base(value)));
+        }
+        return mutations;
+    }
+
+
+    /**
+     * @return The array in the text format of PostgreSQL, e.g., {1929,1987}. It can be passed to an int[] column as a
+     * string (with a ::int[] cast) or written with COPY.
+     */
+    public static String toArrayLiteral(int[] packed) {
+        StringBuilder sb = new StringBuilder(packed.length * 7 + 2);
+        sb.append('{');
+        for (int i = 0; i < packed.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(packed[i]);
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,18 @@
+package ch.ethz.harvester.gisaid;
+
+/**
+ * The tool that aligns the sequences with the reference
+ */
+public enum Aligner {
+
+    /**
+     * "mafft --addfragments --keeplength" in a subprocess
+     */
+    MAFFT,
+
+    /**
+     * {@link ReferenceAligner} in the JVM
+     */
+    JAVA;
+
+}
@@ -0,0 +1,19 @@
+package ch.ethz.harvester.gisaid;
+
+/**
+ * The tool that finds the amino acid mutations
+ */
+public enum AminoAcidCaller {
+
+    /**
+     * Nextclade in a subprocess. It also provides the clade and the QC metrics (the nextclade_* columns).
+     */
+    NEXTCLADE,
+
+    /**
+     * {@link ch.ethz.harvester.general.AminoAcidMutationFinder} in the JVM. Nextclade is not run and the nextclade_*
+     * columns stay empty.
+     */
+    JAVA;
+
+}
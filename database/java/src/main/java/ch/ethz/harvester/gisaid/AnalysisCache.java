@@ -0,0 +1,333 @@
+package ch.ethz.harvester.gisaid;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * An on-disk cache of the alignment (seq_aligned) and the Nextclade results of sequences. The entries are addressed by
+ * a hash of the original sequence and the tool version: an identical sequence that is seen again (resubmissions,
+ * re-runs after a failed import, ...) does not need to be processed by mafft and Nextclade again. Changing the
+ * reference, the aligner or the Nextclade version changes the tool version and therefore invalidates all entries.
+ *
+ * Every entry is a compressed file in a sub-directory named after the first two characters of its key. The cache is
+ * bounded by size: when it becomes larger than the limit, the least recently used entries are removed until it is
+ * below 80% of the limit. The modification time of a file is its last use.
+ *
+ * The cache can be used by multiple threads.
+ */
+public class AnalysisCache {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final double EVICTION_TARGET = 0.8;
+
+    private final Path directory;
+    private final String toolVersion;
+    private final long maxSizeBytes;
+    private final AtomicLong sizeBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+
+    /**
+     * @param directory The directory of the cache. It is created if it does not exist.
+     * @param toolVersion Identifies the reference and the versions of the tools that produced the results
+     * @param maxSizeBytes The maximal total size of the entries
+     */
+    public AnalysisCache(Path directory, String toolVersion, long maxSizeBytes) throws IOException {
+        this.directory = directory;
+        this.toolVersion = toolVersion;
+        this.maxSizeBytes = maxSizeBytes;
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.filter(Files::isRegularFile).forEach(file -> {
+                if (file.getFileName().toString().endsWith(".tmp")) {
+                    deleteQuietly(file);
+                } else {
+                    sizeBytes.addAndGet(file.toFile().length());
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Sets seq_aligned and the Nextclade fields of the sequence if the cache has an entry for its original sequence.
+     *
+     * @return True if the entry was found
+     */
+    public boolean load(Sequence sequence) {
+        Path file = entryPath(sequence);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                misses.incrementAndGet();
+                return false;
+            }
+            readEntry(in, sequence);
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return false;
+        } catch (IOException e) {
+            // A broken entry (e.g., from a full disk) is treated as a miss and will be overwritten.
+            System.out.println("[analysis-cache] Cannot read " + file + ": " + e.getMessage());
+            misses.incrementAndGet();
+            return false;
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // The entry might have been evicted in the meantime.
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+
+    /**
+     * Stores seq_aligned and the Nextclade fields of the sequence.
+     */
+    public void store(Sequence sequence) throws IOException {
+        Path file = entryPath(sequence);
+        Files.createDirectories(file.getParent());
+        Path tmpFile = file.resolveSibling(file.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(Files.newOutputStream(tmpFile))))) {
+            out.writeInt(FORMAT_VERSION);
+            writeEntry(out, sequence);
+        }
+        long previousSize = Files.exists(file) ? file.toFile().length() : 0;
+        long size = tmpFile.toFile().length();
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (sizeBytes.addAndGet(size - previousSize) > maxSizeBytes) {
+            evict();
+        }
+    }
+
+
+    public long getHits() {
+        return hits.get();
+    }
+
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+
+    public long getSizeBytes() {
+        return sizeBytes.get();
+    }
+
+
+    /**
+     * Removes the least recently used entries until the cache is below 80% of its maximal size.
+     */
+    private synchronized void evict() throws IOException {
+        if (sizeBytes.get() <= maxSizeBytes) {
+            return;
+        }
+        List<Path> files = new ArrayList<>();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(directory)) {
+            walk.filter(f -> Files.isRegularFile(f) && !f.getFileName().toString().endsWith(".tmp")).forEach(f -> {
+                try {
+                    attributes.add(Files.readAttributes(f, BasicFileAttributes.class));
+                    files.add(f);
+                } catch (IOException ignored) {
+                    // Removed in the meantime
+                }
+            });
+        }
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparing(i -> attributes.get(i).lastModifiedTime()));
+        long target = (long) (maxSizeBytes * EVICTION_TARGET);
+        int removed = 0;
+        for (int i : order) {
+            if (sizeBytes.get() <= target) {
+                break;
+            }
+            try {
+                Files.delete(files.get(i));
+                sizeBytes.addAndGet(-attributes.get(i).size());
+                removed++;
+            } catch (NoSuchFileException ignored) {
+                // Removed in the meantime
+            }
+        }
+        System.out.println("[analysis-cache] Evicted " + removed + " entries, the cache has now "
+                + sizeBytes.get() / 1024 / 1024 + " MB");
+    }
+
+
+    private Path entryPath(Sequence sequence) {
+        String seqHash = sequence.getSeqOriginalHash() != null
+                ? sequence.getSeqOriginalHash() : SequenceFingerprints.sequence(sequence.getSeqOriginal());
+        String key = sha256(seqHash + '\u001f' + toolVersion);
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+
+    private static void writeEntry(DataOutputStream out, Sequence sequence) throws IOException {
+        writeString(out, sequence.getSeqAligned());
+        writeString(out, sequence.getNextcladeClade());
+        writeFloat(out, sequence.getNextcladeQcOverallScore());
+        writeString(out, sequence.getNextcladeQcOverallStatus());
+        writeInteger(out, sequence.getNextcladeTotalGaps());
+        writeInteger(out, sequence.getNextcladeTotalInsertions());
+        writeInteger(out, sequence.getNextcladeTotalMissing());
+        writeInteger(out, sequence.getNextcladeTotalMutations());
+        writeInteger(out, sequence.getNextcladeTotalNonAcgtns());
+        writeInteger(out, sequence.getNextcladeTotalPcrPrimerChanges());
+        writeInteger(out, sequence.getNextcladeAlignmentStart());
+        writeInteger(out, sequence.getNextcladeAlignmentEnd());
+        writeInteger(out, sequence.getNextcladeAlignmentScore());
+        writeFloat(out, sequence.getNextcladeQcMissingDataScore());
+        writeString(out, sequence.getNextcladeQcMissingDataStatus());
+        writeInteger(out, sequence.getNextcladeQcMissingDataTotal());
+        writeFloat(out, sequence.getNextcladeQcMixedSitesScore());
+        writeString(out, sequence.getNextcladeQcMixedSitesStatus());
+        writeInteger(out, sequence.getNextcladeQcMixedSitesTotal());
+        writeInteger(out, sequence.getNextcladeQcPrivateMutationsCutoff());
+        writeInteger(out, sequence.getNextcladeQcPrivateMutationsExcess());
+        writeFloat(out, sequence.getNextcladeQcPrivateMutationsScore());
+        writeString(out, sequence.getNextcladeQcPrivateMutationsStatus());
+        writeInteger(out, sequence.getNextcladeQcPrivateMutationsTotal());
+        writeString(out, sequence.getNextcladeQcSnpClustersClustered());
+        writeFloat(out, sequence.getNextcladeQcSnpClustersScore());
+        writeString(out, sequence.getNextcladeQcSnpClustersStatus());
+        writeInteger(out, sequence.getNextcladeQcSnpClustersTotal());
+        writeString(out, sequence.getNextcladeErrors());
+        List<String> mutations = sequence.getNextcladeMutations();
+        out.writeInt(mutations != null ? mutations.size() : -1);
+        if (mutations != null) {
+            for (String mutation : mutations) {
+                out.writeUTF(mutation);
+            }
+        }
+    }
+
+
+    private static void readEntry(DataInputStream in, Sequence sequence) throws IOException {
+        sequence
+                .setSeqAligned(readString(in))
+                .setNextcladeClade(readString(in))
+                .setNextcladeQcOverallScore(readFloat(in))
+                .setNextcladeQcOverallStatus(readString(in))
+                .setNextcladeTotalGaps(readInteger(in))
+                .setNextcladeTotalInsertions(readInteger(in))
+                .setNextcladeTotalMissing(readInteger(in))
+                .setNextcladeTotalMutations(readInteger(in))
+                .setNextcladeTotalNonAcgtns(readInteger(in))
+                .setNextcladeTotalPcrPrimerChanges(readInteger(in))
+                .setNextcladeAlignmentStart(readInteger(in))
+                .setNextcladeAlignmentEnd(readInteger(in))
+                .setNextcladeAlignmentScore(readInteger(in))
+                .setNextcladeQcMissingDataScore(readFloat(in))
+                .setNextcladeQcMissingDataStatus(readString(in))
+                .setNextcladeQcMissingDataTotal(readInteger(in))
+                .setNextcladeQcMixedSitesScore(readFloat(in))
+                .setNextcladeQcMixedSitesStatus(readString(in))
+                .setNextcladeQcMixedSitesTotal(readInteger(in))
+                .setNextcladeQcPrivateMutationsCutoff(readInteger(in))
+                .setNextcladeQcPrivateMutationsExcess(readInteger(in))
+                .setNextcladeQcPrivateMutationsScore(readFloat(in))
+                .setNextcladeQcPrivateMutationsStatus(readString(in))
+                .setNextcladeQcPrivateMutationsTotal(readInteger(in))
+                .setNextcladeQcSnpClustersClustered(readString(in))
+                .setNextcladeQcSnpClustersScore(readFloat(in))
+                .setNextcladeQcSnpClustersStatus(readString(in))
+                .setNextcladeQcSnpClustersTotal(readInteger(in))
+                .setNextcladeErrors(readString(in));
+        int numberMutations = in.readInt();
+        List<String> mutations = null;
+        if (numberMutations >= 0) {
+            mutations = new ArrayList<>(numberMutations);
+            for (int i = 0; i < numberMutations; i++) {
+                mutations.add(in.readUTF());
+            }
+        }
+        sequence.setNextcladeMutations(mutations);
+    }
+
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        // writeUTF() is limited to 64 KB, which is not enough for long error messages.
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+
+    private static void writeInteger(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+
+
+    private static Integer readInteger(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+
+
+    private static void writeFloat(DataOutputStream out, Float value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeFloat(value);
+        }
+    }
+
+
+    private static Float readFloat(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readFloat() : null;
+    }
+
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+        }
+    }
+
+
+    private static String sha256(String s) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            return String.format("%064x", new BigInteger(1, hash));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
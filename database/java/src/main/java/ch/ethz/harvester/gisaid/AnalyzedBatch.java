@@ -0,0 +1,53 @@
+package ch.ethz.harvester.gisaid;
+
+import java.util.List;
+
+
+/**
+ * A batch on its way from the analysis to the database writer. The report contains the counts of the analysis; the
+ * database writer completes it. A failed batch is not written but its report is passed on.
+ */
+public class AnalyzedBatch {
+
+    private final Batch batch;
+    private final List<Sequence> analyzedSequences;
+    private final BatchReport report;
+    private final boolean failed;
+
+    /**
+     * @param analyzedSequences The sequences that are new or have a changed sequence, i.e., that need the mutations
+     */
+    public AnalyzedBatch(Batch batch, List<Sequence> analyzedSequences, BatchReport report) {
+        this.batch = batch;
+        this.analyzedSequences = analyzedSequences;
+        this.report = report;
+        this.failed = false;
+    }
+
+    private AnalyzedBatch(BatchReport report) {
+        this.batch = new Batch(List.of());
+        this.analyzedSequences = List.of();
+        this.report = report;
+        this.failed = true;
+    }
+
+    public static AnalyzedBatch failed(BatchReport report) {
+        return new AnalyzedBatch(report);
+    }
+
+    public Batch getBatch() {
+        return batch;
+    }
+
+    public List<Sequence> getAnalyzedSequences() {
+        return analyzedSequences;
+    }
+
+    public BatchReport getReport() {
+        return report;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+}
@@ -0,0 +1,114 @@
+package ch.ethz.harvester.gisaid;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.IntSupplier;
+
+
+/**
+ * Groups sequences of a similar alignment cost into the same batches. mafft needs much longer for fragmented
+ * sequences (short or with many N) than for near-complete genomes, so a batch that mixes them is as slow as its worst
+ * sequences. The composer buffers a window of sequences in bins by length and N content and cuts a batch when a bin is
+ * full. If the window is full before a bin, a batch is taken from the largest bins.
+ *
+ * With a window of one batch, the batches are formed (nearly) in the order of the data package. The batch size is
+ * read for every sequence, so that it can be changed at runtime (see {@link BatchSizeController}).
+ */
+public class BatchComposer {
+
+    private static final double FRAGMENT_LENGTH_RATIO = 0.95;
+    private static final double[] N_CONTENT_LIMITS = {0.01, 0.05, 0.2};
+    private static final int REFERENCE_LENGTH = Reference.REFERENCE.length();
+
+    private final IntSupplier batchSize;
+    private final int windowBatches;
+    private final List<List<Sequence>> bins = new ArrayList<>();
+    private int buffered = 0;
+
+
+    /**
+     * @param windowBatches The number of batches that are buffered at most
+     */
+    public BatchComposer(IntSupplier batchSize, int windowBatches) {
+        this.batchSize = batchSize;
+        this.windowBatches = Math.max(1, windowBatches);
+        for (int i = 0; i < 2 * (N_CONTENT_LIMITS.length + 1); i++) {
+            bins.add(new ArrayList<>());
+        }
+    }
+
+
+    /**
+     * @return A completed batch or null
+     */
+    public Batch add(Sequence sequence) {
+        int size = batchSize.getAsInt();
+        List<Sequence> bin = bins.get(costClass(sequence.getSeqOriginal()));
+        bin.add(sequence);
+        buffered++;
+        if (bin.size() >= size) {
+            return takeFrom(List.of(bin), size);
+        }
+        if (buffered >= size * windowBatches) {
+            List<List<Sequence>> largestBinsFirst = new ArrayList<>(bins);
+            largestBinsFirst.sort(Comparator.comparingInt(b -> -b.size()));
+            return takeFrom(largestBinsFirst, size);
+        }
+        return null;
+    }
+
+
+    /**
+     * @return The batches with all remaining sequences, cut from the bins in the order of their cost
+     */
+    public List<Batch> flush() {
+        int size = batchSize.getAsInt();
+        List<Batch> batches = new ArrayList<>();
+        while (buffered > 0) {
+            batches.add(takeFrom(bins, size));
+        }
+        return batches;
+    }
+
+
+    /**
+     * The cost class combines two length classes (fragment or not) with four classes of N content.
+     */
+    static int costClass(String seqOriginal) {
+        if (seqOriginal == null || seqOriginal.isEmpty()) {
+            return 0;
+        }
+        int length = seqOriginal.length();
+        int numberN = 0;
+        for (int i = 0; i < length; i++) {
+            char c = seqOriginal.charAt(i);
+            if (c == 'N' || c == 'n') {
+                numberN++;
+            }
+        }
+        double nContent = (double) numberN / length;
+        int nClass = 0;
+        while (nClass < N_CONTENT_LIMITS.length && nContent >= N_CONTENT_LIMITS[nClass]) {
+            nClass++;
+        }
+        boolean fragment = length < FRAGMENT_LENGTH_RATIO * REFERENCE_LENGTH;
+        return (fragment ? N_CONTENT_LIMITS.length + 1 : 0) + nClass;
+    }
+
+
+    private Batch takeFrom(List<List<Sequence>> binsInOrder, int size) {
+        List<Sequence> sequences = new ArrayList<>(size);
+        for (List<Sequence> bin : binsInOrder) {
+            int take = Math.min(size - sequences.size(), bin.size());
+            List<Sequence> taken = bin.subList(0, take);
+            sequences.addAll(taken);
+            taken.clear();
+            if (sequences.size() == size) {
+                break;
+            }
+        }
+        buffered -= sequences.size();
+        return new Batch(sequences);
+    }
+}
@@ -1,46 +1,30 @@
 package ch.ethz.harvester.gisaid;
 
+import ch.ethz.harvester.core.ToolProcessPool;
 import ch.ethz.harvester.core.Utils;
+import ch.ethz.harvester.general.AminoAcidMutationFinder;
 import ch.ethz.harvester.general.NucleotideMutationFinder;
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
-import org.javatuples.Pair;
 
 import java.io.*;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.sql.Date;
 import java.sql.*;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.function.Consumer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 public class BatchProcessingWorker {
 
-    // Code based on https://www.baeldung.com/run-shell-command-in-java
-    // and https://github.com/eugenp/tutorials/tree/master/core-java-modules/core-java-os (MIT license)
-    private static class StreamGobbler implements Runnable {
-        private InputStream inputStream;
-        private Consumer<String> consumer;
-
-        public StreamGobbler(InputStream inputStream, Consumer<String> consumer) {
-            this.inputStream = inputStream;
-            this.consumer = consumer;
-        }
-
-        @Override
-        public void run() {
-            new BufferedReader(new InputStreamReader(inputStream)).lines()
-                    .forEach(consumer);
-        }
-    }
-
+    private static final Duration MAFFT_TIMEOUT = Duration.ofMinutes(20);
+    private static final Duration MAFFT_MIN_TIMEOUT = Duration.ofMinutes(1);
+    private static final int MAFFT_RETRY_BUDGET_FACTOR = 3;
 
     private final int id;
     private final Path workDir;
@@ -48,8 +32,16 @@ public class BatchProcessingWorker {
     private final ComboPooledDataSource databasePool;
     private final ImportMode importMode;
     private final boolean updateSubmitterInformation;
-    private final NucleotideMutationFinder nucleotideMutationFinder;
-    private final EthzParser ethzParser;
+    private final Aligner aligner;
+    private final ReferenceAligner referenceAligner;
+    private final AminoAcidCaller aminoAcidCaller;
+    private final AminoAcidMutationFinder aminoAcidMutationFinder;
+    private final ToolProcessPool mafftPool;
+    private final ToolProcessPool nextcladePool;
+    private final AnalysisCache analysisCache;
+    private final InFlightAnalyses inFlightAnalyses;
+    private final CpuBudget cpuBudget;
+    private final int maxThreadsPerTool;
     private final SubmitterInformationFetcher submitterInformationFetcher = new SubmitterInformationFetcher();
 
     /**
@@ -57,6 +49,14 @@ public class BatchProcessingWorker {
      * @param id An unique identifier for the worker
      * @param workDir An empty work directory for the worker
      * @param referenceFasta The path to the fasta file containing the reference
+     * @param aligner The tool that aligns the sequences with the reference
+     * @param aminoAcidCaller The tool that finds the amino acid mutations
+     * @param mafftPool The shared pool that runs mafft
+     * @param nextcladePool The shared pool that runs Nextclade
+     * @param analysisCache The cache for the results of mafft and Nextclade. It may be null.
+     * @param inFlightAnalyses The registry of the sequences that the workers are analyzing at the moment
+     * @param cpuBudget The shared budget that sizes the number of threads of mafft and Nextclade
+     * @param maxThreadsPerTool The maximal number of threads of a mafft or Nextclade process
      */
     public BatchProcessingWorker(
             int id,
@@ -65,7 +65,14 @@ public class BatchProcessingWorker {
             ComboPooledDataSource databasePool,
             ImportMode importMode,
             boolean updateSubmitterInformation,
-            NucleotideMutationFinder nucleotideMutationFinder
+            Aligner aligner,
+            AminoAcidCaller aminoAcidCaller,
+            ToolProcessPool mafftPool,
+            ToolProcessPool nextcladePool,
+            AnalysisCache analysisCache,
+            InFlightAnalyses inFlightAnalyses,
+            CpuBudget cpuBudget,
+            int maxThreadsPerTool
     ) {
         this.databasePool = databasePool;
         this.id = id;
@@ -73,11 +80,24 @@ public class BatchProcessingWorker {
         this.referenceFasta = referenceFasta;
         this.importMode = importMode;
         this.updateSubmitterInformation = updateSubmitterInformation;
-        this.nucleotideMutationFinder = nucleotideMutationFinder;
-        this.ethzParser = new EthzParser();
+        this.aligner = aligner;
+        this.referenceAligner = aligner == Aligner.JAVA ? new ReferenceAligner() : null;
+        this.aminoAcidCaller = aminoAcidCaller;
+        this.aminoAcidMutationFinder = aminoAcidCaller == AminoAcidCaller.JAVA
+                ? new AminoAcidMutationFinder(Reference.REFERENCE, AminoAcidMutationFinder.loadGeneMap()) : null;
+        this.mafftPool = mafftPool;
+        this.nextcladePool = nextcladePool;
+        this.analysisCache = analysisCache;
+        this.inFlightAnalyses = inFlightAnalyses;
+        this.cpuBudget = cpuBudget;
+        this.maxThreadsPerTool = maxThreadsPerTool;
     }
 
-    public BatchReport run(Batch batch) throws Exception {
+    /**
+     * Determines the changes, aligns the new and changed sequences and runs Nextclade. The batch is not written into
+     * the database: this is done by the {@link DatabaseWriter}.
+     */
+    public AnalyzedBatch analyze(Batch batch) throws Exception {
         try {
             int batchSize = batch.getSequences().size();
             System.out.println("[" + id + "] Received a batch");
@@ -118,81 +138,77 @@ public class BatchProcessingWorker {
                     .collect(Collectors.toList());
 
             System.out.println("[" + id + "] " + sequencePreprocessingNeeded.size() + " out of " + batchSize + " sequences are new or have changed sequence.");
-            if (!sequencePreprocessingNeeded.isEmpty()) {
-                // Write the batch to a fasta file
-                Path originalSeqFastaPath = workDir.resolve("original.fasta");
-                System.out.println("[" + id + "] Write fasta to disk..");
-                Files.writeString(originalSeqFastaPath, formatSeqAsFasta(sequencePreprocessingNeeded));
-
-                // Run mafft to align the sequences with our reference sequence
-                System.out.println("[" + id + "] Run mafft..");
-                // TODO For unknown reasons, mafft is sometimes failing. For now, we will allow a few failed batches.
-                try {
-                    runMafft(batch, originalSeqFastaPath);
-                } catch (RuntimeException e) {
-                    System.out.println("[" + id + "] mafft is struggling: " + e.getMessage());
-                    return new BatchReport().setFailedEntries(batch.getSequences().size());
+            // Group the identical sequences: only one representative per group is analyzed and its results are copied
+            // to the other members.
+            Map<String, List<Sequence>> groups = new LinkedHashMap<>();
+            for (Sequence sequence : sequencePreprocessingNeeded) {
+                groups.computeIfAbsent(contentKey(sequence), k -> new ArrayList<>()).add(sequence);
+            }
+            List<Sequence> representatives = groups.values().stream()
+                    .map(group -> group.get(0))
+                    .collect(Collectors.toList());
+            int duplicateEntries = sequencePreprocessingNeeded.size() - representatives.size();
+
+            // Take the results of the sequences that were already analyzed from the cache
+            List<Sequence> notCached = representatives;
+            if (analysisCache != null && !representatives.isEmpty()) {
+                notCached = representatives.stream()
+                        .filter(s -> !analysisCache.load(s))
+                        .collect(Collectors.toList());
+            }
+            int cachedEntries = representatives.size() - notCached.size();
+
+            // Sequences that another worker is analyzing at the moment are not analyzed twice.
+            List<Sequence> toAnalyze = new ArrayList<>();
+            Map<Sequence, CompletableFuture<Sequence>> analyzedElsewhere = new LinkedHashMap<>();
+            for (Sequence sequence : notCached) {
+                CompletableFuture<Sequence> result = inFlightAnalyses.claim(contentKey(sequence));
+                if (result == null) {
+                    toAnalyze.add(sequence);
+                } else {
+                    analyzedElsewhere.put(sequence, result);
                 }
-
-                // Run Nextclade for the amino acid mutations and the QC metrics
-                System.out.println("[" + id + "] Run Nextclade..");
-                runNextclade(batch, originalSeqFastaPath);
-
-                // Extract the nucleotide mutations
-                for (Sequence sequence : batch.getSequences()) {
-                    if (sequence.getPangolinLineage() != null && !sequence.getPangolinLineage().equals("None")
-                            && sequence.getSeqAligned() != null) {
-                        List<NucleotideMutationFinder.Mutation> nucMutations
-                                = nucleotideMutationFinder.getMutations(sequence.getSeqAligned());
-                        sequence.setNucleotideMutations(nucMutations);
-                    }
+            }
+            System.out.println("[" + id + "] " + duplicateEntries + " duplicates, " + cachedEntries + " cached, "
+                    + analyzedElsewhere.size() + " analyzed by other workers, " + toAnalyze.size() + " to analyze.");
+
+            boolean analysisSucceeded = false;
+            try {
+                analysisSucceeded = analyzeSequences(toAnalyze, weirdEntryReports);
+            } finally {
+                for (Sequence sequence : toAnalyze) {
+                    inFlightAnalyses.complete(contentKey(sequence), analysisSucceeded ? sequence : null);
                 }
             }
-
-            // Write the data into the database
-            System.out.println("[" + id + "] Write to database..");
-            writeToDatabase(batch);
-
-            // If the sequence is submitted by us, update the sequence_identifier table.
-            Pair<List<WeirdEntryReport>, Integer> updateSequenceIdentifierReport = updateSequenceIdentifier(batch);
-            weirdEntryReports.addAll(updateSequenceIdentifierReport.getValue0());
-            EthzParser ethzParser = new EthzParser();
-            int addedEntriesFromUs = 0;
-            for (Sequence sequence : batch.getSequences()) {
-                if (sequence.getImportMode() == ImportMode.APPEND) {
-                    MaybeResult<Boolean> isOursMaybe = ethzParser.isOurs(sequence);
-                    if (isOursMaybe.isGoodEnough() && isOursMaybe.getResult()) {
-                        addedEntriesFromUs++;
-                    }
+            if (!analysisSucceeded) {
+                return AnalyzedBatch.failed(new BatchReport().setFailedEntries(batch.getSequences().size()));
+            }
+            List<Sequence> failedElsewhere = new ArrayList<>();
+            for (Map.Entry<Sequence, CompletableFuture<Sequence>> entry : analyzedElsewhere.entrySet()) {
+                Sequence result = entry.getValue().get();
+                if (result != null) {
+                    entry.getKey().copyAnalysisFrom(result);
+                } else {
+                    failedElsewhere.add(entry.getKey());
                 }
             }
-
-            // Create the batch report
-            int addedEntries = 0;
-            int updatedTotalEntries = 0;
-            int updatedMetadataEntries = 0;
-            int updatedSequenceEntries = 0;
-            for (Sequence sequence : batch.getSequences()) {
-                if (sequence.getImportMode() == ImportMode.APPEND) {
-                    addedEntries++;
-                } else if (sequence.getImportMode() == ImportMode.UPDATE) {
-                    updatedTotalEntries++;
-                    if (sequence.isMetadataChanged()) {
-                        updatedMetadataEntries++;
-                    }
-                    if (sequence.isSequenceChanged()) {
-                        updatedSequenceEntries++;
-                    }
+            if (!failedElsewhere.isEmpty() && !analyzeSequences(failedElsewhere, weirdEntryReports)) {
+                return AnalyzedBatch.failed(new BatchReport().setFailedEntries(batch.getSequences().size()));
+            }
+            for (List<Sequence> group : groups.values()) {
+                for (int i = 1; i < group.size(); i++) {
+                    group.get(i).copyAnalysisFrom(group.get(0));
                 }
             }
-            System.out.println("[" + id + "] Everything successful with no failed sequences");
-            return new BatchReport()
-                    .setAddedEntries(addedEntries)
-                    .setUpdatedTotalEntries(updatedTotalEntries)
-                    .setUpdatedMetadataEntries(updatedMetadataEntries)
-                    .setUpdatedSequenceEntries(updatedSequenceEntries)
-                    .setAddedEntriesFromUs(addedEntriesFromUs)
-                    .setWeirdEntryReports(weirdEntryReports);
+
+            System.out.println("[" + id + "] Analysis finished");
+            return new AnalyzedBatch(batch, sequencePreprocessingNeeded, new BatchReport()
+                    .setAnalysisNeededEntries(sequencePreprocessingNeeded.size())
+                    .setDuplicateEntries(duplicateEntries)
+                    .setAnalyzedElsewhereEntries(analyzedElsewhere.size() - failedElsewhere.size())
+                    .setCachedEntries(cachedEntries)
+                    .setAnalyzedEntries(toAnalyze.size() + failedElsewhere.size())
+                    .setWeirdEntryReports(weirdEntryReports));
         } finally {
             // Clean up the work directory
             try (DirectoryStream<Path> directory = Files.newDirectoryStream(workDir)) {
@@ -206,10 +222,25 @@ public class BatchProcessingWorker {
 
 
     /**
-     * Fetch the data of the sequences from the database and compare them with the downloaded data.
-     * If an entry is already in the database and has not changed, remove it from the batch. If an entry is already
-     * in the database and has changed, mark the entry as an update candidate. The method also checks whether the
-     * metadata or the sequence was changed.
+     * Extracts the nucleotide mutations of the analyzed sequences. This is done in a separate stage so that the
+     * analysis workers can continue with the next batch.
+     */
+    public static void findNucleotideMutations(AnalyzedBatch analyzedBatch, NucleotideMutationFinder finder) {
+        for (Sequence sequence : analyzedBatch.getAnalyzedSequences()) {
+            if (sequence.getPangolinLineage() != null && !sequence.getPangolinLineage().equals("None")
+                    && sequence.getSeqAligned() != null) {
+                List<NucleotideMutationFinder.Mutation> nucMutations = finder.getMutations(sequence.getSeqAligned());
+                sequence.setNucleotideMutations(nucMutations);
+            }
+        }
+    }
+
+
+    /**
+     * Fetch the fingerprints of the sequences from the database and compare them with the fingerprints of the
+     * downloaded data. If an entry is already in the database and has not changed, remove it from the batch. If an
+     * entry is already in the database and has changed, mark the entry as an update candidate. The method also checks
+     * whether the metadata or the sequence was changed.
      */
     private void determineChangeSet(Batch batch) throws SQLException {
         Map<String, Sequence> sequenceMap = new HashMap<>();
@@ -220,26 +251,11 @@ public class BatchProcessingWorker {
         String fetchSql = """
             select
               gisaid_epi_isl,
-              strain,
-              virus,
-              date,
-              date_original,
-              country,
-              region_original,
-              country_original,
-              division,
-              location,
-              host,
-              age,
-              sex,
-              pangolin_lineage,
-              gisaid_clade,
+              metadata_hash,
+              seq_original_hash,
               originating_lab,
               submitting_lab,
-              authors,
-              date_submitted,
-              sampling_strategy,
-              seq_original
+              authors
             from gisaid_api_sequence
             where gisaid_epi_isl = any(?);
         """;
@@ -259,22 +275,9 @@ public class BatchProcessingWorker {
                         }
                         sequence.setMetadataChanged(true);
                         sequence.setSequenceChanged(true);
-                        if (Objects.equals(sequence.getStrain(), rs.getString("strain"))
-                                && Objects.equals(sequence.getVirus(), rs.getString("virus"))
-                                && Objects.equals(sequence.getDate(), rs.getDate("date") != null ? rs.getDate("date").toLocalDate() : null)
-                                && Objects.equals(sequence.getDateOriginal(), rs.getString("date_original"))
-                                && Objects.equals(sequence.getCountry(), rs.getString("country"))
-                                && Objects.equals(sequence.getRegionOriginal(), rs.getString("region_original"))
-                                && Objects.equals(sequence.getCountryOriginal(), rs.getString("country_original"))
-                                && Objects.equals(sequence.getDivision(), rs.getString("division"))
-                                && Objects.equals(sequence.getLocation(), rs.getString("location"))
-                                && Objects.equals(sequence.getHost(), rs.getString("host"))
-                                && Objects.equals(sequence.getAge(), rs.getObject("age"))
-                                && Objects.equals(sequence.getSex(), rs.getString("sex"))
-                                && Objects.equals(sequence.getPangolinLineage(), rs.getString("pangolin_lineage"))
-                                && Objects.equals(sequence.getGisaidClade(), rs.getString("gisaid_clade"))
-                                && Objects.equals(sequence.getDateSubmitted(), rs.getDate("date_submitted") != null ? rs.getDate("date_submitted").toLocalDate() : null)
-                                && Objects.equals(sequence.getSamplingStrategy(), rs.getString("sampling_strategy"))
+                        // Entries that were written before the fingerprints were introduced have no metadata_hash.
+                        // They are counted as changed and get the fingerprint with the metadata update.
+                        if (Objects.equals(sequence.getMetadataHash(), rs.getString("metadata_hash"))
                                 // Compare submitter information if it has been fetched
                                 && (sequence.getSubmitterInformation() == null || (
                                         Objects.equals(sequence.getSubmitterInformation().getOriginatingLab(), rs.getString("originating_lab"))
@@ -284,7 +287,7 @@ public class BatchProcessingWorker {
                         ) {
                             sequence.setMetadataChanged(false);
                         }
-                        if (Objects.equals(sequence.getSeqOriginal(), rs.getString("seq_original"))) {
+                        if (Objects.equals(sequence.getSeqOriginalHash(), rs.getString("seq_original_hash"))) {
                             sequence.setSequenceChanged(false);
                         }
                         if (!sequence.isMetadataChanged() && !sequence.isSequenceChanged()) {
@@ -297,108 +300,260 @@ public class BatchProcessingWorker {
     }
 
 
-    private String formatSeqAsFasta(List<Sequence> sequences) {
-        StringBuilder fasta = new StringBuilder("");
+    private void writeSeqAsFasta(List<Sequence> sequences, Writer writer) throws IOException {
         for (Sequence sequence : sequences) {
-            fasta
+            writer
                     .append(">")
                     .append(sequence.getGisaidEpiIsl())
                     .append("\n")
                     .append(sequence.getSeqOriginal())
                     .append("\n\n");
         }
-        return fasta.toString();
     }
 
 
-    private Map<String, String> parseFasta(List<String> lines) {
-        Map<String, String> sequences = new HashMap<>();
+    /**
+     * Reads a fasta file line by line and passes each entry to the consumer as soon as it is complete.
+     */
+    private void readFasta(BufferedReader reader, BiConsumer<String, String> consumer) throws IOException {
         String name = null;
-        StringBuilder seq = null;
-        for (String line : lines) {
+        StringBuilder seq = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
             if (line.isBlank()) {
                 continue;
             }
             if (line.startsWith(">")) {
                 if (name != null) {
-                    sequences.put(name, seq.toString());
+                    consumer.accept(name, seq.toString());
                 }
                 name = line.substring(1);
-                seq = new StringBuilder();
+                seq.setLength(0);
             } else {
                 seq.append(line);
             }
         }
         if (name != null) {
-            sequences.put(name, seq.toString());
+            consumer.accept(name, seq.toString());
         }
-        return sequences;
     }
 
 
-    private void runMafft(Batch batch, Path originalSeqFastaPath) throws IOException, InterruptedException {
-        String mafftCommand = "mafft" +
-                " --addfragments " + originalSeqFastaPath.toAbsolutePath() +
-                " --keeplength" +
-                " --auto" +
-                " --thread 1" +
-                " " + referenceFasta.toAbsolutePath();
-        Process mafftProcess = Runtime.getRuntime().exec(mafftCommand);
-        List<String> mafftInputLines = new ArrayList<>();
-        StreamGobbler mafftGobbler = new StreamGobbler(mafftProcess.getInputStream(), mafftInputLines::add);
-        ExecutorService inputStreamReaderService = Executors.newSingleThreadExecutor();
-        inputStreamReaderService.submit(mafftGobbler);
-        boolean exited = mafftProcess.waitFor(20, TimeUnit.MINUTES);
-        if (!exited) {
-            mafftProcess.destroyForcibly();
-            throw new RuntimeException("mafft timed out (after 20 minutes)");
+    /**
+     * Runs mafft. If it fails, the sequences are split into two halves that are aligned separately (recursively) with
+     * half of the timeout. A sequence that still fails on its own stays unaligned and is reported. The retries may
+     * re-submit at most $retryBudget sequences; bisecting a batch with a single bad sequence needs around twice the
+     * batch size.
+     *
+     * @param retryBudget The number of sequences that may still be re-submitted (shared by the recursive calls)
+     * @return False if the retry budget is exhausted
+     */
+    private boolean runMafftWithBisection(
+            List<Sequence> sequences,
+            Duration timeout,
+            int[] retryBudget,
+            List<WeirdEntryReport> weirdEntryReports
+    ) throws InterruptedException {
+        try {
+            runMafft(sequences, timeout);
+            return true;
+        } catch (RuntimeException | IOException e) {
+            System.out.println("[" + id + "] mafft is struggling with " + sequences.size() + " sequences: "
+                    + e.getMessage());
         }
-        if (mafftProcess.exitValue() != 0) {
-            throw new RuntimeException("mafft exited with code " + mafftProcess.exitValue());
+        if (sequences.size() == 1) {
+            Sequence sequence = sequences.get(0);
+            sequence.setSeqAligned(null);
+            weirdEntryReports.add(new WeirdEntryReport(sequence.getGisaidEpiIsl(),
+                    "ch.ethz.harvester.gisaid.BatchProcessingWorker::runMafftWithBisection",
+                    "mafft failed to align the sequence."));
+            return true;
         }
-        inputStreamReaderService.shutdown();
-        boolean inputStreamReaderTerminated = inputStreamReaderService.awaitTermination(5, TimeUnit.SECONDS);
-        if (!inputStreamReaderTerminated) {
-            throw new RuntimeException("The input stream reader did not terminate after executing mafft!");
+        if (retryBudget[0] < sequences.size()) {
+            System.out.println("[" + id + "] The retry budget for mafft is exhausted.");
+            return false;
         }
+        retryBudget[0] -= sequences.size();
+        Duration halfTimeout = timeout.dividedBy(2).compareTo(MAFFT_MIN_TIMEOUT) > 0
+                ? timeout.dividedBy(2) : MAFFT_MIN_TIMEOUT;
+        int middle = sequences.size() / 2;
+        return runMafftWithBisection(sequences.subList(0, middle), halfTimeout, retryBudget, weirdEntryReports)
+                && runMafftWithBisection(sequences.subList(middle, sequences.size()), halfTimeout, retryBudget,
+                weirdEntryReports);
+    }
+
+
+    private void runMafft(List<Sequence> sequences, Duration timeout) throws IOException, InterruptedException {
         Map<String, Sequence> sequenceMap = new HashMap<>();
-        for (Sequence sequence : batch.getSequences()) {
+        for (Sequence sequence : sequences) {
             sequenceMap.put(sequence.getGisaidEpiIsl(), sequence);
         }
-        Map<String, String> alignedSeqsMap = parseFasta(mafftInputLines);
-        for (Map.Entry<String, String> entry : alignedSeqsMap.entrySet()) {
-            String id = entry.getKey();
-            String alignedSeq = entry.getValue();
-            if (sequenceMap.containsKey(id)) {
-                sequenceMap.get(id).setSeqAligned(alignedSeq);
+        // The CPU tokens are only taken when a process slot is free so that waiting calls do not hold them.
+        try (ToolProcessPool.Permit permit = mafftPool.acquire();
+             CpuBudget.Lease lease = cpuBudget.acquire("mafft", 1, maxThreadsPerTool)) {
+            List<String> mafftCommand = List.of(
+                    "mafft",
+                    "--addfragments", "/dev/stdin",
+                    "--keeplength",
+                    "--auto",
+                    "--thread", String.valueOf(lease.getThreads()),
+                    referenceFasta.toAbsolutePath().toString()
+            );
+            permit.run(
+                    mafftCommand,
+                    stdin -> writeSeqAsFasta(sequences, stdin),
+                    stdout -> readFasta(stdout, (id, alignedSeq) -> {
+                        if (sequenceMap.containsKey(id)) {
+                            sequenceMap.get(id).setSeqAligned(alignedSeq);
+                        }
+                    }),
+                    timeout
+            );
+        }
+    }
+
+
+    /**
+     * Aligns the sequences with {@link ReferenceAligner}. The output has the same format as the output of mafft.
+     *
+     * @return Reports for the sequences that could not be aligned
+     */
+    private List<WeirdEntryReport> alignInJvm(List<Sequence> sequences) throws InterruptedException {
+        List<WeirdEntryReport> weirdEntryReports = new ArrayList<>();
+        CpuBudget.Lease lease = cpuBudget.acquire("align", 1, 1);
+        try {
+            for (Sequence sequence : sequences) {
+                String alignedSeq = referenceAligner.align(sequence.getSeqOriginal());
+                if (alignedSeq == null) {
+                    weirdEntryReports.add(new WeirdEntryReport(sequence.getGisaidEpiIsl(),
+                            "ch.ethz.harvester.gisaid.BatchProcessingWorker::alignInJvm",
+                            "The sequence could not be aligned with the reference."));
+                }
+                sequence.setSeqAligned(alignedSeq);
+            }
+        } finally {
+            lease.close();
+        }
+        return weirdEntryReports;
+    }
+
+
+    /**
+     * Aligns the sequences and runs Nextclade. The results are stored in the analysis cache.
+     *
+     * @return False if mafft failed
+     */
+    private boolean analyzeSequences(List<Sequence> sequences, List<WeirdEntryReport> weirdEntryReports)
+            throws IOException, InterruptedException {
+        if (sequences.isEmpty()) {
+            return true;
+        }
+
+        // Align the sequences with our reference sequence
+        if (aligner == Aligner.JAVA) {
+            System.out.println("[" + id + "] Align..");
+            weirdEntryReports.addAll(alignInJvm(sequences));
+        } else {
+            System.out.println("[" + id + "] Run mafft..");
+            // For unknown reasons, mafft is sometimes failing. Usually, a single sequence is responsible.
+            int[] retryBudget = {MAFFT_RETRY_BUDGET_FACTOR * sequences.size()};
+            if (!runMafftWithBisection(sequences, MAFFT_TIMEOUT, retryBudget, weirdEntryReports)) {
+                return false;
             }
         }
+
+        if (aminoAcidCaller == AminoAcidCaller.JAVA) {
+            System.out.println("[" + id + "] Find amino acid mutations..");
+            findAminoAcidMutations(sequences);
+        } else {
+            // Run Nextclade for the amino acid mutations and the QC metrics
+            System.out.println("[" + id + "] Run Nextclade..");
+            runNextclade(sequences);
+        }
+
+        if (analysisCache != null) {
+            storeInAnalysisCache(sequences);
+        }
+        return true;
+    }
+
+
+    private static String contentKey(Sequence sequence) {
+        return sequence.getSeqOriginalHash() != null
+                ? sequence.getSeqOriginalHash() : SequenceFingerprints.sequence(sequence.getSeqOriginal());
     }
 
 
-    private void runNextclade(Batch batch, Path originalSeqFastaPath) throws IOException, InterruptedException {
-        // Execute Nextclade
-        Path nextcladeCsvPath = workDir.resolve("nextclade.csv");
-        String nextcladeCommand = "nextclade" +
-                " --jobs=4" +
-                " --input-fasta " + originalSeqFastaPath.toAbsolutePath() +
-                " --output-csv " + nextcladeCsvPath.toAbsolutePath();
-        Process nextcladeProcess = Runtime.getRuntime().exec(nextcladeCommand);
-        boolean exited = nextcladeProcess.waitFor(20, TimeUnit.MINUTES);
-        if (!exited) {
-            nextcladeProcess.destroyForcibly();
-            throw new RuntimeException("Nextclade timed out (after 20 minutes)");
+    /**
+     * Stores the sequences that were successfully aligned in the analysis cache. A failure to write into the cache
+     * does not fail the batch.
+     */
+    private void storeInAnalysisCache(List<Sequence> sequences) {
+        for (Sequence sequence : sequences) {
+            if (sequence.getSeqAligned() == null) {
+                continue;
+            }
+            try {
+                analysisCache.store(sequence);
+            } catch (IOException e) {
+                System.out.println("[" + id + "] Cannot write into the analysis cache: " + e.getMessage());
+                return;
+            }
         }
-        if (nextcladeProcess.exitValue() != 0) {
-            throw new RuntimeException("Nextclade exited with code " + nextcladeProcess.exitValue());
+    }
+
+
+    /**
+     * Finds the amino acid mutations with {@link AminoAcidMutationFinder}. They are stored in the same field as the
+     * mutations of Nextclade.
+     */
+    private void findAminoAcidMutations(List<Sequence> sequences) {
+        for (Sequence sequence : sequences) {
+            if (sequence.getSeqAligned() != null) {
+                sequence.setNextcladeMutations(aminoAcidMutationFinder.findMutations(sequence.getSeqAligned()));
+            }
         }
-        // Read Nextclade results from the generated csv file
-        Reader nextcladeReader = new FileReader(nextcladeCsvPath.toFile());
-        CSVParser csvRecords = CSVFormat.DEFAULT.withDelimiter(';').withFirstRecordAsHeader().parse(nextcladeReader);
+    }
+
+
+    private void runNextclade(List<Sequence> sequences) throws IOException, InterruptedException {
         Map<String, Sequence> sequenceMap = new HashMap<>();
-        for (Sequence sequence : batch.getSequences()) {
+        for (Sequence sequence : sequences) {
             sequenceMap.put(sequence.getGisaidEpiIsl(), sequence);
         }
+        try (ToolProcessPool.Permit permit = nextcladePool.acquire();
+             CpuBudget.Lease lease = cpuBudget.acquire("nextclade", 1, maxThreadsPerTool)) {
+            List<String> nextcladeCommand = List.of(
+                    "nextclade",
+                    "--jobs=" + lease.getThreads(),
+                    "--input-fasta", "/dev/stdin",
+                    "--output-csv", "/dev/stdout"
+            );
+            permit.run(
+                    nextcladeCommand,
+                    stdin -> writeSeqAsFasta(sequences, stdin),
+                    stdout -> readNextcladeCsv(stdout, sequenceMap)
+            );
+        }
+    }
+
+
+    /**
+     * Reads the Nextclade results record by record. Log messages that Nextclade writes to the stdout before the csv
+     * header are skipped.
+     */
+    private void readNextcladeCsv(BufferedReader stdout, Map<String, Sequence> sequenceMap) throws IOException {
+        String headerLine;
+        do {
+            headerLine = stdout.readLine();
+            if (headerLine == null) {
+                throw new RuntimeException("Nextclade did not write any results.");
+            }
+        } while (!headerLine.replace("\"", "").startsWith("seqName;"));
+        String[] header = Arrays.stream(headerLine.split(";"))
+                .map(s -> s.replace("\"", ""))
+                .toArray(String[]::new);
+        CSVParser csvRecords = CSVFormat.DEFAULT.withDelimiter(';').withHeader(header).parse(stdout);
         for (CSVRecord csvRecord : csvRecords) {
             String[] substitutions = csvRecord.get("aaSubstitutions").split(",");
             String[] deletions = csvRecord.get("aaDeletions").split(",");
@@ -439,277 +594,4 @@ public class BatchProcessingWorker {
         }
     }
 
-
-    private void writeToDatabase(Batch batch) throws SQLException {
-        // If APPEND mode: Insert everything
-        // If UPDATE mode + only metadata changed: update metadata and "updated_at" timestamp
-        // If UPDATE mode + sequence changed: delete the old entry (including mutations) and re-insert everything
-        List<Sequence> toUpdateMetadata = new ArrayList<>();
-        List<Sequence> toDelete = new ArrayList<>();
-        List<Sequence> toInsert = new ArrayList<>();
-        for (Sequence sequence : batch.getSequences()) {
-            if (sequence.getImportMode() == ImportMode.APPEND) {
-                toInsert.add(sequence);
-            } else if (sequence.getImportMode() == ImportMode.UPDATE) {
-                if (!sequence.isSequenceChanged()) {
-                    toUpdateMetadata.add(sequence);
-                } else {
-                    toDelete.add(sequence);
-                    toInsert.add(sequence);
-                }
-            }
-        }
-        try (Connection conn = databasePool.getConnection()) {
-            conn.setAutoCommit(false);
-
-            // 1. Update the metadata
-            String updateSequenceSql = """
-                update gisaid_api_sequence
-                set
-                  updated_at = now(),
-                  strain = ?,
-                  virus = ?,
-                  date = ?,
-                  date_original = ?,
-                  country = ?,
-                  region_original = ?,
-                  country_original = ?,
-                  division = ?,
-                  location = ?,
-                  host = ?,
-                  age = ?,
-                  sex = ?,
-                  pangolin_lineage = ?,
-                  gisaid_clade = ?,
-                  originating_lab = coalesce(?, originating_lab),
-                  submitting_lab = coalesce(?, submitting_lab),
-                  authors = coalesce(?, authors),
-                  date_submitted = ?,
-                  sampling_strategy = ?
-                where gisaid_epi_isl = ?;
-            """;
-            try (PreparedStatement statement = conn.prepareStatement(updateSequenceSql)) {
-                for (Sequence sequence : toUpdateMetadata) {
-                    SubmitterInformation si = sequence.getSubmitterInformation();
-                    statement.setString(1, sequence.getStrain());
-                    statement.setString(2, sequence.getVirus());
-                    statement.setDate(3, sequence.getDate() != null ? Date.valueOf(sequence.getDate()) : null);
-                    statement.setString(4, sequence.getDateOriginal());
-                    statement.setString(5, sequence.getCountry());
-                    statement.setString(6, sequence.getRegionOriginal());
-                    statement.setString(7, sequence.getCountryOriginal());
-                    statement.setString(8, sequence.getDivision());
-                    statement.setString(9, sequence.getLocation());
-                    statement.setString(10, sequence.getHost());
-                    statement.setObject(11, sequence.getAge());
-                    statement.setString(12, sequence.getSex());
-                    statement.setString(13, sequence.getPangolinLineage());
-                    statement.setString(14, sequence.getGisaidClade());
-                    statement.setString(15, si != null ? si.getOriginatingLab() : null);
-                    statement.setString(16, si != null ? si.getSubmittingLab() : null);
-                    statement.setString(17, si != null ? si.getAuthors() : null);
-                    statement.setDate(18, sequence.getDateSubmitted() != null ? Date.valueOf(sequence.getDateSubmitted()) : null);
-                    statement.setString(19, sequence.getSamplingStrategy());
-                    statement.setString(20, sequence.getGisaidEpiIsl());
-                    statement.addBatch();
-                }
-                statement.executeBatch();
-                statement.clearBatch();
-            }
-
-            // 2. Delete sequences
-            String deleteSequenceSql = """
-                delete from gisaid_api_sequence
-                where gisaid_epi_isl = ?;
-            """;
-            try (PreparedStatement statement = conn.prepareStatement(deleteSequenceSql)) {
-                for (Sequence sequence : toDelete) {
-                    statement.setString(1, sequence.getGisaidEpiIsl());
-                    statement.addBatch();
-                }
-                statement.executeBatch();
-                statement.clearBatch();
-            }
-
-            // 3. Insert into gisaid_api_sequence
-            String insertSequenceSql = """
-                insert into gisaid_api_sequence (
-                  updated_at,
-                  gisaid_epi_isl, strain, virus, date, date_original, country, region_original, country_original,
-                  division, location, host, age, sex, pangolin_lineage, gisaid_clade, originating_lab, submitting_lab, authors,
-                  date_submitted, sampling_strategy,  seq_original, seq_aligned, nextclade_clade,
-                  nextclade_qc_overall_score, nextclade_qc_overall_status, nextclade_total_gaps, nextclade_total_insertions,
-                  nextclade_total_missing, nextclade_total_mutations, nextclade_total_non_acgtns,
-                  nextclade_total_pcr_primer_changes, nextclade_alignment_start, nextclade_alignment_end,
-                  nextclade_alignment_score, nextclade_qc_missing_data_score, nextclade_qc_missing_data_status,
-                  nextclade_qc_missing_data_total, nextclade_qc_mixed_sites_score, nextclade_qc_mixed_sites_status,
-                  nextclade_qc_mixed_sites_total, nextclade_qc_private_mutations_cutoff, nextclade_qc_private_mutations_excess,
-                  nextclade_qc_private_mutations_score, nextclade_qc_private_mutations_status, nextclade_qc_private_mutations_total,
-                  nextclade_qc_snp_clusters_clustered, nextclade_qc_snp_clusters_score, nextclade_qc_snp_clusters_status,
-                  nextclade_qc_snp_clusters_total, nextclade_errors
-                )
-                values (
-                  now(),
-                  ?, ?, ?, ?, ?, ?, ?,
-                  ?, ?, ?, ?, ?, ?, ?,
-                  ?, ?, ?, ?, ?, ?, ?,
-                  ?, ?, ?, ?, ?, ?, ?,
-                  ?, ?, ?, ?, ?, ?, ?,
-                  ?, ?, ?, ?, ?, ?, ?,
-                  ?, ?, ?, ?, ?, ?, ?, ?
-                );
-            """;
-            try (PreparedStatement insertStatement = conn.prepareStatement(insertSequenceSql)) {
-                for (Sequence sequence : toInsert) {
-                    SubmitterInformation si = sequence.getSubmitterInformation();
-                    insertStatement.setString(1, sequence.getGisaidEpiIsl());
-                    insertStatement.setString(2, sequence.getStrain());
-                    insertStatement.setString(3, sequence.getVirus());
-                    insertStatement.setDate(4, sequence.getDate() != null ? Date.valueOf(sequence.getDate()) : null);
-                    insertStatement.setString(5, sequence.getDateOriginal());
-                    insertStatement.setString(6, sequence.getCountry());
-                    insertStatement.setString(7, sequence.getRegionOriginal());
-                    insertStatement.setString(8, sequence.getCountryOriginal());
-                    insertStatement.setString(9, sequence.getDivision());
-                    insertStatement.setString(10, sequence.getLocation());
-                    insertStatement.setString(11, sequence.getHost());
-                    insertStatement.setObject(12, sequence.getAge());
-                    insertStatement.setString(13, sequence.getSex());
-                    insertStatement.setString(14, sequence.getPangolinLineage());
-                    insertStatement.setString(15, sequence.getGisaidClade());
-                    insertStatement.setString(16, si != null ? si.getOriginatingLab() : null);
-                    insertStatement.setString(17, si != null ? si.getSubmittingLab() : null);
-                    insertStatement.setString(18, si != null ? si.getAuthors() : null);
-                    insertStatement.setDate(19, sequence.getDateSubmitted() != null ? Date.valueOf(sequence.getDateSubmitted()) : null);
-                    insertStatement.setString(20, sequence.getSamplingStrategy());
-                    insertStatement.setString(21, sequence.getSeqOriginal());
-                    insertStatement.setString(22, sequence.getSeqAligned());
-                    insertStatement.setString(23, sequence.getNextcladeClade());
-                    insertStatement.setObject(24, sequence.getNextcladeQcOverallScore());
-                    insertStatement.setObject(25, sequence.getNextcladeQcOverallStatus());
-                    insertStatement.setObject(26, sequence.getNextcladeTotalGaps());
-                    insertStatement.setObject(27, sequence.getNextcladeTotalInsertions());
-                    insertStatement.setObject(28, sequence.getNextcladeTotalMissing());
-                    insertStatement.setObject(29, sequence.getNextcladeTotalMutations());
-                    insertStatement.setObject(30, sequence.getNextcladeTotalNonAcgtns());
-                    insertStatement.setObject(31, sequence.getNextcladeTotalPcrPrimerChanges());
-                    insertStatement.setObject(32, sequence.getNextcladeAlignmentStart());
-                    insertStatement.setObject(33, sequence.getNextcladeAlignmentEnd());
-                    insertStatement.setObject(34, sequence.getNextcladeAlignmentScore());
-                    insertStatement.setObject(35, sequence.getNextcladeQcMissingDataScore());
-                    insertStatement.setString(36, sequence.getNextcladeQcMissingDataStatus());
-                    insertStatement.setObject(37, sequence.getNextcladeQcMissingDataTotal());
-                    insertStatement.setObject(38, sequence.getNextcladeQcMixedSitesScore());
-                    insertStatement.setString(39, sequence.getNextcladeQcMixedSitesStatus());
-                    insertStatement.setObject(40, sequence.getNextcladeQcMixedSitesTotal());
-                    insertStatement.setObject(41, sequence.getNextcladeQcPrivateMutationsCutoff());
-                    insertStatement.setObject(42, sequence.getNextcladeQcPrivateMutationsExcess());
-                    insertStatement.setObject(43, sequence.getNextcladeQcPrivateMutationsScore());
-                    insertStatement.setString(44, sequence.getNextcladeQcPrivateMutationsStatus());
-                    insertStatement.setObject(45, sequence.getNextcladeQcPrivateMutationsTotal());
-                    insertStatement.setString(46, sequence.getNextcladeQcSnpClustersClustered());
-                    insertStatement.setObject(47, sequence.getNextcladeQcSnpClustersScore());
-                    insertStatement.setString(48, sequence.getNextcladeQcSnpClustersStatus());
-                    insertStatement.setObject(49, sequence.getNextcladeQcSnpClustersTotal());
-                    insertStatement.setString(50, sequence.getNextcladeErrors());
-                    insertStatement.addBatch();
-                }
-                insertStatement.executeBatch();
-                insertStatement.clearBatch();
-            }
-
-            // 4. Insert into gisaid_api_sequence_nextclade_mutation_aa
-            String insertAaMutationsSql = """
-                insert into gisaid_api_sequence_nextclade_mutation_aa (gisaid_epi_isl, aa_mutation)
-                values (?, ?);
-            """;
-            try (PreparedStatement insertStatement = conn.prepareStatement(insertAaMutationsSql)) {
-                for (Sequence sequence : toInsert) {
-                    if (sequence.getNextcladeMutations() == null) {
-                        continue;
-                    }
-                    for (String mutation : sequence.getNextcladeMutations()) {
-                        insertStatement.setString(1, sequence.getGisaidEpiIsl());
-                        insertStatement.setString(2, mutation);
-                        insertStatement.addBatch();
-                    }
-                }
-                insertStatement.executeBatch();
-                insertStatement.clearBatch();
-            }
-
-            // 5. Insert into gisaid_api_sequence_mutation_nucleotide
-            String insertNucMutationsSql = """
-                insert into gisaid_api_sequence_mutation_nucleotide (gisaid_epi_isl, position, mutation)
-                values (?, ?, ?);
-            """;
-            try (PreparedStatement insertStatement = conn.prepareStatement(insertNucMutationsSql)) {
-                for (Sequence sequence : toInsert) {
-                    if (sequence.getNucleotideMutations() == null) {
-                        continue;
-                    }
-                    for (NucleotideMutationFinder.Mutation mutation : sequence.getNucleotideMutations()) {
-                        insertStatement.setString(1, sequence.getGisaidEpiIsl());
-                        insertStatement.setInt(2, mutation.getPosition());
-                        insertStatement.setString(3, String.valueOf(mutation.getMutation()));
-                        insertStatement.addBatch();
-                    }
-                }
-                insertStatement.executeBatch();
-                insertStatement.clearBatch();
-            }
-
-            // 6. Commit
-            conn.commit();
-            conn.setAutoCommit(true);
-        }
-    }
-
-
-    /**
-     * If the sequence is submitted by us, update the sequence_identifier table.
-     *
-     * @return The weirdEntryReports and the number of added sequences from us
-     */
-    private Pair<List<WeirdEntryReport>, Integer> updateSequenceIdentifier(Batch batch) throws SQLException {
-        List<WeirdEntryReport> weirdEntryReports = new ArrayList<>();
-        List<Pair<Integer, String>> ethidAndGisaidId = new ArrayList<>();
-        for (Sequence sequence : batch.getSequences()) {
-            MaybeResult<Boolean> maybeIsOurs = ethzParser.isOurs(sequence);
-            if (maybeIsOurs.getWeirdEntryReport() != null) {
-                weirdEntryReports.add(maybeIsOurs.getWeirdEntryReport());
-            }
-            if (maybeIsOurs.isGoodEnough() && maybeIsOurs.getResult()) {
-                MaybeResult<Integer> maybeEthid = ethzParser.parseEthid(sequence);
-                if (maybeEthid.getWeirdEntryReport() != null) {
-                    weirdEntryReports.add(maybeEthid.getWeirdEntryReport());
-                }
-                if (maybeEthid.isGoodEnough()) {
-                    ethidAndGisaidId.add(new Pair<>(maybeEthid.getResult(), sequence.getGisaidEpiIsl()));
-                }
-            }
-        }
-        if (!ethidAndGisaidId.isEmpty()) {
-            String updateSequenceIdentifierSql = """
-                update sequence_identifier si
-                set
-                  gisaid_id = ?
-                where
-                    si.ethid = ?
-                    and gisaid_id is null;
-            """;
-            try (Connection conn = databasePool.getConnection()) {
-                try (PreparedStatement statement = conn.prepareStatement(updateSequenceIdentifierSql)) {
-                    for (Pair<Integer, String> pair : ethidAndGisaidId) {
-                        statement.setString(1, pair.getValue1());
-                        statement.setInt(2, pair.getValue0());
-                        statement.addBatch();
-                    }
-                    statement.executeBatch();
-                }
-            }
-        }
-        return new Pair<>(weirdEntryReports, ethidAndGisaidId.size());
-    }
-
 }
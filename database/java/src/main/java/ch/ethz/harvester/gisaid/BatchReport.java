@@ -12,6 +12,15 @@ public class BatchReport {
     private int updatedSequenceEntries;
     private int addedEntriesFromUs;
     private int failedEntries;
+    // The entries that needed an alignment and Nextclade (because they are new or their sequence changed) are split
+    // into: identical to another entry of the batch + analyzed by another worker + found in the analysis cache +
+    // analyzed by mafft/Nextclade
+    private int analysisNeededEntries;
+    private int duplicateEntries;
+    private int analyzedElsewhereEntries;
+    private int cachedEntries;
+    private int analyzedEntries;
+    private long processingMillis;
     private List<WeirdEntryReport> weirdEntryReports = new ArrayList<>();
 
     public int getAddedEntries() {
@@ -68,6 +77,60 @@ public class BatchReport {
         return this;
     }
 
+    public int getAnalysisNeededEntries() {
+        return analysisNeededEntries;
+    }
+
+    public BatchReport setAnalysisNeededEntries(int analysisNeededEntries) {
+        this.analysisNeededEntries = analysisNeededEntries;
+        return this;
+    }
+
+    public int getDuplicateEntries() {
+        return duplicateEntries;
+    }
+
+    public BatchReport setDuplicateEntries(int duplicateEntries) {
+        this.duplicateEntries = duplicateEntries;
+        return this;
+    }
+
+    public int getAnalyzedElsewhereEntries() {
+        return analyzedElsewhereEntries;
+    }
+
+    public BatchReport setAnalyzedElsewhereEntries(int analyzedElsewhereEntries) {
+        this.analyzedElsewhereEntries = analyzedElsewhereEntries;
+        return this;
+    }
+
+    public int getCachedEntries() {
+        return cachedEntries;
+    }
+
+    public BatchReport setCachedEntries(int cachedEntries) {
+        this.cachedEntries = cachedEntries;
+        return this;
+    }
+
+    public int getAnalyzedEntries() {
+        return analyzedEntries;
+    }
+
+    public BatchReport setAnalyzedEntries(int analyzedEntries) {
+        this.analyzedEntries = analyzedEntries;
+        return this;
+    }
+
+    public long getProcessingMillis() {
+        return processingMillis;
+    }
+
+    public BatchReport setProcessingMillis(long processingMillis) {
+        this.processingMillis = processingMillis;
+        return this;
+    }
+
     public List<WeirdEntryReport> getWeirdEntryReports() {
         return weirdEntryReports;
     }
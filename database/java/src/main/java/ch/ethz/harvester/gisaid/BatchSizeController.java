@@ -0,0 +1,117 @@
+package ch.ethz.harvester.gisaid;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Adjusts the batch size at runtime. The cost of a batch depends strongly on the run: in the APPEND mode, every
+ * sequence is aligned; in the UPDATE mode, most sequences are unchanged and are filtered out before the alignment. A
+ * fixed batch size is therefore either too large (a few long batches at the end, a lot of memory) or too small (the
+ * per-batch overhead of the change detection, the tool processes and the commit dominates).
+ *
+ * The controller measures the analysis time per sequence of the batch (as an exponential moving average) and chooses
+ * the size for which a batch takes the target time. The queue of the batches that wait for the analysis is used as a
+ * second signal: if it is empty, the analysis workers are waiting for the parse workers and a larger batch would only
+ * leave workers idle, so the size is not increased. The size always stays between the minimum and the maximum; the
+ * maximum should be chosen (see {@link #maxBatchSizeForMemory(long, int)}) so that the batches in the queues fit
+ * into the memory.
+ *
+ * With a fixed batch size (minimum = maximum), the controller does not change anything.
+ */
+public class BatchSizeController {
+
+    private static final double SMOOTHING = 0.3;
+    private static final double MAX_STEP = 2;
+    private static final double MIN_CHANGE = 0.1;
+    /**
+     * The memory that a sequence needs while it is in the pipeline: the original and the aligned sequence (2 bytes per
+     * char), the mutations and the Nextclade results
+     */
+    private static final long BYTES_PER_SEQUENCE = 4L * Reference.REFERENCE.length() + 16 * 1024;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetMillis;
+    private final BlockingQueue<?> batchQueue;
+    private final List<Integer> chosenSizes = new ArrayList<>();
+    private volatile int batchSize;
+    private double millisPerSequence = -1;
+
+
+    /**
+     * @param batchQueue The queue of the batches that wait for the analysis
+     */
+    public BatchSizeController(
+            int initialBatchSize,
+            int minBatchSize,
+            int maxBatchSize,
+            long targetMillis,
+            BlockingQueue<?> batchQueue
+    ) {
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = Math.max(minBatchSize, maxBatchSize);
+        this.targetMillis = targetMillis;
+        this.batchQueue = batchQueue;
+        this.batchSize = clamp(initialBatchSize);
+        chosenSizes.add(batchSize);
+    }
+
+
+    /**
+     * @param availableBytes The memory that the batches may use
+     * @param batchesInMemory The number of batches that can be in memory at the same time (in the queues, at the
+     *                        workers and buffered by the parse workers)
+     */
+    public static int maxBatchSizeForMemory(long availableBytes, int batchesInMemory) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, availableBytes / batchesInMemory / BYTES_PER_SEQUENCE));
+    }
+
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+
+    /**
+     * Records the analysis time of a batch and adjusts the batch size.
+     *
+     * @param numberSequences The number of sequences of the batch as it was composed (before the change detection)
+     */
+    public synchronized void record(int numberSequences, long processingMillis) {
+        if (numberSequences == 0) {
+            return;
+        }
+        double observed = (double) processingMillis / numberSequences;
+        millisPerSequence = millisPerSequence < 0
+                ? observed : SMOOTHING * observed + (1 - SMOOTHING) * millisPerSequence;
+
+        double desired = targetMillis / Math.max(millisPerSequence, 1e-3);
+        desired = Math.max(batchSize / MAX_STEP, Math.min(batchSize * MAX_STEP, desired));
+        if (desired > batchSize && batchQueue.isEmpty()) {
+            return;
+        }
+        int newBatchSize = clamp((int) Math.round(desired));
+        if (Math.abs(newBatchSize - batchSize) > MIN_CHANGE * batchSize) {
+            System.out.println("[batch-size] " + String.format("%.1f", millisPerSequence) + " ms per sequence, "
+                    + batchQueue.size() + " batches waiting: changing the batch size from " + batchSize + " to "
+                    + newBatchSize);
+            batchSize = newBatchSize;
+            chosenSizes.add(newBatchSize);
+        }
+    }
+
+
+    /**
+     * @return The initial batch size followed by every size that the controller chose
+     */
+    public synchronized List<Integer> getChosenSizes() {
+        return new ArrayList<>(chosenSizes);
+    }
+
+
+    private int clamp(int size) {
+        return Math.max(minBatchSize, Math.min(maxBatchSize, size));
+    }
+}
@@ -0,0 +1,125 @@
+package ch.ethz.harvester.gisaid;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Hands out CPU tokens (one token = one core) to the CPU-heavy phases of the batch workers (mafft, Nextclade, the
+ * in-JVM aligner). A phase asks for a range of threads and gets as many tokens as are free within that range, so the
+ * number of threads of a tool is sized by the free cores: when the other workers are in a single-threaded phase, a
+ * tool can use more threads; when the host is busy, it gets fewer. The total number of threads that the tools run
+ * thereby tracks the budget.
+ *
+ * The budget also records how many token-seconds every phase used and logs the utilization every few minutes and at
+ * the end.
+ */
+public class CpuBudget {
+
+    public class Lease implements AutoCloseable {
+        private final String phase;
+        private final int threads;
+        private final long startNanos;
+        private boolean released = false;
+
+        private Lease(String phase, int threads) {
+            this.phase = phase;
+            this.threads = threads;
+            this.startNanos = System.nanoTime();
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                release(this);
+            }
+        }
+    }
+
+    private static class PhaseStatistics {
+        private long invocations = 0;
+        private long threads = 0;
+        private long tokenNanos = 0;
+        private long waitNanos = 0;
+    }
+
+    private static final long LOG_INTERVAL_NANOS = 10L * 60 * 1_000_000_000;
+
+    private final int totalTokens;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, PhaseStatistics> statistics = new TreeMap<>();
+    private int freeTokens;
+    private long lastLogNanos = startNanos;
+
+
+    /**
+     * @param totalTokens The number of cores that the tools may use
+     */
+    public CpuBudget(int totalTokens) {
+        this.totalTokens = totalTokens;
+        this.freeTokens = totalTokens;
+    }
+
+
+    public int getTotalTokens() {
+        return totalTokens;
+    }
+
+
+    /**
+     * Waits until at least minThreads tokens are free and takes up to maxThreads of them. The lease must be closed
+     * when the phase is finished.
+     */
+    public synchronized Lease acquire(String phase, int minThreads, int maxThreads) throws InterruptedException {
+        minThreads = Math.min(minThreads, totalTokens);
+        maxThreads = Math.max(minThreads, Math.min(maxThreads, totalTokens));
+        long waitStart = System.nanoTime();
+        while (freeTokens < minThreads) {
+            wait();
+        }
+        int threads = Math.min(freeTokens, maxThreads);
+        freeTokens -= threads;
+        PhaseStatistics phaseStatistics = statistics.computeIfAbsent(phase, p -> new PhaseStatistics());
+        phaseStatistics.invocations++;
+        phaseStatistics.threads += threads;
+        phaseStatistics.waitNanos += System.nanoTime() - waitStart;
+        return new Lease(phase, threads);
+    }
+
+
+    private synchronized void release(Lease lease) {
+        long now = System.nanoTime();
+        freeTokens += lease.threads;
+        statistics.get(lease.phase).tokenNanos += lease.threads * (now - lease.startNanos);
+        notifyAll();
+        if (now - lastLogNanos > LOG_INTERVAL_NANOS) {
+            lastLogNanos = now;
+            logUtilization();
+        }
+    }
+
+
+    /**
+     * Logs the share of the budget that every phase used since the start and the average number of threads per
+     * invocation.
+     */
+    public synchronized void logUtilization() {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        double budgetNanos = (double) totalTokens * elapsedNanos;
+        long usedNanos = statistics.values().stream().mapToLong(s -> s.tokenNanos).sum();
+        StringBuilder log = new StringBuilder(String.format("[cpu-budget] %d tokens, %.1f min, utilization %.1f%%",
+                totalTokens, elapsedNanos / 60e9, 100 * usedNanos / budgetNanos));
+        for (Map.Entry<String, PhaseStatistics> entry : statistics.entrySet()) {
+            PhaseStatistics s = entry.getValue();
+            log.append(String.format("%n[cpu-budget]   %s: %.1f%% (%d runs, %.1f threads on average, waited %.1f s)",
+                    entry.getKey(), 100 * s.tokenNanos / budgetNanos, s.invocations,
+                    s.invocations > 0 ? (double) s.threads / s.invocations : 0, s.waitNanos / 1e9));
+        }
+        System.out.println(log);
+    }
+}
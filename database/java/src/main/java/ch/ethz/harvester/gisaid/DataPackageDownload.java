@@ -0,0 +1,272 @@
+package ch.ethz.harvester.gisaid;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+
+/**
+ * Downloads the GISAID data package and provides it as a stream.
+ *
+ * The download is conditional: if the information about the previously imported data package is provided, the
+ * request carries the If-None-Match and If-Modified-Since headers and {@link #isNotModified()} tells whether GISAID
+ * has not republished the data package in the meantime.
+ *
+ * If the connection drops and GISAID has sent a validator (ETag or Last-Modified) or a SHA-256 Digest header, the
+ * download is resumed with a Range request from the current position. When the end of the stream is reached, the size
+ * is verified against the Content-Length and, if GISAID sends a Digest header, the SHA-256 checksum. The identity of
+ * the downloaded data package can then be retrieved with {@link #getDataPackageInfo()}.
+ */
+public class DataPackageDownload extends InputStream {
+
+    private static final int MAX_RESUME_ATTEMPTS = 10;
+
+    private final URL url;
+    private final String username;
+    private final String password;
+    private final MessageDigest digest;
+    private final DataPackageInfo info = new DataPackageInfo();
+    private final long expectedSize;
+    private final String expectedSha256;
+    private final boolean notModified;
+
+    private HttpURLConnection connection;
+    private InputStream in;
+    private long position = 0;
+    private boolean finished = false;
+    private int resumeAttempts = 0;
+
+
+    /**
+     * Sends the request to GISAID.
+     *
+     * @param previous The data package that was imported by the last successful run or null
+     */
+    public DataPackageDownload(URL url, String username, String password, DataPackageInfo previous)
+            throws IOException {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        connection = openConnection();
+        if (previous != null) {
+            if (previous.getEtag() != null) {
+                connection.setRequestProperty("If-None-Match", previous.getEtag());
+            }
+            if (previous.getLastModified() != null) {
+                connection.setRequestProperty("If-Modified-Since", previous.getLastModified());
+            }
+        }
+        int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            connection.disconnect();
+            notModified = true;
+            expectedSize = -1;
+            expectedSha256 = null;
+            return;
+        }
+        if (status != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("GISAID responded with an unexpected status code: " + status);
+        }
+        notModified = false;
+        info.setEtag(connection.getHeaderField("ETag"));
+        info.setLastModified(connection.getHeaderField("Last-Modified"));
+        expectedSize = connection.getContentLengthLong();
+        expectedSha256 = parseSha256FromDigestHeader(connection.getHeaderField("Digest"));
+        in = new BufferedInputStream(connection.getInputStream());
+    }
+
+
+    /**
+     * @return True if GISAID has not changed the data package since the previous import. There is nothing to read.
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+
+    /**
+     * @return The identity of the downloaded data package. It is only available after the stream was fully read.
+     */
+    public DataPackageInfo getDataPackageInfo() {
+        if (!finished) {
+            throw new IllegalStateException("The data package has not been fully downloaded.");
+        }
+        return info;
+    }
+
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (notModified) {
+            throw new IllegalStateException("The data package was not modified and has not been downloaded.");
+        }
+        if (finished) {
+            return -1;
+        }
+        while (true) {
+            try {
+                int n = in.read(b, off, len);
+                if (n < 0) {
+                    if (expectedSize >= 0 && position < expectedSize) {
+                        resume(new IOException("Premature end of the stream"));
+                        continue;
+                    }
+                    finish();
+                    return -1;
+                }
+                digest.update(b, off, n);
+                position += n;
+                return n;
+            } catch (IOException e) {
+                resume(e);
+            }
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+
+    private HttpURLConnection openConnection() throws IOException {
+        String auth = username + ":" + password;
+        byte[] encodedAuth = Base64.getEncoder().encode(auth.getBytes(StandardCharsets.UTF_8));
+        String authHeaderValue = "Basic " + new String(encodedAuth);
+        HttpURLConnection gisaidApiConnection = (HttpURLConnection) url.openConnection();
+        gisaidApiConnection.setRequestProperty("Authorization", authHeaderValue);
+        return gisaidApiConnection;
+    }
+
+
+    /**
+     * Re-connects to GISAID and continues the download at the current position.
+     */
+    private void resume(IOException cause) throws IOException {
+        String validator = info.getEtag() != null ? info.getEtag() : info.getLastModified();
+        if (validator == null && expectedSha256 == null) {
+            // We would not be able to notice if GISAID has published a new data package in the meantime: a new
+            // package of the same size would pass the Content-Range check and be spliced onto the old one.
+            throw cause;
+        }
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+        connection.disconnect();
+        while (true) {
+            resumeAttempts++;
+            if (resumeAttempts > MAX_RESUME_ATTEMPTS) {
+                throw new IOException("The download failed after " + MAX_RESUME_ATTEMPTS + " resume attempts.", cause);
+            }
+            System.out.println("[download] Connection lost after " + position + " bytes (" + cause.getMessage()
+                    + "). Resume attempt " + resumeAttempts + "..");
+            try {
+                Thread.sleep(resumeAttempts * 10000L);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while waiting to resume the download", e);
+            }
+            int status;
+            try {
+                connection = openConnection();
+                connection.setRequestProperty("Range", "bytes=" + position + "-");
+                if (validator != null) {
+                    connection.setRequestProperty("If-Range", validator);
+                }
+                status = connection.getResponseCode();
+            } catch (IOException e) {
+                cause = e;
+                continue;
+            }
+            // Trying again will not help if GISAID does not allow resuming.
+            if (status != HttpURLConnection.HTTP_PARTIAL) {
+                connection.disconnect();
+                throw new IOException("The download cannot be resumed: GISAID responded with status code "
+                        + status + ". The data package might have been changed in the meantime.", cause);
+            }
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (contentRange == null || !contentRange.startsWith("bytes " + position + "-")
+                    || (expectedSize >= 0 && !contentRange.endsWith("/" + expectedSize))) {
+                connection.disconnect();
+                throw new IOException("The download cannot be resumed: unexpected Content-Range " + contentRange,
+                        cause);
+            }
+            try {
+                in = new BufferedInputStream(connection.getInputStream());
+                return;
+            } catch (IOException e) {
+                cause = e;
+            }
+        }
+    }
+
+
+    private void finish() throws IOException {
+        finished = true;
+        if (expectedSize >= 0 && position != expectedSize) {
+            throw new IOException("The downloaded data package is incomplete: expected " + expectedSize
+                    + " bytes but received " + position + " bytes.");
+        }
+        String sha256 = toHex(digest.digest());
+        if (expectedSha256 != null && !expectedSha256.equals(sha256)) {
+            throw new IOException("The downloaded data package is corrupted: the SHA-256 checksum does not match.");
+        }
+        info.setSize(position);
+        info.setSha256(sha256);
+    }
+
+
+    /**
+     * Extracts the SHA-256 checksum from a Digest header as specified in RFC 3230, e.g., "SHA-256=X48E9q...=".
+     *
+     * @return The hex-encoded checksum or null if the header does not contain a SHA-256 checksum
+     */
+    private static String parseSha256FromDigestHeader(String digestHeader) {
+        if (digestHeader == null) {
+            return null;
+        }
+        for (String part : digestHeader.split(",")) {
+            String[] keyValue = part.trim().split("=", 2);
+            if (keyValue.length == 2 && keyValue[0].equalsIgnoreCase("SHA-256")) {
+                try {
+                    return toHex(Base64.getDecoder().decode(keyValue[1]));
+                } catch (IllegalArgumentException ignored) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+
+    private static String toHex(byte[] bytes) {
+        return String.format("%0" + (bytes.length * 2) + "x", new BigInteger(1, bytes));
+    }
+}
@@ -0,0 +1,59 @@
+package ch.ethz.harvester.gisaid;
+
+
+/**
+ * Identifies a downloaded version of the GISAID data package
+ */
+public class DataPackageInfo {
+
+    private String etag;
+    private String lastModified;
+    private Long size;
+    private String sha256;
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public DataPackageInfo setEtag(String etag) {
+        this.etag = etag;
+        return this;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public DataPackageInfo setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+        return this;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public DataPackageInfo setSize(Long size) {
+        this.size = size;
+        return this;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public DataPackageInfo setSha256(String sha256) {
+        this.sha256 = sha256;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "DataPackageInfo{" +
+                "etag='" + etag + '\'' +
+                ", lastModified='" + lastModified + '\'' +
+                ", size=" + size +
+                ", sha256='" + sha256 + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,290 @@
+package ch.ethz.harvester.gisaid;
+
+import org.json.simple.parser.ParseException;
+
+import java.util.Arrays;
+
+
+/**
+ * A streaming parser for a single line of the GISAID data package (provision.json.xz). Every line is a flat JSON
+ * object. The parser only extracts the fields that are needed to create a {@link Sequence}: it scans the line once,
+ * remembers where the values of the wanted fields are located and skips all other values (e.g.,
+ * covsurver_prot_mutations) without creating any objects for them. A string is only created when a value is
+ * requested with {@link #get(Field)}.
+ *
+ * An instance is not thread-safe but it should be re-used for many lines so that the internal buffers can be re-used.
+ */
+public class DataPackageLineParser {
+
+    public enum Field {
+        GISAID_EPI_ISL("covv_accession_id"),
+        STRAIN("covv_virus_name"),
+        VIRUS("covv_type"),
+        DATE("covv_collection_date"),
+        LOCATION("covv_location"),
+        HOST("covv_host"),
+        AGE("covv_patient_age"),
+        SEX("covv_gender"),
+        PANGOLIN_LINEAGE("covv_lineage"),
+        GISAID_CLADE("covv_clade"),
+        DATE_SUBMITTED("covv_subm_date"),
+        SAMPLING_STRATEGY("covv_sampling_strategy"),
+        SEQUENCE("sequence");
+
+        private final String key;
+
+        Field(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private static final Field[] FIELDS = Field.values();
+
+    private static final byte ABSENT = 0;
+    private static final byte NULL = 1;
+    private static final byte STRING = 2;
+    private static final byte ESCAPED_STRING = 3;
+    private static final byte RAW = 4;
+
+    private final int[] valueStarts = new int[FIELDS.length];
+    private final int[] valueEnds = new int[FIELDS.length];
+    private final byte[] valueTypes = new byte[FIELDS.length];
+    private final StringBuilder unescapeBuffer = new StringBuilder();
+
+    private String line;
+    private int pos;
+    private boolean lastStringEscaped;
+
+    /**
+     * The index of the next backslash at or after the last searched position. Searching for the quotes and the
+     * backslashes separately with {@link String#indexOf(int, int)} is much faster than checking every character.
+     */
+    private int nextBackslash;
+
+
+    /**
+     * Parses a line. The values of the previous line are discarded.
+     */
+    public void parse(String line) throws ParseException {
+        this.line = line;
+        this.pos = 0;
+        this.nextBackslash = -1;
+        Arrays.fill(valueTypes, ABSENT);
+
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            expect('"');
+            int keyStart = pos;
+            int keyEnd = skipStringBody();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            int fieldIndex = findField(keyStart, keyEnd);
+            if (fieldIndex < 0) {
+                skipValue();
+            } else {
+                readValue(fieldIndex);
+            }
+            skipWhitespace();
+            char c = next();
+            if (c == ',') {
+                continue;
+            }
+            if (c == '}') {
+                return;
+            }
+            throw new ParseException(pos - 1, ParseException.ERROR_UNEXPECTED_CHAR, c);
+        }
+    }
+
+
+    /**
+     * @return The value of the field in the last parsed line or null if the field is absent or null. Non-string
+     * values are returned as their JSON text.
+     */
+    public String get(Field field) {
+        int i = field.ordinal();
+        return switch (valueTypes[i]) {
+            case STRING, RAW -> line.substring(valueStarts[i], valueEnds[i]);
+            case ESCAPED_STRING -> unescape(valueStarts[i], valueEnds[i]);
+            default -> null;
+        };
+    }
+
+
+    private int findField(int keyStart, int keyEnd) {
+        int length = keyEnd - keyStart;
+        for (int i = 0; i < FIELDS.length; i++) {
+            String key = FIELDS[i].key;
+            if (key.length() == length && line.regionMatches(keyStart, key, 0, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    private void readValue(int fieldIndex) throws ParseException {
+        char c = peek();
+        int start = pos;
+        if (c == '"') {
+            pos++;
+            valueStarts[fieldIndex] = pos;
+            valueEnds[fieldIndex] = skipStringBody();
+            valueTypes[fieldIndex] = lastStringEscaped ? ESCAPED_STRING : STRING;
+            return;
+        }
+        skipValue();
+        if (c == 'n' && line.startsWith("null", start) && pos - start == 4) {
+            valueTypes[fieldIndex] = NULL;
+            return;
+        }
+        valueStarts[fieldIndex] = start;
+        valueEnds[fieldIndex] = pos;
+        valueTypes[fieldIndex] = RAW;
+    }
+
+
+    private void skipValue() throws ParseException {
+        char c = peek();
+        if (c == '"') {
+            pos++;
+            skipStringBody();
+        } else if (c == '{' || c == '[') {
+            skipNested();
+        } else {
+            int start = pos;
+            while (pos < line.length()) {
+                c = line.charAt(pos);
+                if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                    break;
+                }
+                pos++;
+            }
+            if (pos == start) {
+                throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_CHAR, c);
+            }
+        }
+    }
+
+
+    private void skipNested() throws ParseException {
+        int depth = 0;
+        while (pos < line.length()) {
+            char c = line.charAt(pos++);
+            if (c == '"') {
+                skipStringBody();
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return;
+                }
+            }
+        }
+        throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+    }
+
+
+    /**
+     * Expects {@link #pos} to point to the first character after the opening quote. Moves {@link #pos} behind the
+     * closing quote.
+     *
+     * @return The index of the closing quote
+     */
+    private int skipStringBody() throws ParseException {
+        lastStringEscaped = false;
+        int i = pos;
+        int quote = -1;
+        while (true) {
+            if (quote < i) {
+                quote = line.indexOf('"', i);
+                if (quote < 0) {
+                    throw new ParseException(line.length(), ParseException.ERROR_UNEXPECTED_TOKEN, null);
+                }
+            }
+            if (nextBackslash < i) {
+                nextBackslash = line.indexOf('\\', i);
+                if (nextBackslash < 0) {
+                    nextBackslash = line.length();
+                }
+            }
+            if (nextBackslash > quote) {
+                pos = quote + 1;
+                return quote;
+            }
+            // The backslash escapes the next character which might also be the quote that we have found.
+            lastStringEscaped = true;
+            i = nextBackslash + 2;
+        }
+    }
+
+
+    private String unescape(int start, int end) {
+        StringBuilder sb = unescapeBuffer;
+        sb.setLength(0);
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            char escaped = line.charAt(++i);
+            switch (escaped) {
+                case 'b' -> sb.append('\b');
+                case 'f' -> sb.append('\f');
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                case 't' -> sb.append('\t');
+                case 'u' -> {
+                    sb.append((char) Integer.parseInt(line, i + 1, i + 5, 16));
+                    i += 4;
+                }
+                default -> sb.append(escaped);
+            }
+        }
+        return sb.toString();
+    }
+
+
+    private void skipWhitespace() {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+    }
+
+
+    private char peek() throws ParseException {
+        if (pos >= line.length()) {
+            throw new ParseException(pos, ParseException.ERROR_UNEXPECTED_TOKEN, null);
+        }
+        return line.charAt(pos);
+    }
+
+
+    private char next() throws ParseException {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+
+    private void expect(char expected) throws ParseException {
+        char c = next();
+        if (c != expected) {
+            throw new ParseException(pos - 1, ParseException.ERROR_UNEXPECTED_CHAR, c);
+        }
+    }
+}
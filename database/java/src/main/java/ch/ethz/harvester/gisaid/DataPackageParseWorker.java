@@ -0,0 +1,219 @@
+package ch.ethz.harvester.gisaid;
+
+import ch.ethz.harvester.core.Utils;
+import org.json.simple.parser.ParseException;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
+
+
+/**
+ * Turns raw lines of the data package into {@link Sequence}s and groups them into batches. Several workers can run in
+ * parallel: every worker has its own parser and collects its own batch. The workers synchronize on
+ * gisaidEpiIslInDataPackage when adding to it; existingSequences must not be modified while the workers are running.
+ */
+public class DataPackageParseWorker {
+
+    private final int id;
+    private final Map<String, String> gisaidCountryMap;
+    private final GeoLocationMapper geoLocationMapper;
+    private final ImportMode importMode;
+    private final ImportedSequences existingSequences;
+    private final boolean skipUnchanged;
+    private final GisaidEpiIslSet gisaidEpiIslInDataPackage;
+    private final GisaidEpiIslSet committedEarlier;
+    private final BatchComposer batchComposer;
+    private final DataPackageLineParser lineParser = new DataPackageLineParser();
+    private int processedEntries = 0;
+    private int resumedEntries = 0;
+
+    /**
+     * @param id An unique identifier for the worker
+     * @param existingSequences The sequences that are already in the database. In APPEND mode, these entries will be
+     *                          skipped.
+     * @param skipUnchanged If true, the entries that are unchanged according to existingSequences will be skipped in
+     *                      UPDATE mode.
+     * @param gisaidEpiIslInDataPackage A set (shared by all workers) into which all found GISAID EPI ISL will be added
+     * @param committedEarlier The entries that were committed by an interrupted run of the same data package (see
+     *                         {@link ImportCheckpoint}). They will be skipped. It may be null.
+     * @param batchSize The current batch size (it may change during the run, see {@link BatchSizeController})
+     * @param batchWindow The number of batches that the worker buffers to group sequences of a similar cost (see
+     *                    {@link BatchComposer})
+     */
+    public DataPackageParseWorker(
+            int id,
+            Map<String, String> gisaidCountryMap,
+            GeoLocationMapper geoLocationMapper,
+            ImportMode importMode,
+            ImportedSequences existingSequences,
+            boolean skipUnchanged,
+            GisaidEpiIslSet gisaidEpiIslInDataPackage,
+            GisaidEpiIslSet committedEarlier,
+            IntSupplier batchSize,
+            int batchWindow
+    ) {
+        this.id = id;
+        this.gisaidCountryMap = gisaidCountryMap;
+        this.geoLocationMapper = geoLocationMapper;
+        this.importMode = importMode;
+        this.existingSequences = existingSequences;
+        this.skipUnchanged = skipUnchanged;
+        this.gisaidEpiIslInDataPackage = gisaidEpiIslInDataPackage;
+        this.committedEarlier = committedEarlier;
+        this.batchComposer = new BatchComposer(batchSize, batchWindow);
+    }
+
+
+    /**
+     * @return The batches that were completed while processing the lines. The sequences of an incomplete batch are
+     * kept until more lines are provided or {@link #flush()} is called.
+     */
+    public List<Batch> run(List<String> lines) throws ParseException {
+        List<Batch> completedBatches = new ArrayList<>();
+        List<String> foundGisaidEpiIsls = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            try {
+                lineParser.parse(line);
+            } catch (ParseException e) {
+                System.err.println("[parse-" + id + "] JSON parsing failed!");
+                throw e;
+            }
+            String gisaidEpiIsl = lineParser.get(DataPackageLineParser.Field.GISAID_EPI_ISL);
+            foundGisaidEpiIsls.add(gisaidEpiIsl);
+            if (committedEarlier != null && committedEarlier.contains(gisaidEpiIsl)) {
+                resumedEntries++;
+                continue;
+            }
+            if (importMode == ImportMode.APPEND) {
+                if (existingSequences.contains(gisaidEpiIsl)) {
+                    continue;
+                }
+            }
+            Sequence sequence = parseDataPackageLine(lineParser);
+            if (importMode == ImportMode.UPDATE && skipUnchanged && existingSequences.isUnchanged(
+                    gisaidEpiIsl, sequence.getMetadataHash(), sequence.getSeqOriginalHash())) {
+                continue;
+            }
+            processedEntries++;
+            Batch completedBatch = batchComposer.add(sequence);
+            if (completedBatch != null) {
+                completedBatches.add(completedBatch);
+            }
+        }
+        synchronized (gisaidEpiIslInDataPackage) {
+            for (String gisaidEpiIsl : foundGisaidEpiIsls) {
+                gisaidEpiIslInDataPackage.add(gisaidEpiIsl);
+            }
+        }
+        return completedBatches;
+    }
+
+
+    /**
+     * @return The batches with the remaining sequences
+     */
+    public List<Batch> flush() {
+        return batchComposer.flush();
+    }
+
+
+    /**
+     * @return The number of sequences that were put into batches
+     */
+    public int getProcessedEntries() {
+        return processedEntries;
+    }
+
+
+    /**
+     * @return The number of entries that were skipped because an interrupted run had already committed them
+     */
+    public int getResumedEntries() {
+        return resumedEntries;
+    }
+
+
+    private Sequence parseDataPackageLine(DataPackageLineParser parsedLine) {
+        // Parse date
+        String dateOriginal = parsedLine.get(DataPackageLineParser.Field.DATE);
+        LocalDate date = null;
+        try {
+            if (dateOriginal != null) {
+                date = LocalDate.parse(dateOriginal);
+            }
+        } catch (DateTimeParseException ignored) {
+        }
+
+        // Parse geo data
+        String locationString = parsedLine.get(DataPackageLineParser.Field.LOCATION);
+        String country = null;
+        GeoLocation geoLocation;
+        if (locationString != null) {
+            List<String> locationParts = Arrays.stream(locationString.split("/"))
+                    .map(String::trim)
+                    .collect(Collectors.toList());
+            GeoLocation gisaidDirtyLocation = new GeoLocation();
+            if (locationParts.size() > 0) {
+                gisaidDirtyLocation.setRegion(locationParts.get(0));
+            }
+            if (locationParts.size() > 1) {
+                gisaidDirtyLocation.setCountry(locationParts.get(1));
+            }
+            if (locationParts.size() > 2) {
+                gisaidDirtyLocation.setDivision(locationParts.get(2));
+            }
+            if (locationParts.size() > 3) {
+                gisaidDirtyLocation.setLocation(locationParts.get(3));
+            }
+            geoLocation = geoLocationMapper.resolve(gisaidDirtyLocation);
+            if (geoLocation.getCountry() != null) {
+                country = gisaidCountryMap.get(geoLocation.getCountry());
+            }
+        } else {
+            geoLocation = new GeoLocation();
+        }
+
+        // Parse age
+        String ageString = parsedLine.get(DataPackageLineParser.Field.AGE);
+        Integer age = Utils.nullableIntegerValue(ageString);
+
+        // Parse sex
+        String sexString = parsedLine.get(DataPackageLineParser.Field.SEX);
+        if ("male".equalsIgnoreCase(sexString)) {
+            sexString = "Male";
+        } else if ("female".equalsIgnoreCase(sexString)) {
+            sexString = "Female";
+        } else {
+            sexString = null;
+        }
+
+        // Parse date_submitted
+        LocalDate dateSubmitted = Utils.nullableLocalDateValue(parsedLine.get(DataPackageLineParser.Field.DATE_SUBMITTED));
+
+        Sequence sequence = new Sequence()
+                .setGisaidEpiIsl(parsedLine.get(DataPackageLineParser.Field.GISAID_EPI_ISL))
+                .setStrain(parsedLine.get(DataPackageLineParser.Field.STRAIN))
+                .setVirus(parsedLine.get(DataPackageLineParser.Field.VIRUS))
+                .setDate(date)
+                .setDateOriginal(dateOriginal)
+                .setCountry(country)
+                .setRegionOriginal(geoLocation.getRegion())
+                .setCountryOriginal(geoLocation.getCountry())
+                .setDivision(geoLocation.getDivision())
+                .setLocation(geoLocation.getLocation())
+                .setHost(parsedLine.get(DataPackageLineParser.Field.HOST))
+                .setAge(age)
+                .setSex(sexString)
+                .setPangolinLineage(parsedLine.get(DataPackageLineParser.Field.PANGOLIN_LINEAGE))
+                .setGisaidClade(parsedLine.get(DataPackageLineParser.Field.GISAID_CLADE))
+                .setDateSubmitted(dateSubmitted)
+                .setSamplingStrategy(parsedLine.get(DataPackageLineParser.Field.SAMPLING_STRATEGY))
+                .setSeqOriginal(parsedLine.get(DataPackageLineParser.Field.SEQUENCE));
+        return sequence
+                .setMetadataHash(SequenceFingerprints.metadata(sequence))
+                .setSeqOriginalHash(SequenceFingerprints.sequence(sequence.getSeqOriginal()));
+    }
+}
@@ -0,0 +1,676 @@
+package ch.ethz.harvester.gisaid;
+
+import ch.ethz.harvester.core.PostgresCopyWriter;
+import ch.ethz.harvester.general.NucleotideMutationFinder;
+import ch.ethz.harvester.general.NucleotideMutationStorage;
+import ch.ethz.harvester.general.PackedNucleotideMutations;
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import org.javatuples.Pair;
+
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.stream.Collectors;
+
+
+/**
+ * Writes the analyzed batches into the database. The writer is the only stage of the import that writes, so the
+ * number of writers bounds the number of connections that hold a write transaction.
+ *
+ * The writer commits the batches that are waiting for it together in a single transaction (group commit): with many
+ * small transactions, the commits (and their WAL flushes) would be the bottleneck.
+ */
+public class DatabaseWriter {
+
+    private final int id;
+    private final ComboPooledDataSource databasePool;
+    private final Queue<ImportManifest.Entry> writtenEntries;
+    private final boolean useCopy;
+    private final boolean stagingMerge;
+    private final NucleotideMutationStorage nucleotideMutationStorage;
+    private final ImportCheckpoint checkpoint;
+    private final EthzParser ethzParser = new EthzParser();
+
+    /**
+     * @param id An unique identifier for the writer
+     * @param writtenEntries A thread-safe queue into which the entries that were written to the database are added.
+     *                       It may be null.
+     * @param useCopy Whether the new sequences should be written with COPY instead of INSERT statements
+     * @param stagingMerge Whether the changes should be written into the staging tables (see {@link StagingTables})
+     *                     instead of gisaid_api_sequence
+     * @param nucleotideMutationStorage How the nucleotide mutations are stored
+     * @param checkpoint The checkpoint into which the committed entries are recorded. It may be null.
+     */
+    public DatabaseWriter(
+            int id,
+            ComboPooledDataSource databasePool,
+            Queue<ImportManifest.Entry> writtenEntries,
+            boolean useCopy,
+            boolean stagingMerge,
+            NucleotideMutationStorage nucleotideMutationStorage,
+            ImportCheckpoint checkpoint
+    ) {
+        this.id = id;
+        this.databasePool = databasePool;
+        this.writtenEntries = writtenEntries;
+        this.useCopy = useCopy;
+        this.stagingMerge = stagingMerge;
+        this.nucleotideMutationStorage = nucleotideMutationStorage;
+        this.checkpoint = checkpoint;
+    }
+
+
+    /**
+     * Writes the batches in one transaction and completes their reports. Failed batches are not written; their
+     * reports are returned unchanged.
+     */
+    public List<BatchReport> write(List<AnalyzedBatch> analyzedBatches) throws SQLException, IOException {
+        List<Sequence> sequences = new ArrayList<>();
+        for (AnalyzedBatch analyzedBatch : analyzedBatches) {
+            if (!analyzedBatch.isFailed()) {
+                sequences.addAll(analyzedBatch.getBatch().getSequences());
+            }
+        }
+        if (!sequences.isEmpty()) {
+            System.out.println("[writer-" + id + "] Write " + sequences.size() + " sequences of "
+                    + analyzedBatches.size() + " batches to database..");
+            Batch group = new Batch(sequences);
+            if (stagingMerge) {
+                writeToStagingTables(group);
+            } else {
+                writeToDatabase(group);
+            }
+            if (checkpoint != null) {
+                checkpoint.markCommitted(sequences.stream()
+                        .map(Sequence::getGisaidEpiIsl)
+                        .collect(Collectors.toList()));
+            }
+            if (writtenEntries != null) {
+                for (Sequence sequence : sequences) {
+                    writtenEntries.add(new ImportManifest.Entry(sequence.getGisaidEpiIsl(),
+                            sequence.getMetadataHash(), sequence.getSeqOriginalHash()));
+                }
+            }
+        }
+
+        List<BatchReport> reports = new ArrayList<>();
+        for (AnalyzedBatch analyzedBatch : analyzedBatches) {
+            if (!analyzedBatch.isFailed()) {
+                completeReport(analyzedBatch);
+            }
+            reports.add(analyzedBatch.getReport());
+        }
+        return reports;
+    }
+
+
+    private void completeReport(AnalyzedBatch analyzedBatch) throws SQLException {
+        Batch batch = analyzedBatch.getBatch();
+        BatchReport report = analyzedBatch.getReport();
+
+        // If the sequence is submitted by us, update the sequence_identifier table.
+        Pair<List<WeirdEntryReport>, Integer> updateSequenceIdentifierReport = updateSequenceIdentifier(batch);
+        report.getWeirdEntryReports().addAll(updateSequenceIdentifierReport.getValue0());
+        int addedEntriesFromUs = 0;
+        for (Sequence sequence : batch.getSequences()) {
+            if (sequence.getImportMode() == ImportMode.APPEND) {
+                MaybeResult<Boolean> isOursMaybe = ethzParser.isOurs(sequence);
+                if (isOursMaybe.isGoodEnough() && isOursMaybe.getResult()) {
+                    addedEntriesFromUs++;
+                }
+            }
+        }
+
+        int addedEntries = 0;
+        int updatedTotalEntries = 0;
+        int updatedMetadataEntries = 0;
+        int updatedSequenceEntries = 0;
+        for (Sequence sequence : batch.getSequences()) {
+            if (sequence.getImportMode() == ImportMode.APPEND) {
+                addedEntries++;
+            } else if (sequence.getImportMode() == ImportMode.UPDATE) {
+                updatedTotalEntries++;
+                if (sequence.isMetadataChanged()) {
+                    updatedMetadataEntries++;
+                }
+                if (sequence.isSequenceChanged()) {
+                    updatedSequenceEntries++;
+                }
+            }
+        }
+        report
+                .setAddedEntries(addedEntries)
+                .setUpdatedTotalEntries(updatedTotalEntries)
+                .setUpdatedMetadataEntries(updatedMetadataEntries)
+                .setUpdatedSequenceEntries(updatedSequenceEntries)
+                .setAddedEntriesFromUs(addedEntriesFromUs);
+    }
+
+
+    private void writeToDatabase(Batch batch) throws SQLException {
+        // If APPEND mode: Insert everything
+        // If UPDATE mode + only metadata changed: update metadata and "updated_at" timestamp
+        // If UPDATE mode + sequence changed: delete the old entry (including mutations) and re-insert everything
+        List<Sequence> toUpdateMetadata = new ArrayList<>();
+        List<Sequence> toDelete = new ArrayList<>();
+        List<Sequence> toInsert = new ArrayList<>();
+        for (Sequence sequence : batch.getSequences()) {
+            if (sequence.getImportMode() == ImportMode.APPEND) {
+                toInsert.add(sequence);
+            } else if (sequence.getImportMode() == ImportMode.UPDATE) {
+                if (!sequence.isSequenceChanged()) {
+                    toUpdateMetadata.add(sequence);
+                } else {
+                    toDelete.add(sequence);
+                    toInsert.add(sequence);
+                }
+            }
+        }
+        try (Connection conn = databasePool.getConnection()) {
+            conn.setAutoCommit(false);
+
+            // 1. Update the metadata
+            String updateSequenceSql = """
+                update gisaid_api_sequence
+                set
+                  updated_at = now(),
+                  strain = ?,
+                  virus = ?,
+                  date = ?,
+                  date_original = ?,
+                  country = ?,
+                  region_original = ?,
+                  country_original = ?,
+                  division = ?,
+                  location = ?,
+                  host = ?,
+                  age = ?,
+                  sex = ?,
+                  pangolin_lineage = ?,
+                  gisaid_clade = ?,
+                  originating_lab = coalesce(?, originating_lab),
+                  submitting_lab = coalesce(?, submitting_lab),
+                  authors = coalesce(?, authors),
+                  date_submitted = ?,
+                  sampling_strategy = ?,
+                  metadata_hash = ?
+                where gisaid_epi_isl = ?;
+            """;
+            try (PreparedStatement statement = conn.prepareStatement(updateSequenceSql)) {
+                for (Sequence sequence : toUpdateMetadata) {
+                    SubmitterInformation si = sequence.getSubmitterInformation();
+                    statement.setString(1, sequence.getStrain());
+                    statement.setString(2, sequence.getVirus());
+                    statement.setDate(3, sequence.getDate() != null ? Date.valueOf(sequence.getDate()) : null);
+                    statement.setString(4, sequence.getDateOriginal());
+                    statement.setString(5, sequence.getCountry());
+                    statement.setString(6, sequence.getRegionOriginal());
+                    statement.setString(7, sequence.getCountryOriginal());
+                    statement.setString(8, sequence.getDivision());
+                    statement.setString(9, sequence.getLocation());
+                    statement.setString(10, sequence.getHost());
+                    statement.setObject(11, sequence.getAge());
+                    statement.setString(12, sequence.getSex());
+                    statement.setString(13, sequence.getPangolinLineage());
+                    statement.setString(14, sequence.getGisaidClade());
+                    statement.setString(15, si != null ? si.getOriginatingLab() : null);
+                    statement.setString(16, si != null ? si.getSubmittingLab() : null);
+                    statement.setString(17, si != null ? si.getAuthors() : null);
+                    statement.setDate(18, sequence.getDateSubmitted() != null ? Date.valueOf(sequence.getDateSubmitted()) : null);
+                    statement.setString(19, sequence.getSamplingStrategy());
+                    statement.setString(20, sequence.getMetadataHash());
+                    statement.setString(21, sequence.getGisaidEpiIsl());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                statement.clearBatch();
+            }
+
+            // 2. Delete sequences
+            String deleteSequenceSql = """
+                delete from gisaid_api_sequence
+                where gisaid_epi_isl = ?;
+            """;
+            try (PreparedStatement statement = conn.prepareStatement(deleteSequenceSql)) {
+                for (Sequence sequence : toDelete) {
+                    statement.setString(1, sequence.getGisaidEpiIsl());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                statement.clearBatch();
+            }
+
+            // 3.-5. Insert into gisaid_api_sequence and the mutation tables
+            if (useCopy) {
+                copySequences(conn, toInsert, "gisaid_api_sequence", "gisaid_api_sequence_nextclade_mutation_aa",
+                        nucleotideMutationStorage.getTable());
+            } else {
+                insertSequences(conn, toInsert);
+            }
+
+            // 6. Commit
+            conn.commit();
+            conn.setAutoCommit(true);
+        }
+    }
+
+
+    private void insertSequences(Connection conn, List<Sequence> toInsert) throws SQLException {
+        // 3. Insert into gisaid_api_sequence
+        String insertSequenceSql = """
+            insert into gisaid_api_sequence (
+              updated_at,
+              gisaid_epi_isl, strain, virus, date, date_original, country, region_original, country_original,
+              division, location, host, age, sex, pangolin_lineage, gisaid_clade, originating_lab, submitting_lab, authors,
+              date_submitted, sampling_strategy,  seq_original, seq_aligned, nextclade_clade,
+              nextclade_qc_overall_score, nextclade_qc_overall_status, nextclade_total_gaps, nextclade_total_insertions,
+              nextclade_total_missing, nextclade_total_mutations, nextclade_total_non_acgtns,
+              nextclade_total_pcr_primer_changes, nextclade_alignment_start, nextclade_alignment_end,
+              nextclade_alignment_score, nextclade_qc_missing_data_score, nextclade_qc_missing_data_status,
+              nextclade_qc_missing_data_total, nextclade_qc_mixed_sites_score, nextclade_qc_mixed_sites_status,
+              nextclade_qc_mixed_sites_total, nextclade_qc_private_mutations_cutoff, nextclade_qc_private_mutations_excess,
+              nextclade_qc_private_mutations_score, nextclade_qc_private_mutations_status, nextclade_qc_private_mutations_total,
+              nextclade_qc_snp_clusters_clustered, nextclade_qc_snp_clusters_score, nextclade_qc_snp_clusters_status,
+              nextclade_qc_snp_clusters_total, nextclade_errors, metadata_hash, seq_original_hash
+            )
+            values (
+              now(),
+              ?, ?, ?, ?, ?, ?, ?,
+              ?, ?, ?, ?, ?, ?, ?,
+              ?, ?, ?, ?, ?, ?, ?,
+              ?, ?, ?, ?, ?, ?, ?,
+              ?, ?, ?, ?, ?, ?, ?,
+              ?, ?, ?, ?, ?, ?, ?,
+              ?, ?, ?, ?, ?, ?, ?,
+              ?, ?, ?
+            );
+        """;
+        try (PreparedStatement insertStatement = conn.prepareStatement(insertSequenceSql)) {
+            for (Sequence sequence : toInsert) {
+                SubmitterInformation si = sequence.getSubmitterInformation();
+                insertStatement.setString(1, sequence.getGisaidEpiIsl());
+                insertStatement.setString(2, sequence.getStrain());
+                insertStatement.setString(3, sequence.getVirus());
+                insertStatement.setDate(4, sequence.getDate() != null ? Date.valueOf(sequence.getDate()) : null);
+                insertStatement.setString(5, sequence.getDateOriginal());
+                insertStatement.setString(6, sequence.getCountry());
+                insertStatement.setString(7, sequence.getRegionOriginal());
+                insertStatement.setString(8, sequence.getCountryOriginal());
+                insertStatement.setString(9, sequence.getDivision());
+                insertStatement.setString(10, sequence.getLocation());
+                insertStatement.setString(11, sequence.getHost());
+                insertStatement.setObject(12, sequence.getAge());
+                insertStatement.setString(13, sequence.getSex());
+                insertStatement.setString(14, sequence.getPangolinLineage());
+                insertStatement.setString(15, sequence.getGisaidClade());
+                insertStatement.setString(16, si != null ? si.getOriginatingLab() : null);
+                insertStatement.setString(17, si != null ? si.getSubmittingLab() : null);
+                insertStatement.setString(18, si != null ? si.getAuthors() : null);
+                insertStatement.setDate(19, sequence.getDateSubmitted() != null ? Date.valueOf(sequence.getDateSubmitted()) : null);
+                insertStatement.setString(20, sequence.getSamplingStrategy());
+                insertStatement.setString(21, sequence.getSeqOriginal());
+                insertStatement.setString(22, sequence.getSeqAligned());
+                insertStatement.setString(23, sequence.getNextcladeClade());
+                insertStatement.setObject(24, sequence.getNextcladeQcOverallScore());
+                insertStatement.setObject(25, sequence.getNextcladeQcOverallStatus());
+                insertStatement.setObject(26, sequence.getNextcladeTotalGaps());
+                insertStatement.setObject(27, sequence.getNextcladeTotalInsertions());
+                insertStatement.setObject(28, sequence.getNextcladeTotalMissing());
+                insertStatement.setObject(29, sequence.getNextcladeTotalMutations());
+                insertStatement.setObject(30, sequence.getNextcladeTotalNonAcgtns());
+                insertStatement.setObject(31, sequence.getNextcladeTotalPcrPrimerChanges());
+                insertStatement.setObject(32, sequence.getNextcladeAlignmentStart());
+                insertStatement.setObject(33, sequence.getNextcladeAlignmentEnd());
+                insertStatement.setObject(34, sequence.getNextcladeAlignmentScore());
+                insertStatement.setObject(35, sequence.getNextcladeQcMissingDataScore());
+                insertStatement.setString(36, sequence.getNextcladeQcMissingDataStatus());
+                insertStatement.setObject(37, sequence.getNextcladeQcMissingDataTotal());
+                insertStatement.setObject(38, sequence.getNextcladeQcMixedSitesScore());
+                insertStatement.setString(39, sequence.getNextcladeQcMixedSitesStatus());
+                insertStatement.setObject(40, sequence.getNextcladeQcMixedSitesTotal());
+                insertStatement.setObject(41, sequence.getNextcladeQcPrivateMutationsCutoff());
+                insertStatement.setObject(42, sequence.getNextcladeQcPrivateMutationsExcess());
+                insertStatement.setObject(43, sequence.getNextcladeQcPrivateMutationsScore());
+                insertStatement.setString(44, sequence.getNextcladeQcPrivateMutationsStatus());
+                insertStatement.setObject(45, sequence.getNextcladeQcPrivateMutationsTotal());
+                insertStatement.setString(46, sequence.getNextcladeQcSnpClustersClustered());
+                insertStatement.setObject(47, sequence.getNextcladeQcSnpClustersScore());
+                insertStatement.setString(48, sequence.getNextcladeQcSnpClustersStatus());
+                insertStatement.setObject(49, sequence.getNextcladeQcSnpClustersTotal());
+                insertStatement.setString(50, sequence.getNextcladeErrors());
+                insertStatement.setString(51, sequence.getMetadataHash());
+                insertStatement.setString(52, sequence.getSeqOriginalHash());
+                insertStatement.addBatch();
+            }
+            insertStatement.executeBatch();
+            insertStatement.clearBatch();
+        }
+
+        // 4. Insert into gisaid_api_sequence_nextclade_mutation_aa
+        String insertAaMutationsSql = """
+            insert into gisaid_api_sequence_nextclade_mutation_aa (gisaid_epi_isl, aa_mutation)
+            values (?, ?);
+        """;
+        try (PreparedStatement insertStatement = conn.prepareStatement(insertAaMutationsSql)) {
+            for (Sequence sequence : toInsert) {
+                if (sequence.getNextcladeMutations() == null) {
+                    continue;
+                }
+                for (String mutation : sequence.getNextcladeMutations()) {
+                    insertStatement.setString(1, sequence.getGisaidEpiIsl());
+                    insertStatement.setString(2, mutation);
+                    insertStatement.addBatch();
+                }
+            }
+            insertStatement.executeBatch();
+            insertStatement.clearBatch();
+        }
+
+        // 5. Insert into gisaid_api_sequence_mutation_nucleotide (or gisaid_api_sequence_mutation_nucleotide_packed)
+        if (nucleotideMutationStorage == NucleotideMutationStorage.PACKED) {
+            insertPackedNucleotideMutations(conn, toInsert);
+            return;
+        }
+        String insertNucMutationsSql = """
+            insert into gisaid_api_sequence_mutation_nucleotide (gisaid_epi_isl, position, mutation)
+            values (?, ?, ?);
+        """;
+        try (PreparedStatement insertStatement = conn.prepareStatement(insertNucMutationsSql)) {
+            for (Sequence sequence : toInsert) {
+                if (sequence.getNucleotideMutations() == null) {
+                    continue;
+                }
+                for (NucleotideMutationFinder.Mutation mutation : sequence.getNucleotideMutations()) {
+                    insertStatement.setString(1, sequence.getGisaidEpiIsl());
+                    insertStatement.setInt(2, mutation.getPosition());
+                    insertStatement.setString(3, String.valueOf(mutation.getMutation()));
+                    insertStatement.addBatch();
+                }
+            }
+            insertStatement.executeBatch();
+            insertStatement.clearBatch();
+        }
+    }
+
+
+    private void insertPackedNucleotideMutations(Connection conn, List<Sequence> toInsert) throws SQLException {
+        String insertNucMutationsSql = """
+            insert into gisaid_api_sequence_mutation_nucleotide_packed (gisaid_epi_isl, mutations)
+            values (?, ?::int[]);
+        """;
+        try (PreparedStatement insertStatement = conn.prepareStatement(insertNucMutationsSql)) {
+            for (Sequence sequence : toInsert) {
+                if (sequence.getNucleotideMutations() == null) {
+                    continue;
+                }
+                int[] packed = PackedNucleotideMutations.encode(sequence.getNucleotideMutations());
+                insertStatement.setString(1, sequence.getGisaidEpiIsl());
+                insertStatement.setString(2, PackedNucleotideMutations.toArrayLiteral(packed));
+                insertStatement.addBatch();
+            }
+            insertStatement.executeBatch();
+            insertStatement.clearBatch();
+        }
+    }
+
+
+    /**
+     * Writes the changes into the staging tables. The metadata updates go into a separate table, entries with a
+     * changed sequence are written as new entries and will replace the existing ones during the merge.
+     */
+    private void writeToStagingTables(Batch batch) throws SQLException {
+        List<Sequence> toUpdateMetadata = new ArrayList<>();
+        List<Sequence> toInsert = new ArrayList<>();
+        for (Sequence sequence : batch.getSequences()) {
+            if (sequence.getImportMode() == ImportMode.UPDATE && !sequence.isSequenceChanged()) {
+                toUpdateMetadata.add(sequence);
+            } else {
+                toInsert.add(sequence);
+            }
+        }
+        try (Connection conn = databasePool.getConnection()) {
+            conn.setAutoCommit(false);
+            String now = getTransactionTimestamp(conn);
+            try (PostgresCopyWriter writer = new PostgresCopyWriter(conn, StagingTables.METADATA,
+                    "updated_at", "gisaid_epi_isl", "strain", "virus", "date", "date_original", "country",
+                    "region_original", "country_original", "division", "location", "host", "age", "sex",
+                    "pangolin_lineage", "gisaid_clade", "originating_lab", "submitting_lab", "authors", "date_submitted",
+                    "sampling_strategy", "metadata_hash")) {
+                for (Sequence sequence : toUpdateMetadata) {
+                    SubmitterInformation si = sequence.getSubmitterInformation();
+                    writer
+                            .add(now)
+                            .add(sequence.getGisaidEpiIsl())
+                            .add(sequence.getStrain())
+                            .add(sequence.getVirus())
+                            .add(sequence.getDate())
+                            .add(sequence.getDateOriginal())
+                            .add(sequence.getCountry())
+                            .add(sequence.getRegionOriginal())
+                            .add(sequence.getCountryOriginal())
+                            .add(sequence.getDivision())
+                            .add(sequence.getLocation())
+                            .add(sequence.getHost())
+                            .add(sequence.getAge())
+                            .add(sequence.getSex())
+                            .add(sequence.getPangolinLineage())
+                            .add(sequence.getGisaidClade())
+                            .add(si != null ? si.getOriginatingLab() : null)
+                            .add(si != null ? si.getSubmittingLab() : null)
+                            .add(si != null ? si.getAuthors() : null)
+                            .add(sequence.getDateSubmitted())
+                            .add(sequence.getSamplingStrategy())
+                            .add(sequence.getMetadataHash())
+                            .endRow();
+                }
+                writer.finish();
+            }
+            copySequences(conn, toInsert, StagingTables.SEQUENCE, StagingTables.AA_MUTATION,
+                    StagingTables.nucMutationTable(nucleotideMutationStorage));
+            conn.commit();
+            conn.setAutoCommit(true);
+        }
+    }
+
+
+    /**
+     * @return The start time of the current transaction, i.e., the value of now() (without time zone)
+     */
+    private String getTransactionTimestamp(Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            try (ResultSet rs = statement.executeQuery("select localtimestamp::text;")) {
+                rs.next();
+                return rs.getString(1);
+            }
+        }
+    }
+
+
+    /**
+     * Writes the same rows as {@link #insertSequences(Connection, List)} but uses COPY. updated_at is set to the start
+     * time of the transaction, as now() does.
+     */
+    private void copySequences(
+            Connection conn,
+            List<Sequence> toInsert,
+            String sequenceTable,
+            String aaMutationTable,
+            String nucMutationTable
+    ) throws SQLException {
+        String now = getTransactionTimestamp(conn);
+
+        // 3. Copy into gisaid_api_sequence
+        try (PostgresCopyWriter writer = new PostgresCopyWriter(conn, sequenceTable,
+                "updated_at",
+                "gisaid_epi_isl", "strain", "virus", "date", "date_original", "country", "region_original",
+                "country_original", "division", "location", "host", "age", "sex", "pangolin_lineage", "gisaid_clade",
+                "originating_lab", "submitting_lab", "authors", "date_submitted", "sampling_strategy", "seq_original",
+                "seq_aligned", "nextclade_clade", "nextclade_qc_overall_score", "nextclade_qc_overall_status",
+                "nextclade_total_gaps", "nextclade_total_insertions", "nextclade_total_missing",
+                "nextclade_total_mutations", "nextclade_total_non_acgtns", "nextclade_total_pcr_primer_changes",
+                "nextclade_alignment_start", "nextclade_alignment_end", "nextclade_alignment_score",
+                "nextclade_qc_missing_data_score", "nextclade_qc_missing_data_status",
+                "nextclade_qc_missing_data_total", "nextclade_qc_mixed_sites_score", "nextclade_qc_mixed_sites_status",
+                "nextclade_qc_mixed_sites_total", "nextclade_qc_private_mutations_cutoff",
+                "nextclade_qc_private_mutations_excess", "nextclade_qc_private_mutations_score",
+                "nextclade_qc_private_mutations_status", "nextclade_qc_private_mutations_total",
+                "nextclade_qc_snp_clusters_clustered", "nextclade_qc_snp_clusters_score",
+                "nextclade_qc_snp_clusters_status", "nextclade_qc_snp_clusters_total", "nextclade_errors",
+                "metadata_hash", "seq_original_hash")) {
+            for (Sequence sequence : toInsert) {
+                SubmitterInformation si = sequence.getSubmitterInformation();
+                writer
+                        .add(now)
+                        .add(sequence.getGisaidEpiIsl())
+                        .add(sequence.getStrain())
+                        .add(sequence.getVirus())
+                        .add(sequence.getDate())
+                        .add(sequence.getDateOriginal())
+                        .add(sequence.getCountry())
+                        .add(sequence.getRegionOriginal())
+                        .add(sequence.getCountryOriginal())
+                        .add(sequence.getDivision())
+                        .add(sequence.getLocation())
+                        .add(sequence.getHost())
+                        .add(sequence.getAge())
+                        .add(sequence.getSex())
+                        .add(sequence.getPangolinLineage())
+                        .add(sequence.getGisaidClade())
+                        .add(si != null ? si.getOriginatingLab() : null)
+                        .add(si != null ? si.getSubmittingLab() : null)
+                        .add(si != null ? si.getAuthors() : null)
+                        .add(sequence.getDateSubmitted())
+                        .add(sequence.getSamplingStrategy())
+                        .add(sequence.getSeqOriginal())
+                        .add(sequence.getSeqAligned())
+                        .add(sequence.getNextcladeClade())
+                        .add(sequence.getNextcladeQcOverallScore())
+                        .add(sequence.getNextcladeQcOverallStatus())
+                        .add(sequence.getNextcladeTotalGaps())
+                        .add(sequence.getNextcladeTotalInsertions())
+                        .add(sequence.getNextcladeTotalMissing())
+                        .add(sequence.getNextcladeTotalMutations())
+                        .add(sequence.getNextcladeTotalNonAcgtns())
+                        .add(sequence.getNextcladeTotalPcrPrimerChanges())
+                        .add(sequence.getNextcladeAlignmentStart())
+                        .add(sequence.getNextcladeAlignmentEnd())
+                        .add(sequence.getNextcladeAlignmentScore())
+                        .add(sequence.getNextcladeQcMissingDataScore())
+                        .add(sequence.getNextcladeQcMissingDataStatus())
+                        .add(sequence.getNextcladeQcMissingDataTotal())
+                        .add(sequence.getNextcladeQcMixedSitesScore())
+                        .add(sequence.getNextcladeQcMixedSitesStatus())
+                        .add(sequence.getNextcladeQcMixedSitesTotal())
+                        .add(sequence.getNextcladeQcPrivateMutationsCutoff())
+                        .add(sequence.getNextcladeQcPrivateMutationsExcess())
+                        .add(sequence.getNextcladeQcPrivateMutationsScore())
+                        .add(sequence.getNextcladeQcPrivateMutationsStatus())
+                        .add(sequence.getNextcladeQcPrivateMutationsTotal())
+                        .add(sequence.getNextcladeQcSnpClustersClustered())
+                        .add(sequence.getNextcladeQcSnpClustersScore())
+                        .add(sequence.getNextcladeQcSnpClustersStatus())
+                        .add(sequence.getNextcladeQcSnpClustersTotal())
+                        .add(sequence.getNextcladeErrors())
+                        .add(sequence.getMetadataHash())
+                        .add(sequence.getSeqOriginalHash())
+                        .endRow();
+            }
+            writer.finish();
+        }
+
+        // 4. Copy into gisaid_api_sequence_nextclade_mutation_aa
+        try (PostgresCopyWriter writer = new PostgresCopyWriter(conn, aaMutationTable,
+                "gisaid_epi_isl", "aa_mutation")) {
+            for (Sequence sequence : toInsert) {
+                if (sequence.getNextcladeMutations() == null) {
+                    continue;
+                }
+                for (String mutation : sequence.getNextcladeMutations()) {
+                    writer.add(sequence.getGisaidEpiIsl()).add(mutation).endRow();
+                }
+            }
+            writer.finish();
+        }
+
+        // 5. Copy into gisaid_api_sequence_mutation_nucleotide (or gisaid_api_sequence_mutation_nucleotide_packed)
+        if (nucleotideMutationStorage == NucleotideMutationStorage.PACKED) {
+            try (PostgresCopyWriter writer = new PostgresCopyWriter(conn, nucMutationTable,
+                    "gisaid_epi_isl", "mutations")) {
+                for (Sequence sequence : toInsert) {
+                    if (sequence.getNucleotideMutations() == null) {
+                        continue;
+                    }
+                    int[] packed = PackedNucleotideMutations.encode(sequence.getNucleotideMutations());
+                    writer.add(sequence.getGisaidEpiIsl()).add(PackedNucleotideMutations.toArrayLiteral(packed))
+                            .endRow();
+                }
+                writer.finish();
+            }
+            return;
+        }
+        try (PostgresCopyWriter writer = new PostgresCopyWriter(conn, nucMutationTable,
+                "gisaid_epi_isl", "position", "mutation")) {
+            for (Sequence sequence : toInsert) {
+                if (sequence.getNucleotideMutations() == null) {
+                    continue;
+                }
+                for (NucleotideMutationFinder.Mutation mutation : sequence.getNucleotideMutations()) {
+                    writer.add(sequence.getGisaidEpiIsl()).add(mutation.getPosition()).add(mutation.getMutation())
+                            .endRow();
+                }
+            }
+            writer.finish();
+        }
+    }
+
+
+    /**
+     * If the sequence is submitted by us, update the sequence_identifier table.
+     *
+     * @return The weirdEntryReports and the number of added sequences from us
+     */
+    private Pair<List<WeirdEntryReport>, Integer> updateSequenceIdentifier(Batch batch) throws SQLException {
+        List<WeirdEntryReport> weirdEntryReports = new ArrayList<>();
+        List<Pair<Integer, String>> ethidAndGisaidId = new ArrayList<>();
+        for (Sequence sequence : batch.getSequences()) {
+            MaybeResult<Boolean> maybeIsOurs = ethzParser.isOurs(sequence);
+            if (maybeIsOurs.getWeirdEntryReport() != null) {
+                weirdEntryReports.add(maybeIsOurs.getWeirdEntryReport());
+            }
+            if (maybeIsOurs.isGoodEnough() && maybeIsOurs.getResult()) {
+                MaybeResult<Integer> maybeEthid = ethzParser.parseEthid(sequence);
+                if (maybeEthid.getWeirdEntryReport() != null) {
+                    weirdEntryReports.add(maybeEthid.getWeirdEntryReport());
+                }
+                if (maybeEthid.isGoodEnough()) {
+                    ethidAndGisaidId.add(new Pair<>(maybeEthid.getResult(), sequence.getGisaidEpiIsl()));
+                }
+            }
+        }
+        if (!ethidAndGisaidId.isEmpty()) {
+            String updateSequenceIdentifierSql = """
+                update sequence_identifier si
+                set
+                  gisaid_id = ?
+                where
+                    si.ethid = ?
+                    and gisaid_id is null;
+            """;
+            try (Connection conn = databasePool.getConnection()) {
+                try (PreparedStatement statement = conn.prepareStatement(updateSequenceIdentifierSql)) {
+                    for (Pair<Integer, String> pair : ethidAndGisaidId) {
+                        statement.setString(1, pair.getValue1());
+                        statement.setInt(2, pair.getValue0());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+        }
+        return new Pair<>(weirdEntryReports, ethidAndGisaidId.size());
+    }
+
+}
@@ -5,7 +5,9 @@ import ch.ethz.harvester.core.Utils;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
 
 
 /**
@@ -19,6 +21,7 @@ public class FinalReport implements SendableReport {
     private LocalDateTime endTime;
     private int entriesInDataPackage;
     private int processedEntries;
+    private int resumedEntries;
     private int addedEntries;
     private int updatedTotalEntries;
     private int updatedMetadataEntries;
@@ -26,6 +29,16 @@ public class FinalReport implements SendableReport {
     private int deletedEntries;
     private int addedEntriesFromUs;
     private int failedEntries;
+    // The entries that needed an alignment and Nextclade (because they are new or their sequence changed) are split
+    // into: identical to another entry of the batch + analyzed by another worker + found in the analysis cache +
+    // analyzed by mafft/Nextclade
+    private int analysisNeededEntries;
+    private int duplicateEntries;
+    private int analyzedElsewhereEntries;
+    private int cachedEntries;
+    private int analyzedEntries;
+    private List<Long> batchProcessingMillis = new ArrayList<>();
+    private List<Integer> batchSizes = new ArrayList<>();
     private List<WeirdEntryReport> weirdEntryReports = new ArrayList<>();
     private List<Exception> unhandledExceptions = new ArrayList<>();
 
@@ -54,12 +67,21 @@ public class FinalReport implements SendableReport {
                         "Failed entries: " + failedEntries + "\n\n" +
                         "Entries in the data package: " + entriesInDataPackage + "\n" +
                         "Processed entries: " + processedEntries + "\n" +
+                        "Skipped (committed by the interrupted previous run): " + resumedEntries + "\n" +
                         "Added entries: " + addedEntries + "\n" +
                         "Updated entries: " + updatedTotalEntries + "\n" +
                         "Updated metadata: " + updatedMetadataEntries + "\n" +
                         "Updated sequences: " + updatedSequenceEntries + "\n" +
                         "Deleted entries: " + deletedEntries + "\n" +
                         "Added entries from us: " + addedEntriesFromUs + "\n" +
+                        "Entries that needed an analysis: " + analysisNeededEntries + "\n" +
+                        "  Identical to another entry of the batch: " + duplicateEntries + "\n" +
+                        "  Identical to an entry of another batch: " + analyzedElsewhereEntries + "\n" +
+                        "  Found in the analysis cache: " + cachedEntries + "\n" +
+                        "  Analyzed by mafft and Nextclade: " + analyzedEntries
+                        + formatPercentage(analyzedEntries, analysisNeededEntries) + "\n" +
+                        "Batch runtimes: " + getBatchRuntimeSummary() + "\n" +
+                        "Batch sizes: " + formatBatchSizes() + "\n" +
                         "Number of weird entries: " + weirdEntryReports.size() + "\n" +
                         "Number of unhandled exceptions: " + unhandledExceptions.size() + "\n\n";
         if (!weirdEntryReports.isEmpty()) {
@@ -82,6 +104,43 @@ public class FinalReport implements SendableReport {
     }
 
 
+    /**
+     * The spread of the runtimes shows whether the batches have a similar cost: with a high coefficient of variation
+     * (cv), the workers wait for the slowest batches.
+     */
+    public String getBatchRuntimeSummary() {
+        if (batchProcessingMillis.isEmpty()) {
+            return "no batches";
+        }
+        List<Long> sorted = new ArrayList<>(batchProcessingMillis);
+        Collections.sort(sorted);
+        double mean = sorted.stream().mapToLong(Long::longValue).average().orElse(0) / 1000;
+        double variance = sorted.stream().mapToDouble(m -> Math.pow(m / 1000.0 - mean, 2)).sum() / sorted.size();
+        double sd = Math.sqrt(variance);
+        return String.format("%d batches, mean %.1f s, sd %.1f s, cv %.2f, p95 %.1f s, max %.1f s",
+                sorted.size(), mean, sd, mean > 0 ? sd / mean : 0,
+                sorted.get((int) Math.ceil(0.95 * sorted.size()) - 1) / 1000.0,
+                sorted.get(sorted.size() - 1) / 1000.0);
+    }
+
+
+    /**
+     * The initial batch size followed by the sizes that the adaptive batch sizing chose
+     */
+    private String formatBatchSizes() {
+        if (batchSizes.size() <= 1) {
+            return batchSizes.isEmpty() ? "-" : batchSizes.get(0) + " (not changed)";
+        }
+        return batchSizes.stream().map(String::valueOf).collect(Collectors.joining(" -> "))
+                + " (min " + Collections.min(batchSizes) + ", max " + Collections.max(batchSizes) + ")";
+    }
+
+
+    private static String formatPercentage(int part, int total) {
+        return total > 0 ? String.format(" (%.1f%%)", 100.0 * part / total) : "";
+    }
+
+
     public boolean isSuccess() {
         return success;
     }
@@ -136,6 +195,15 @@ public class FinalReport implements SendableReport {
         return this;
     }
 
+    public int getResumedEntries() {
+        return resumedEntries;
+    }
+
+    public FinalReport setResumedEntries(int resumedEntries) {
+        this.resumedEntries = resumedEntries;
+        return this;
+    }
+
     public int getAddedEntries() {
         return addedEntries;
     }
@@ -199,6 +267,69 @@ public class FinalReport implements SendableReport {
         return this;
     }
 
+    public int getAnalysisNeededEntries() {
+        return analysisNeededEntries;
+    }
+
+    public FinalReport setAnalysisNeededEntries(int analysisNeededEntries) {
+        this.analysisNeededEntries = analysisNeededEntries;
+        return this;
+    }
+
+    public int getDuplicateEntries() {
+        return duplicateEntries;
+    }
+
+    public FinalReport setDuplicateEntries(int duplicateEntries) {
+        this.duplicateEntries = duplicateEntries;
+        return this;
+    }
+
+    public int getAnalyzedElsewhereEntries() {
+        return analyzedElsewhereEntries;
+    }
+
+    public FinalReport setAnalyzedElsewhereEntries(int analyzedElsewhereEntries) {
+        this.analyzedElsewhereEntries = analyzedElsewhereEntries;
+        return this;
+    }
+
+    public int getCachedEntries() {
+        return cachedEntries;
+    }
+
+    public FinalReport setCachedEntries(int cachedEntries) {
+        this.cachedEntries = cachedEntries;
+        return this;
+    }
+
+    public int getAnalyzedEntries() {
+        return analyzedEntries;
+    }
+
+    public FinalReport setAnalyzedEntries(int analyzedEntries) {
+        this.analyzedEntries = analyzedEntries;
+        return this;
+    }
+
+    public List<Long> getBatchProcessingMillis() {
+        return batchProcessingMillis;
+    }
+
+    public FinalReport setBatchProcessingMillis(List<Long> batchProcessingMillis) {
+        this.batchProcessingMillis = batchProcessingMillis;
+        return this;
+    }
+
+    public List<Integer> getBatchSizes() {
+        return batchSizes;
+    }
+
+    public FinalReport setBatchSizes(List<Integer> batchSizes) {
+        this.batchSizes = batchSizes;
+        return this;
+    }
+
     public List<WeirdEntryReport> getWeirdEntryReports() {
         return weirdEntryReports;
     }
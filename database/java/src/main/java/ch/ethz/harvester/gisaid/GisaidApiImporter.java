@@ -1,8 +1,14 @@
 package ch.ethz.harvester.gisaid;
 
 import ch.ethz.harvester.core.*;
+import ch.ethz.harvester.general.AminoAcidMutationFinder;
 import ch.ethz.harvester.general.NucleotideMutationFinder;
+import ch.ethz.harvester.general.NucleotideMutationStorage;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mchange.v2.c3p0.ComboPooledDataSource;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
@@ -11,28 +17,25 @@ import org.tukaani.xz.XZInputStream;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.*;
-import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeParseException;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 
 public class GisaidApiImporter extends SubProgram<GisaidProgramConfig> {
 
+    /**
+     * The number of lines of the data package that the reader hands over to a parse worker at once
+     */
+    private static final int LINE_CHUNK_SIZE = 100;
+
     private ComboPooledDataSource databasePool;
 
 
@@ -87,6 +90,56 @@ public class GisaidApiImporter extends SubProgram<GisaidProgramConfig> {
                 && (boolean) programConfig.getUpdateSubmitterInformation();
         int numberWorkers = programConfig.getNumberWorkers();
         int batchSize = programConfig.getBatchSize();
+        int batchWindow = programConfig.getBatchWindow() != null ? programConfig.getBatchWindow() : 1;
+        boolean adaptiveBatchSize = programConfig.getAdaptiveBatchSize() != null
+                && programConfig.getAdaptiveBatchSize();
+        int minBatchSize = programConfig.getMinBatchSize() != null
+                ? programConfig.getMinBatchSize() : Math.max(1, batchSize / 4);
+        int maxBatchSize = programConfig.getMaxBatchSize() != null
+                ? programConfig.getMaxBatchSize() : 4 * batchSize;
+        long targetBatchSeconds = programConfig.getTargetBatchSeconds() != null
+                ? programConfig.getTargetBatchSeconds() : 300;
+        boolean streamDataPackage = programConfig.getStreamDataPackage() != null
+                && programConfig.getStreamDataPackage();
+        int numberParseWorkers = programConfig.getNumberParseWorkers() != null
+                ? programConfig.getNumberParseWorkers() : 1;
+        int numberDecompressionThreads = programConfig.getNumberDecompressionThreads() != null
+                ? programConfig.getNumberDecompressionThreads() : 1;
+        boolean useCopy = programConfig.getUseCopy() != null && programConfig.getUseCopy();
+        boolean stagingMerge = programConfig.getStagingMerge() != null && programConfig.getStagingMerge();
+        NucleotideMutationStorage nucleotideMutationStorage = programConfig.getNucleotideMutationStorage() != null
+                ? programConfig.getNucleotideMutationStorage() : NucleotideMutationStorage.ROWS;
+        Aligner aligner = programConfig.getAligner() != null ? programConfig.getAligner() : Aligner.MAFFT;
+        AminoAcidCaller aminoAcidCaller = programConfig.getAminoAcidCaller() != null
+                ? programConfig.getAminoAcidCaller() : AminoAcidCaller.NEXTCLADE;
+        int numberMutationWorkers = programConfig.getNumberMutationWorkers() != null
+                ? programConfig.getNumberMutationWorkers() : 1;
+        int numberDatabaseWriters = programConfig.getNumberDatabaseWriters() != null
+                ? programConfig.getNumberDatabaseWriters() : 2;
+        int groupCommitBatches = programConfig.getGroupCommitBatches() != null
+                ? programConfig.getGroupCommitBatches() : 4;
+        int maxMafftProcesses = programConfig.getMaxMafftProcesses() != null
+                ? programConfig.getMaxMafftProcesses() : numberWorkers;
+        int maxNextcladeProcesses = programConfig.getMaxNextcladeProcesses() != null
+                ? programConfig.getMaxNextcladeProcesses() : numberWorkers;
+        Path manifestFile = programConfig.getManifestFile() != null ? Path.of(programConfig.getManifestFile()) : null;
+        Path checkpointDir = programConfig.getCheckpointDir() != null ? Path.of(programConfig.getCheckpointDir()) : null;
+        if (stagingMerge && checkpointDir != null) {
+            // The staging tables are unlogged: after a crash of the database, the committed entries might be gone.
+            System.out.println("[main] Checkpoints are not supported in the staging merge mode.");
+            checkpointDir = null;
+        }
+        Path analysisCacheDir = programConfig.getAnalysisCacheDir() != null
+                ? Path.of(programConfig.getAnalysisCacheDir()) : null;
+        long analysisCacheMaxSizeMb = programConfig.getAnalysisCacheMaxSizeMb() != null
+                ? programConfig.getAnalysisCacheMaxSizeMb() : 10240;
+        int cpuBudgetTokens = programConfig.getCpuBudget() != null
+                ? programConfig.getCpuBudget() : Runtime.getRuntime().availableProcessors();
+        // By default, a tool may use up to twice its fair share so that the cores that are left by the workers in a
+        // single-threaded phase are used.
+        int maxThreadsPerTool = programConfig.getMaxThreadsPerTool() != null
+                ? programConfig.getMaxThreadsPerTool()
+                : Math.max(1, (2 * cpuBudgetTokens + numberWorkers - 1) / numberWorkers);
         Path workDir = Path.of(workDirArg);
 
         /* Preparations */
@@ -147,20 +200,95 @@ public class GisaidApiImporter extends SubProgram<GisaidProgramConfig> {
         Path referenceFasta = workDir.resolve("reference.fasta");
         Files.writeString(referenceFasta, ">REFERENCE\n" + Reference.REFERENCE + "\n\n");
 
+        // Find out which sequences are already in the database. If the previous run left a manifest and nobody has
+        // changed the database since then, the manifest is used. Otherwise, all GISAID EPI ISL are loaded from the
+        // database.
+        GisaidApiImporterState automationState = loadAutomationState();
+        ImportManifest previousManifest = openManifest(manifestFile, automationState.getManifestId());
+        ImportedSequences existingSequences = previousManifest != null
+                ? previousManifest : loadExistingGisaidEpiIsls();
+
+        // Create an instance of the NucleotideMutationFinder
+        NucleotideMutationFinder nucleotideMutationFinder;
+        try (Connection conn = databasePool.getConnection()) {
+            String referenceGenome = NucleotideMutationFinder.loadReferenceGenome(conn);
+            Set<Integer> maskSites = NucleotideMutationFinder.loadMaskSites(conn);
+            nucleotideMutationFinder = new NucleotideMutationFinder(referenceGenome, maskSites);
+            nucleotideMutationStorage.verifySchema(conn);
+        }
+
+        // If the previous run was interrupted and GISAID still provides the same data package, the run is resumed from
+        // its checkpoint: the local copy of the data package is used and the entries that were already committed are
+        // skipped. If the previous run had already committed all batches, only the deletions are left.
+        ImportCheckpoint checkpoint = checkpointDir != null
+                ? openCheckpoint(checkpointDir, automationState, new URL(gisaidApiUrlArg), gisaidApiUsername,
+                        gisaidApiPassword)
+                : null;
+        boolean resumed = checkpoint != null;
+        GisaidEpiIslSet committedEarlier = null;
+        if (resumed) {
+            GisaidEpiIslSet pendingDeletes = checkpoint.loadPendingDeletes();
+            if (pendingDeletes != null) {
+                return finishFromCheckpoint(checkpoint, pendingDeletes, automationState, manifestFile,
+                        notificationSystem, workDir);
+            }
+            committedEarlier = checkpoint.loadCommitted();
+            System.out.println("[main] Resuming the interrupted import of " + automationState.getCheckpointDataPackage()
+                    + ": " + committedEarlier.size() + " entries were already committed");
+        } else if (checkpointDir != null) {
+            checkpoint = ImportCheckpoint.create(checkpointDir, UUID.randomUUID().toString());
+        }
+
         // Download the compressed data (note: the data will not be fully de-compressed but directly read from the
-        // compressed archive)
-        Path gisaidDataFile = workDir.resolve("provision.json.xz");
+        // compressed archive). In the streaming mode, the data package is parsed while it is being downloaded and a
+        // copy is written to the work directory (or the checkpoint directory) at the same time. If GISAID has not
+        // changed the data package since the last successful import, there is nothing to do. The decompression runs in
+        // separate threads: a file that consists of multiple xz blocks is decompressed by $numberDecompressionThreads
+        // threads in parallel.
+        DataPackageInfo lastImportedDataPackage = automationState.getLastImportedDataPackage();
+        Path gisaidDataFile = checkpoint != null
+                ? checkpoint.getDataPackageFile() : workDir.resolve("provision.json.xz");
+        DataPackageDownload dataPackageDownload = null;
+        DataPackageInfo dataPackageInfo = null;
+        InputStream compressedIn = null;
+        InputStream decompressedIn;
         try {
-            downloadDataPackage(
-                    new URL(gisaidApiUrlArg),
-                    gisaidApiUsername,
-                    gisaidApiPassword,
-                    workDir.resolve("provision.json.xz")
-            );
+            if (resumed) {
+                dataPackageInfo = automationState.getCheckpointDataPackage();
+                decompressedIn = ParallelXZInputStream.open(gisaidDataFile, numberDecompressionThreads);
+            } else {
+                dataPackageDownload = new DataPackageDownload(
+                        new URL(gisaidApiUrlArg),
+                        gisaidApiUsername,
+                        gisaidApiPassword,
+                        lastImportedDataPackage
+                );
+                if (dataPackageDownload.isNotModified()) {
+                    skipUnchangedDataPackage(lastImportedDataPackage, notificationSystem, workDir, checkpoint);
+                    return true;
+                }
+                if (streamDataPackage) {
+                    OutputStream localCopy = new BufferedOutputStream(new FileOutputStream(gisaidDataFile.toFile()));
+                    compressedIn = new TeeInputStream(dataPackageDownload, localCopy, true);
+                    decompressedIn = new ReadAheadInputStream(new XZInputStream(compressedIn));
+                } else {
+                    downloadDataPackage(dataPackageDownload, gisaidDataFile);
+                    dataPackageInfo = dataPackageDownload.getDataPackageInfo();
+                    if (lastImportedDataPackage != null
+                            && Objects.equals(dataPackageInfo.getSha256(), lastImportedDataPackage.getSha256())) {
+                        skipUnchangedDataPackage(lastImportedDataPackage, notificationSystem, workDir, checkpoint);
+                        return true;
+                    }
+                    armCheckpoint(checkpoint, dataPackageInfo, automationState);
+                    decompressedIn = ParallelXZInputStream.open(gisaidDataFile, numberDecompressionThreads);
+                }
+            }
         } catch (IOException e) {
             System.err.println("provision.json.xz could not be downloaded from GISAID");
             throw e;
         }
+        BufferedReader gisaidReader = new BufferedReader(
+                new InputStreamReader(decompressedIn, StandardCharsets.UTF_8));
 
         // Read the first 10 lines and check that (1) all required attributes are present, and (2) if unexpected
         // attributes were found or expected (but non-required) attributes were not found, send a notification email.
@@ -197,11 +325,14 @@ public class GisaidApiImporter extends SubProgram<GisaidProgramConfig> {
         Set<String> missingRequiredFields = new HashSet<>();
         Set<String> additionalFields = new HashSet<>();
 
-        BufferedInputStream compressedIn = new BufferedInputStream(new FileInputStream(gisaidDataFile.toFile()));
-        XZInputStream decompressedIn = new XZInputStream(compressedIn);
-        BufferedReader gisaidReader = new BufferedReader(new InputStreamReader(decompressedIn, StandardCharsets.UTF_8));
+        // The lines are kept and will be processed together with the rest of the data package.
+        List<String> firstLines = new ArrayList<>();
         for (int i = 0; i < 10; i++) {
             String line = gisaidReader.readLine();
+            if (line == null) {
+                break;
+            }
+            firstLines.add(line);
             JSONObject json = (JSONObject) new JSONParser().parse(line);
             Set<String> foundFields = json.keySet();
             Set<String> _missingFields = new HashSet<>(expectedFields);
@@ -214,96 +345,184 @@ public class GisaidApiImporter extends SubProgram<GisaidProgramConfig> {
             missingRequiredFields.addAll(_missingRequiredFields);
             additionalFields.addAll(_additionalFields);
         }
-        compressedIn.close();
         if (!missingFields.isEmpty() || !additionalFields.isEmpty()) {
             notificationSystem.sendReport(new UnexpectedDataReport(missingFields, missingRequiredFields, additionalFields));
             if (!missingRequiredFields.isEmpty()) {
+                decompressedIn.close();
                 return false;
             }
         }
 
-        // Load the list of all GISAID EPI ISL from the database.
-        String loadExistingIdsSql = """
-            select gisaid_epi_isl
-            from gisaid_api_sequence;
-        """;
-        Set<String> existingGisaidEpiIsls = new HashSet<>();
-        try (Connection conn = databasePool.getConnection()) {
-            try (Statement statement = conn.createStatement()) {
-                try (ResultSet rs = statement.executeQuery(loadExistingIdsSql)) {
-                    while (rs.next()) {
-                        existingGisaidEpiIsls.add(rs.getString("gisaid_epi_isl"));
-                    }
-                }
-            }
+        // From now on, the database will be changed and the manifest does not describe it anymore. A new manifest is
+        // only written if the run is successful.
+        if (automationState.getManifestId() != null) {
+            automationState.setManifestId(null);
+            updateAutomationState(automationState);
         }
+        // The entries that a resumed run skips because the interrupted run already committed them are not written
+        // again and would be missing in a merged manifest. Therefore, the manifest of a resumed run is created from the
+        // database.
+        final ImportManifest manifestToMerge = committedEarlier == null ? previousManifest : null;
+        final ConcurrentLinkedQueue<ImportManifest.Entry> writtenEntries
+                = manifestFile != null && manifestToMerge != null ? new ConcurrentLinkedQueue<>() : null;
 
-        // Create an instance of the NucleotideMutationFinder
-        NucleotideMutationFinder nucleotideMutationFinder;
-        try (Connection conn = databasePool.getConnection()) {
-            String referenceGenome = NucleotideMutationFinder.loadReferenceGenome(conn);
-            Set<Integer> maskSites = NucleotideMutationFinder.loadMaskSites(conn);
-            nucleotideMutationFinder = new NucleotideMutationFinder(referenceGenome, maskSites);
+        // In the staging merge mode, the workers write into unlogged staging tables. gisaid_api_sequence is only
+        // changed at the end of the run, in a single transaction.
+        if (stagingMerge) {
+            try (Connection conn = databasePool.getConnection()) {
+                StagingTables.create(conn, nucleotideMutationStorage);
+            }
         }
 
-        // Create a queue to store batches and start workers to process them.
+        // The batches pass through the stages analysis (change detection, mafft and Nextclade), mutations (nucleotide
+        // mutations) and database (writing). The stages are connected by bounded queues and each stage has its own
+        // number of threads, so the analysis does not wait for the database and vice versa.
         ExhaustibleBlockingQueue<Batch> gisaidBatchQueue = new ExhaustibleLinkedBlockingQueue<>(Math.max(4, numberWorkers / 2));
-        final ConcurrentLinkedQueue<BatchReport> batchReports = new ConcurrentLinkedQueue<>();
+        ExhaustibleBlockingQueue<AnalyzedBatch> analyzedBatchQueue
+                = new ExhaustibleLinkedBlockingQueue<>(Math.max(4, numberWorkers / 2));
+        ExhaustibleBlockingQueue<AnalyzedBatch> writableBatchQueue
+                = new ExhaustibleLinkedBlockingQueue<>(Math.max(4, numberDatabaseWriters * groupCommitBatches));
+        final LinkedBlockingQueue<BatchReport> batchReports = new LinkedBlockingQueue<>();
         final ConcurrentLinkedQueue<Exception> unhandledExceptions = new ConcurrentLinkedQueue<>();
         final AtomicBoolean emergencyBrake = new AtomicBoolean(false);
-        ExecutorService executor = Executors.newFixedThreadPool(numberWorkers);
+        ToolProcessPool mafftPool = new ToolProcessPool("mafft", maxMafftProcesses, 20);
+        ToolProcessPool nextcladePool = new ToolProcessPool("Nextclade", maxNextcladeProcesses, 20);
+        AnalysisCache analysisCache = openAnalysisCache(analysisCacheDir, analysisCacheMaxSizeMb, aligner,
+                aminoAcidCaller);
+        InFlightAnalyses inFlightAnalyses = new InFlightAnalyses();
+        CpuBudget cpuBudget = new CpuBudget(cpuBudgetTokens);
+
+        PipelineStage<Batch, AnalyzedBatch> analysisStage = new PipelineStage<>("analysis", numberWorkers, 1,
+                gisaidBatchQueue, analyzedBatchQueue, batch -> batch.getSequences().size(), emergencyBrake,
+                unhandledExceptions);
+        PipelineStage<AnalyzedBatch, AnalyzedBatch> mutationStage = new PipelineStage<>("mutations",
+                numberMutationWorkers, 1, analyzedBatchQueue, writableBatchQueue,
+                analyzedBatch -> analyzedBatch.getBatch().getSequences().size(), emergencyBrake, unhandledExceptions);
+        PipelineStage<AnalyzedBatch, BatchReport> databaseStage = new PipelineStage<>("database",
+                numberDatabaseWriters, groupCommitBatches, writableBatchQueue, batchReports,
+                analyzedBatch -> analyzedBatch.getBatch().getSequences().size(), emergencyBrake, unhandledExceptions);
+        List<PipelineStage<?, ?>> stages = List.of(analysisStage, mutationStage, databaseStage);
+        final ImportCheckpoint finalCheckpoint = checkpoint;
+
+        // The batches that can be in memory at the same time: in the queues, at the workers of the stages and in the
+        // windows of the parse workers. Together, they may use half of the heap.
+        int batchesInMemory = gisaidBatchQueue.remainingCapacity() + analyzedBatchQueue.remainingCapacity()
+                + writableBatchQueue.remainingCapacity() + numberWorkers + numberMutationWorkers
+                + numberDatabaseWriters * groupCommitBatches + numberParseWorkers * (batchWindow + 1);
+        int memoryBatchSize = BatchSizeController.maxBatchSizeForMemory(
+                Runtime.getRuntime().maxMemory() / 2, batchesInMemory);
+        BatchSizeController batchSizeController = adaptiveBatchSize
+                ? new BatchSizeController(batchSize, minBatchSize, Math.min(maxBatchSize, memoryBatchSize),
+                        targetBatchSeconds * 1000, gisaidBatchQueue)
+                : new BatchSizeController(batchSize, batchSize, batchSize, 0, gisaidBatchQueue);
+        if (adaptiveBatchSize) {
+            System.out.println("[main] Adaptive batch size between " + minBatchSize + " and "
+                    + Math.min(maxBatchSize, memoryBatchSize) + " (memory limit: " + memoryBatchSize + ")");
+        }
 
         for (int i = 0; i < numberWorkers; i++) {
             //Create a work directory for the worker
-            Path workerWorkDir = workDir.resolve("worker-" + i);
-            Files.createDirectory(workerWorkDir);
+            Files.createDirectory(workDir.resolve("worker-" + i));
+        }
+        analysisStage.start(i -> {
+            BatchProcessingWorker worker = new BatchProcessingWorker(
+                    i,
+                    workDir.resolve("worker-" + i),
+                    referenceFasta,
+                    databasePool,
+                    importMode,
+                    updateSubmitterInformation,
+                    aligner,
+                    aminoAcidCaller,
+                    mafftPool,
+                    nextcladePool,
+                    analysisCache,
+                    inFlightAnalyses,
+                    cpuBudget,
+                    maxThreadsPerTool
+            );
+            return batches -> {
+                int numberSequences = batches.get(0).getSequences().size();
+                long batchStart = System.currentTimeMillis();
+                AnalyzedBatch analyzedBatch = worker.analyze(batches.get(0));
+                long processingMillis = System.currentTimeMillis() - batchStart;
+                analyzedBatch.getReport().setProcessingMillis(processingMillis);
+                if (!analyzedBatch.isFailed()) {
+                    batchSizeController.record(numberSequences, processingMillis);
+                }
+                return List.of(analyzedBatch);
+            };
+        });
+        mutationStage.start(i -> analyzedBatches -> {
+            for (AnalyzedBatch analyzedBatch : analyzedBatches) {
+                BatchProcessingWorker.findNucleotideMutations(analyzedBatch, nucleotideMutationFinder);
+            }
+            return analyzedBatches;
+        });
+        databaseStage.start(i -> {
+            DatabaseWriter writer = new DatabaseWriter(i, databasePool, writtenEntries, useCopy, stagingMerge,
+                    nucleotideMutationStorage, finalCheckpoint);
+            return writer::write;
+        });
 
-            // Start worker
+        // Iterate through the downloaded data package. The main thread only cuts the data package into chunks of
+        // lines. The chunks are parsed by $numberParseWorkers parse workers. If APPEND MODE: they exclude all sequences
+        // that are already in the database. They group the sequences into batches of $batchSize samples (the size may
+        // be adjusted by the $batchSizeController) and put the batches into the $gisaidBatchQueue. All found GISAID EPI
+        // ISL will be collected in a list.
+        ExhaustibleBlockingQueue<List<String>> lineChunkQueue
+                = new ExhaustibleLinkedBlockingQueue<>(2 * numberParseWorkers);
+        GisaidEpiIslSet gisaidEpiIslInDataPackage = new GisaidEpiIslSet();
+        List<DataPackageParseWorker> parseWorkers = new ArrayList<>();
+        ExecutorService parseExecutor = Executors.newFixedThreadPool(numberParseWorkers);
+        for (int i = 0; i < numberParseWorkers; i++) {
+            DataPackageParseWorker parseWorker = new DataPackageParseWorker(
+                    i,
+                    gisaidCountryMap,
+                    geoLocationMapper,
+                    importMode,
+                    existingSequences,
+                    !updateSubmitterInformation,
+                    gisaidEpiIslInDataPackage,
+                    committedEarlier,
+                    batchSizeController::getBatchSize,
+                    batchWindow
+            );
+            parseWorkers.add(parseWorker);
             final int finalI = i;
-            executor.submit(() -> {
-                BatchProcessingWorker worker = new BatchProcessingWorker(
-                        finalI,
-                        workerWorkDir,
-                        referenceFasta,
-                        databasePool,
-                        importMode,
-                        updateSubmitterInformation,
-                        nucleotideMutationFinder
-                );
-                while (!emergencyBrake.get() && (!gisaidBatchQueue.isExhausted() || !gisaidBatchQueue.isEmpty())) {
-                    try {
-                        Batch batch = gisaidBatchQueue.poll(5, TimeUnit.SECONDS);
-                        if (batch == null) {
+            parseExecutor.submit(() -> {
+                String logPrefix = "[parse-" + finalI + "] ";
+                try {
+                    while (!emergencyBrake.get() && (!lineChunkQueue.isExhausted() || !lineChunkQueue.isEmpty())) {
+                        List<String> lineChunk = lineChunkQueue.poll(5, TimeUnit.SECONDS);
+                        if (lineChunk == null) {
                             continue;
                         }
-                        BatchReport batchReport = worker.run(batch);
-                        batchReports.add(batchReport);
-                    } catch (InterruptedException e) {
-                        // When the emergency brake is pulled, it is likely that a worker will be interrupted. This is
-                        // normal and does not constitute an additional error.
-                        if (!emergencyBrake.get()) {
-                            unhandledExceptions.add(e);
+                        for (Batch batch : parseWorker.run(lineChunk)) {
+                            offerToQueue(gisaidBatchQueue, batch, emergencyBrake, logPrefix);
+                        }
+                    }
+                    for (Batch batch : parseWorker.flush()) {
+                        if (emergencyBrake.get()) {
+                            break;
                         }
-                    } catch (Exception e) {
+                        offerToQueue(gisaidBatchQueue, batch, emergencyBrake, logPrefix);
+                    }
+                } catch (InterruptedException e) {
+                    if (!emergencyBrake.get()) {
                         unhandledExceptions.add(e);
-                        emergencyBrake.set(true);
-                        return;
                     }
+                } catch (Exception e) {
+                    unhandledExceptions.add(e);
+                    emergencyBrake.set(true);
                 }
             });
         }
 
-        // Iterate through the downloaded data package. If APPEND MODE: exclude all sequences that are already in the
-        // database. Group the sequences into batches of $batchSize samples and put the batches into the
-        // $gisaidBatchQueue. All found GISAID EPI ISL will be collected in a list.
-        List<Sequence> batchEntries = new ArrayList<>();
-        compressedIn = new BufferedInputStream(new FileInputStream(gisaidDataFile.toFile()));
-        decompressedIn = new XZInputStream(compressedIn);
-        gisaidReader = new BufferedReader(new InputStreamReader(decompressedIn, StandardCharsets.UTF_8));
         String line;
-        int entriesInDataPackage = 0;
-        int processedEntries = 0;
-        Set<String> gisaidEpiIslInDataPackage = new HashSet<>();
+        int entriesInDataPackage = firstLines.size();
+        List<String> lineChunk = new ArrayList<>(LINE_CHUNK_SIZE);
+        lineChunk.addAll(firstLines);
         while ((line = gisaidReader.readLine()) != null) {
             if (emergencyBrake.get()) {
                 break;
@@ -312,72 +531,73 @@ public class GisaidApiImporter extends SubProgram<GisaidProgramConfig> {
             if (entriesInDataPackage % 10000 == 0) {
                 System.out.println("[main] Read " + entriesInDataPackage + " in the data package");
             }
-            try {
-                JSONObject json = (JSONObject) new JSONParser().parse(line);
-                String gisaidEpiIsl = (String) json.get("covv_accession_id");
-                gisaidEpiIslInDataPackage.add(gisaidEpiIsl);
-                if (importMode == ImportMode.APPEND) {
-                    if (existingGisaidEpiIsls.contains(gisaidEpiIsl)) {
-                        continue;
-                    }
-                }
-                Sequence sequence = parseDataPackageLine(json, gisaidCountryMap, geoLocationMapper);
-                batchEntries.add(sequence);
-                processedEntries++;
-            } catch (ParseException e) {
-                System.err.println("JSON parsing failed!");
-                throw e;
-            }
-            if (batchEntries.size() >= batchSize) {
-                Batch batch = new Batch(batchEntries);
-                while (!emergencyBrake.get()) {
-                    System.out.println("[main] Try adding a batch");
-                    boolean success = gisaidBatchQueue.offer(batch, 5, TimeUnit.SECONDS);
-                    if (success) {
-                        System.out.println("[main] Batch added");
-                        break;
-                    }
-                }
-                batchEntries = new ArrayList<>();
+            lineChunk.add(line);
+            if (lineChunk.size() >= LINE_CHUNK_SIZE) {
+                offerToQueue(lineChunkQueue, lineChunk, emergencyBrake, null);
+                lineChunk = new ArrayList<>(LINE_CHUNK_SIZE);
             }
         }
-        if (!emergencyBrake.get() && !batchEntries.isEmpty()) {
-            Batch lastBatch = new Batch(batchEntries);
-            while (!emergencyBrake.get()) {
-                System.out.println("[main] Try adding a batch");
-                boolean success = gisaidBatchQueue.offer(lastBatch, 5, TimeUnit.SECONDS);
-                if (success) {
-                    System.out.println("[main] Batch added");
-                    break;
-                }
-            }
-            batchEntries = null;
+        if (!emergencyBrake.get() && !lineChunk.isEmpty()) {
+            offerToQueue(lineChunkQueue, lineChunk, emergencyBrake, null);
         }
+        if (!emergencyBrake.get() && streamDataPackage && !resumed) {
+            // Make sure that the local copy is complete
+            IOUtils.consume(compressedIn);
+            dataPackageInfo = dataPackageDownload.getDataPackageInfo();
+            armCheckpoint(checkpoint, dataPackageInfo, automationState);
+        }
+        decompressedIn.close();
+        lineChunkQueue.setExhausted(true);
+        parseExecutor.shutdown();
+        parseExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        int processedEntries = parseWorkers.stream().mapToInt(DataPackageParseWorker::getProcessedEntries).sum();
+        int resumedEntries = parseWorkers.stream().mapToInt(DataPackageParseWorker::getResumedEntries).sum();
         gisaidBatchQueue.setExhausted(true);
 
         // If someone pulled the emergency brake, collect some information and send a notification email.
         if (emergencyBrake.get()) {
             System.err.println("Emergency exit!");
-            executor.shutdown();
-            boolean terminated = executor.awaitTermination(3, TimeUnit.MINUTES);
-            if (!terminated) {
-                executor.shutdownNow();
+            for (PipelineStage<?, ?> stage : stages) {
+                boolean terminated = stage.awaitTermination(3, TimeUnit.MINUTES);
+                if (!terminated) {
+                    stage.shutdownNow();
+                }
             }
         } else {
             // Wait until all batches are finished.
-            executor.shutdown();
-            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            for (PipelineStage<?, ?> stage : stages) {
+                stage.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+        }
+        for (PipelineStage<?, ?> stage : stages) {
+            stage.logThroughput();
+        }
+        cpuBudget.logUtilization();
+        if (analysisCache != null) {
+            System.out.println("[main] Analysis cache: " + analysisCache.getHits() + " hits, "
+                    + analysisCache.getMisses() + " misses, " + analysisCache.getSizeBytes() / 1024 / 1024 + " MB");
         }
 
         // Deletions will also be performed by the APPEND mode because it's important to perform deletions on a
         // daily basis to prevent redundant data. Also, deletions are fast.
         int deleted = 0;
+        GisaidEpiIslSet toDelete = null;
         if (!emergencyBrake.get()) {
-            System.out.println("[main] Deleting removed sequences");
-            Set<String> toDelete = new HashSet<>(existingGisaidEpiIsls);
-            toDelete.removeAll(gisaidEpiIslInDataPackage);
-            deleteSequences(toDelete);
-            deleted = toDelete.size();
+            toDelete = existingSequences.missingFrom(gisaidEpiIslInDataPackage);
+            if (checkpoint != null) {
+                checkpoint.writePendingDeletes(toDelete);
+            }
+            if (stagingMerge) {
+                System.out.println("[main] Merging the staging tables into gisaid_api_sequence");
+                try (Connection conn = databasePool.getConnection()) {
+                    deleted = StagingTables.merge(conn, toDelete, nucleotideMutationStorage);
+                    StagingTables.drop(conn);
+                }
+            } else {
+                System.out.println("[main] Deleting removed sequences");
+                deleteSequences(toDelete);
+                deleted = toDelete.size();
+            }
         }
 
         // Refresh materialized views
@@ -398,6 +618,7 @@ public class GisaidApiImporter extends SubProgram<GisaidProgramConfig> {
                 .setEndTime(LocalDateTime.now())
                 .setEntriesInDataPackage(entriesInDataPackage)
                 .setProcessedEntries(processedEntries)
+                .setResumedEntries(resumedEntries)
                 .setAddedEntries(mergedBatchReport.getAddedEntries())
                 .setUpdatedTotalEntries(mergedBatchReport.getUpdatedTotalEntries())
                 .setUpdatedMetadataEntries(mergedBatchReport.getUpdatedMetadataEntries())
@@ -405,21 +626,154 @@ public class GisaidApiImporter extends SubProgram<GisaidProgramConfig> {
                 .setDeletedEntries(deleted)
                 .setAddedEntriesFromUs(mergedBatchReport.getAddedEntriesFromUs())
                 .setFailedEntries(mergedBatchReport.getFailedEntries())
+                .setAnalysisNeededEntries(mergedBatchReport.getAnalysisNeededEntries())
+                .setDuplicateEntries(mergedBatchReport.getDuplicateEntries())
+                .setAnalyzedElsewhereEntries(mergedBatchReport.getAnalyzedElsewhereEntries())
+                .setCachedEntries(mergedBatchReport.getCachedEntries())
+                .setAnalyzedEntries(mergedBatchReport.getAnalyzedEntries())
+                .setBatchProcessingMillis(batchReports.stream()
+                        .map(BatchReport::getProcessingMillis)
+                        .collect(Collectors.toList()))
+                .setBatchSizes(batchSizeController.getChosenSizes())
                 .setWeirdEntryReports(mergedBatchReport.getWeirdEntryReports())
                 .setUnhandledExceptions(new ArrayList<>(unhandledExceptions));
+        System.out.println("[main] Batch runtimes (batch window: " + batchWindow + "): "
+                + finalReport.getBatchRuntimeSummary());
         notificationSystem.sendReport(finalReport);
 
-        // Clean up the work directory
-        try (DirectoryStream<Path> directory = Files.newDirectoryStream(workDir)) {
-            for (Path path : directory) {
-                Files.delete(path);
+        // Remember the data package so that the next run can skip it if it has not changed, and write the manifest
+        // for the next run.
+        if (success && !emergencyBrake.get()) {
+            automationState
+                    .setLastImportedDataPackage(dataPackageInfo)
+                    .setCheckpointId(null)
+                    .setCheckpointDataPackage(null);
+            if (manifestFile != null) {
+                automationState.setManifestId(writeManifest(manifestFile, manifestToMerge, writtenEntries, toDelete));
+            }
+            updateAutomationState(automationState);
+            if (checkpoint != null) {
+                checkpoint.delete();
             }
         }
 
+        // Clean up the work directory
+        cleanUpWorkDir(workDir);
+
         return success;
     }
 
 
+    /**
+     * Loads the list of all GISAID EPI ISL from the database. The IDs are fetched with a cursor so that the driver does
+     * not hold the whole result in memory.
+     */
+    private GisaidEpiIslSet loadExistingGisaidEpiIsls() throws SQLException {
+        System.out.println("[main] Loading the existing GISAID EPI ISL from the database");
+        String loadExistingIdsSql = """
+            select gisaid_epi_isl
+            from gisaid_api_sequence;
+        """;
+        GisaidEpiIslSet existingGisaidEpiIsls = new GisaidEpiIslSet();
+        try (Connection conn = databasePool.getConnection()) {
+            conn.setAutoCommit(false);
+            try (Statement statement = conn.createStatement()) {
+                statement.setFetchSize(100000);
+                try (ResultSet rs = statement.executeQuery(loadExistingIdsSql)) {
+                    while (rs.next()) {
+                        existingGisaidEpiIsls.add(rs.getString("gisaid_epi_isl"));
+                    }
+                }
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+        }
+        return existingGisaidEpiIsls;
+    }
+
+
+    /**
+     * @return The manifest or null if there is no manifest or if it does not match the expected ID
+     */
+    private ImportManifest openManifest(Path manifestFile, String expectedManifestId) {
+        if (manifestFile == null || expectedManifestId == null || !Files.exists(manifestFile)) {
+            return null;
+        }
+        try {
+            ImportManifest manifest = ImportManifest.open(manifestFile);
+            if (!manifest.getId().toString().equals(expectedManifestId)) {
+                System.out.println("[main] The manifest is stale.");
+                return null;
+            }
+            System.out.println("[main] Using the manifest of the previous run with " + manifest.size() + " entries");
+            return manifest;
+        } catch (IOException e) {
+            System.err.println("[main] The manifest could not be read: " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    /**
+     * The cache entries are addressed with the reference and the versions of the tools so that results of a different
+     * setup are never used.
+     *
+     * @return The cache or null if no cache directory is configured
+     */
+    private AnalysisCache openAnalysisCache(
+            Path directory,
+            long maxSizeMb,
+            Aligner aligner,
+            AminoAcidCaller aminoAcidCaller
+    ) throws IOException, InterruptedException {
+        if (directory == null) {
+            return null;
+        }
+        String alignerVersion = aligner == Aligner.JAVA
+                ? "ReferenceAligner " + ReferenceAligner.VERSION
+                : ToolProcessPool.readVersion("mafft", "--version");
+        String nextcladeVersion = aminoAcidCaller == AminoAcidCaller.JAVA
+                ? "AminoAcidMutationFinder " + AminoAcidMutationFinder.VERSION
+                : ToolProcessPool.readVersion("nextclade", "--version");
+        String toolVersion = "reference: " + SequenceFingerprints.sequence(Reference.REFERENCE)
+                + ", aligner: " + alignerVersion
+                + ", nextclade: " + nextcladeVersion;
+        System.out.println("[main] Using the analysis cache in " + directory + " for " + toolVersion);
+        return new AnalysisCache(directory, toolVersion, maxSizeMb * 1024 * 1024);
+    }
+
+
+    /**
+     * Writes the manifest for the next run. If there is a manifest from the previous run, it is updated with the
+     * changes of this run. Otherwise, it is created from the database.
+     *
+     * @return The ID of the new manifest or null if it could not be written
+     */
+    private String writeManifest(
+            Path manifestFile,
+            ImportManifest previousManifest,
+            Collection<ImportManifest.Entry> writtenEntries,
+            GisaidEpiIslSet deleted
+    ) throws SQLException {
+        System.out.println("[main] Writing the manifest");
+        UUID manifestId = UUID.randomUUID();
+        try {
+            if (previousManifest != null) {
+                ImportManifest.writeMerged(manifestFile, manifestId, previousManifest, writtenEntries, deleted);
+            } else {
+                try (Connection conn = databasePool.getConnection()) {
+                    ImportManifest.writeFromDatabase(manifestFile, manifestId, conn);
+                }
+            }
+        } catch (IOException e) {
+            // The next run will fall back to the database.
+            System.err.println("[main] The manifest could not be written: " + e.getMessage());
+            return null;
+        }
+        return manifestId.toString();
+    }
+
+
     private Map<String, String> loadGisaidCountryMap() throws SQLException {
         String loadMappingSql = """
             select gisaid_country, iso_country
@@ -439,105 +793,189 @@ public class GisaidApiImporter extends SubProgram<GisaidProgramConfig> {
     }
 
 
-    private void downloadDataPackage(URL url, String username, String password, Path outputPath) throws IOException {
-        String auth = username + ":" + password;
-        byte[] encodedAuth = Base64.getEncoder().encode(auth.getBytes(StandardCharsets.UTF_8));
-        String authHeaderValue = "Basic " + new String(encodedAuth);
-        HttpURLConnection gisaidApiConnection = (HttpURLConnection) url.openConnection();
-        gisaidApiConnection.setRequestProperty("Authorization", authHeaderValue);
-        ReadableByteChannel readableByteChannel = Channels.newChannel(gisaidApiConnection.getInputStream());
-        FileOutputStream fileOutputStream = new FileOutputStream(outputPath.toFile());
-        FileChannel fileChannel = fileOutputStream.getChannel();
-        fileChannel.transferFrom(readableByteChannel, 0, Long.MAX_VALUE);
-        fileChannel.close();
-        fileOutputStream.close();
+    private void downloadDataPackage(DataPackageDownload dataPackageDownload, Path outputPath) throws IOException {
+        try (dataPackageDownload) {
+            Files.copy(dataPackageDownload, outputPath);
+        }
     }
 
 
-    private Sequence parseDataPackageLine(
-            JSONObject json,
-            Map<String, String> gisaidCountryMap,
-            GeoLocationMapper geoLocationMapper
-    ) {
-        // Parse date
-        String dateOriginal = (String) json.get("covv_collection_date");
-        LocalDate date = null;
-        try {
-            if (dateOriginal != null) {
-                date = LocalDate.parse(dateOriginal);
-            }
-        } catch (DateTimeParseException ignored) {
-        }
-
-        // Parse geo data
-        String locationString = (String) json.get("covv_location");
-        String country = null;
-        GeoLocation geoLocation;
-        if (locationString != null) {
-            List<String> locationParts = Arrays.stream(locationString.split("/"))
-                    .map(String::trim)
-                    .collect(Collectors.toList());
-            GeoLocation gisaidDirtyLocation = new GeoLocation();
-            if (locationParts.size() > 0) {
-                gisaidDirtyLocation.setRegion(locationParts.get(0));
-            }
-            if (locationParts.size() > 1) {
-                gisaidDirtyLocation.setCountry(locationParts.get(1));
+    private void skipUnchangedDataPackage(
+            DataPackageInfo dataPackage,
+            NotificationSystem notificationSystem,
+            Path workDir,
+            ImportCheckpoint checkpoint
+    ) throws IOException {
+        System.out.println("[main] The data package has not changed since the last import. Nothing to do.");
+        notificationSystem.sendReport(new SimpleReport(
+                "The data package has not changed since the last import: " + dataPackage,
+                "GisaidApiImporter"
+        ));
+        if (checkpoint != null) {
+            checkpoint.delete();
+        }
+        cleanUpWorkDir(workDir);
+    }
+
+
+    /**
+     * @return The checkpoint of the interrupted previous run or null if there is none or if GISAID has published a new
+     * data package since then
+     */
+    private ImportCheckpoint openCheckpoint(
+            Path checkpointDir,
+            GisaidApiImporterState automationState,
+            URL gisaidApiUrl,
+            String gisaidApiUsername,
+            String gisaidApiPassword
+    ) throws IOException {
+        DataPackageInfo dataPackage = automationState.getCheckpointDataPackage();
+        ImportCheckpoint checkpoint = ImportCheckpoint.open(checkpointDir, automationState.getCheckpointId());
+        if (checkpoint == null || dataPackage == null) {
+            return null;
+        }
+        if (dataPackage.getSize() != null && Files.size(checkpoint.getDataPackageFile()) != dataPackage.getSize()) {
+            System.out.println("[main] The data package in the checkpoint is incomplete.");
+            return null;
+        }
+        try (DataPackageDownload download = new DataPackageDownload(gisaidApiUrl, gisaidApiUsername,
+                gisaidApiPassword, dataPackage)) {
+            if (!download.isNotModified()) {
+                System.out.println("[main] GISAID has published a new data package since the interrupted run.");
+                return null;
             }
-            if (locationParts.size() > 2) {
-                gisaidDirtyLocation.setDivision(locationParts.get(2));
+        }
+        return checkpoint;
+    }
+
+
+    /**
+     * Records the checkpoint in the automation state so that the next run can resume this run. This is done as soon as
+     * the data package is completely downloaded.
+     */
+    private void armCheckpoint(
+            ImportCheckpoint checkpoint,
+            DataPackageInfo dataPackage,
+            GisaidApiImporterState automationState
+    ) throws SQLException, JsonProcessingException {
+        if (checkpoint == null) {
+            return;
+        }
+        automationState
+                .setCheckpointId(checkpoint.getId())
+                .setCheckpointDataPackage(dataPackage);
+        updateAutomationState(automationState);
+    }
+
+
+    /**
+     * Finishes a run that was interrupted after all batches were committed: only the deletions, the refresh of the
+     * materialized views and the bookkeeping are left.
+     */
+    private boolean finishFromCheckpoint(
+            ImportCheckpoint checkpoint,
+            GisaidEpiIslSet toDelete,
+            GisaidApiImporterState automationState,
+            Path manifestFile,
+            NotificationSystem notificationSystem,
+            Path workDir
+    ) throws SQLException, IOException {
+        DataPackageInfo dataPackage = automationState.getCheckpointDataPackage();
+        System.out.println("[main] Finishing the interrupted import of " + dataPackage + ": deleting "
+                + toDelete.size() + " removed sequences");
+        deleteSequences(toDelete);
+        System.out.println("[main] Refreshing materialized views");
+        refreshMaterializedViews();
+        automationState
+                .setLastImportedDataPackage(dataPackage)
+                .setCheckpointId(null)
+                .setCheckpointDataPackage(null);
+        if (manifestFile != null) {
+            automationState.setManifestId(writeManifest(manifestFile, null, List.of(), toDelete));
+        }
+        updateAutomationState(automationState);
+        checkpoint.delete();
+        notificationSystem.sendReport(new SimpleReport(
+                "The interrupted import of " + dataPackage + " was finished: " + toDelete.size()
+                        + " removed sequences were deleted.",
+                "GisaidApiImporter"
+        ));
+        cleanUpWorkDir(workDir);
+        return true;
+    }
+
+
+    private void cleanUpWorkDir(Path workDir) throws IOException {
+        try (DirectoryStream<Path> directory = Files.newDirectoryStream(workDir)) {
+            for (Path path : directory) {
+                Files.delete(path);
             }
-            if (locationParts.size() > 3) {
-                gisaidDirtyLocation.setLocation(locationParts.get(3));
+        }
+    }
+
+
+    private GisaidApiImporterState loadAutomationState() throws SQLException, JsonProcessingException {
+        String fetchAutomationStateSql = """
+            select state
+            from automation_state
+            where program_name = 'gisaid_api_importer';
+        """;
+        try (Connection conn = databasePool.getConnection()) {
+            try (Statement statement = conn.createStatement()) {
+                try (ResultSet rs = statement.executeQuery(fetchAutomationStateSql)) {
+                    if (!rs.next()) {
+                        return new GisaidApiImporterState();
+                    }
+                    return new ObjectMapper().readValue(rs.getString("state"), GisaidApiImporterState.class);
+                }
             }
-            geoLocation = geoLocationMapper.resolve(gisaidDirtyLocation);
-            if (geoLocation.getCountry() != null) {
-                country = gisaidCountryMap.get(geoLocation.getCountry());
+        }
+    }
+
+
+    private void updateAutomationState(GisaidApiImporterState automationState)
+            throws SQLException, JsonProcessingException {
+        String updateAutomationStateSql = """
+            insert into automation_state (program_name, state)
+            values ('gisaid_api_importer', ?)
+            on conflict (program_name) do update set state = excluded.state;
+        """;
+        try (Connection conn = databasePool.getConnection()) {
+            try (PreparedStatement statement = conn.prepareStatement(updateAutomationStateSql)) {
+                statement.setString(1, new ObjectMapper().writeValueAsString(automationState));
+                statement.execute();
             }
-        } else {
-            geoLocation = new GeoLocation();
         }
+    }
 
-        // Parse age
-        String ageString = (String) json.get("covv_patient_age");
-        Integer age = Utils.nullableIntegerValue(ageString);
 
-        // Parse sex
-        String sexString = (String) json.get("covv_gender");
-        if ("male".equalsIgnoreCase(sexString)) {
-            sexString = "Male";
-        } else if ("female".equalsIgnoreCase(sexString)) {
-            sexString = "Female";
-        } else {
-            sexString = null;
-        }
-
-        // Parse date_submitted
-        LocalDate dateSubmitted = Utils.nullableLocalDateValue((String) json.get("covv_subm_date"));
-
-        return new Sequence()
-                .setGisaidEpiIsl((String) json.get("covv_accession_id"))
-                .setStrain((String) json.get("covv_virus_name"))
-                .setVirus((String) json.get("covv_type"))
-                .setDate(date)
-                .setDateOriginal(dateOriginal)
-                .setCountry(country)
-                .setRegionOriginal(geoLocation.getRegion())
-                .setCountryOriginal(geoLocation.getCountry())
-                .setDivision(geoLocation.getDivision())
-                .setLocation(geoLocation.getLocation())
-                .setHost((String) json.get("covv_host"))
-                .setAge(age)
-                .setSex(sexString)
-                .setPangolinLineage((String) json.get("covv_lineage"))
-                .setGisaidClade((String) json.get("covv_clade"))
-                .setDateSubmitted(dateSubmitted)
-                .setSamplingStrategy((String) json.get("covv_sampling_strategy"))
-                .setSeqOriginal((String) json.get("sequence"));
+    /**
+     * Offers the element to the queue and waits until there is space. Gives up if the emergency brake is pulled.
+     *
+     * @param logPrefix If not null, the attempts will be logged with this prefix
+     */
+    private static <T> void offerToQueue(
+            BlockingQueue<T> queue,
+            T element,
+            AtomicBoolean emergencyBrake,
+            String logPrefix
+    ) throws InterruptedException {
+        while (!emergencyBrake.get()) {
+            if (logPrefix != null) {
+                System.out.println(logPrefix + "Try adding a batch");
+            }
+            boolean success = queue.offer(element, 5, TimeUnit.SECONDS);
+            if (success) {
+                if (logPrefix != null) {
+                    System.out.println(logPrefix + "Batch added");
+                }
+                break;
+            }
+        }
     }
 
 
-    private void deleteSequences(Set<String> gisaidEpiIslToDelete) throws SQLException {
+    private void deleteSequences(GisaidEpiIslSet gisaidEpiIslToDelete) throws SQLException {
         String sql = """
             delete from gisaid_api_sequence where gisaid_epi_isl = ?;
         """;
@@ -564,6 +1002,11 @@ public class GisaidApiImporter extends SubProgram<GisaidProgramConfig> {
         int updatedSequenceEntries = 0;
         int addedEntriesFromUs = 0;
         int failedEntries = 0;
+        int analysisNeededEntries = 0;
+        int duplicateEntries = 0;
+        int analyzedElsewhereEntries = 0;
+        int cachedEntries = 0;
+        int analyzedEntries = 0;
         List<WeirdEntryReport> weirdEntryReports = new ArrayList<>();
         for (BatchReport batchReport : batchReports) {
             addedEntries += batchReport.getAddedEntries();
@@ -572,6 +1015,11 @@ public class GisaidApiImporter extends SubProgram<GisaidProgramConfig> {
             updatedSequenceEntries += batchReport.getUpdatedSequenceEntries();
             addedEntriesFromUs += batchReport.getAddedEntriesFromUs();
             failedEntries += batchReport.getFailedEntries();
+            analysisNeededEntries += batchReport.getAnalysisNeededEntries();
+            duplicateEntries += batchReport.getDuplicateEntries();
+            analyzedElsewhereEntries += batchReport.getAnalyzedElsewhereEntries();
+            cachedEntries += batchReport.getCachedEntries();
+            analyzedEntries += batchReport.getAnalyzedEntries();
             weirdEntryReports.addAll(batchReport.getWeirdEntryReports());
         }
         return new BatchReport()
@@ -581,6 +1029,11 @@ public class GisaidApiImporter extends SubProgram<GisaidProgramConfig> {
                 .setUpdatedSequenceEntries(updatedSequenceEntries)
                 .setAddedEntriesFromUs(addedEntriesFromUs)
                 .setFailedEntries(failedEntries)
+                .setAnalysisNeededEntries(analysisNeededEntries)
+                .setDuplicateEntries(duplicateEntries)
+                .setAnalyzedElsewhereEntries(analyzedElsewhereEntries)
+                .setCachedEntries(cachedEntries)
+                .setAnalyzedEntries(analyzedEntries)
                 .setWeirdEntryReports(weirdEntryReports);
     }
 
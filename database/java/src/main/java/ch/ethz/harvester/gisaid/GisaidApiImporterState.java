@@ -0,0 +1,59 @@
+package ch.ethz.harvester.gisaid;
+
+
+/**
+ * The state of the GisaidApiImporter that is kept between the runs. It is stored as JSON in the automation_state
+ * table.
+ */
+class GisaidApiImporterState {
+    private DataPackageInfo lastImportedDataPackage;
+    private String manifestId;
+    private String checkpointId;
+    private DataPackageInfo checkpointDataPackage;
+
+    public DataPackageInfo getLastImportedDataPackage() {
+        return lastImportedDataPackage;
+    }
+
+    public GisaidApiImporterState setLastImportedDataPackage(DataPackageInfo lastImportedDataPackage) {
+        this.lastImportedDataPackage = lastImportedDataPackage;
+        return this;
+    }
+
+    /**
+     * @return The ID of the manifest that describes the current content of gisaid_api_sequence or null if there is no
+     * valid manifest
+     */
+    public String getManifestId() {
+        return manifestId;
+    }
+
+    public GisaidApiImporterState setManifestId(String manifestId) {
+        this.manifestId = manifestId;
+        return this;
+    }
+
+    /**
+     * @return The ID of the checkpoint of a run that was interrupted or null (see {@link ImportCheckpoint})
+     */
+    public String getCheckpointId() {
+        return checkpointId;
+    }
+
+    public GisaidApiImporterState setCheckpointId(String checkpointId) {
+        this.checkpointId = checkpointId;
+        return this;
+    }
+
+    /**
+     * @return The data package that the interrupted run was importing
+     */
+    public DataPackageInfo getCheckpointDataPackage() {
+        return checkpointDataPackage;
+    }
+
+    public GisaidApiImporterState setCheckpointDataPackage(DataPackageInfo checkpointDataPackage) {
+        this.checkpointDataPackage = checkpointDataPackage;
+        return this;
+    }
+}
@@ -0,0 +1,242 @@
+package ch.ethz.harvester.gisaid;
+
+import java.util.*;
+
+
+/**
+ * A memory-efficient set of GISAID EPI ISL. An ID of the form "EPI_ISL_<n>" is stored as the primitive long n in an
+ * open-addressing hash table: this needs around 8-16 bytes per entry instead of more than 100 bytes in a
+ * HashSet<String>. IDs that do not follow this form are kept in a regular HashSet.
+ *
+ * The set is not thread-safe. Callers that add from multiple threads have to synchronize on the set.
+ *
+ * As {@link ImportedSequences}, the set does not know any fingerprints: no entry is considered unchanged.
+ */
+public class GisaidEpiIslSet implements Iterable<String>, ImportedSequences {
+
+    private static final String PREFIX = "EPI_ISL_";
+    private static final int MAX_DIGITS = 18;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+
+    /**
+     * The slots contain n + 1 so that 0 can mark an empty slot.
+     */
+    private long[] table;
+    private int mask;
+    private int numberNumericIds = 0;
+    private final Set<String> otherIds = new HashSet<>();
+
+
+    public GisaidEpiIslSet() {
+        this(1024);
+    }
+
+
+    public GisaidEpiIslSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / MAX_LOAD_FACTOR)) - 1) << 1;
+        table = new long[capacity];
+        mask = capacity - 1;
+    }
+
+
+    /**
+     * @return True if the ID was not yet in the set
+     */
+    public boolean add(String gisaidEpiIsl) {
+        long key = encode(gisaidEpiIsl);
+        if (key == 0) {
+            return otherIds.add(gisaidEpiIsl);
+        }
+        return addKey(key);
+    }
+
+
+    @Override
+    public boolean contains(String gisaidEpiIsl) {
+        long key = encode(gisaidEpiIsl);
+        if (key == 0) {
+            return otherIds.contains(gisaidEpiIsl);
+        }
+        return containsKey(key);
+    }
+
+
+    public int size() {
+        return numberNumericIds + otherIds.size();
+    }
+
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+
+    public void addAll(GisaidEpiIslSet other) {
+        for (long key : other.table) {
+            if (key != 0) {
+                addKey(key);
+            }
+        }
+        otherIds.addAll(other.otherIds);
+    }
+
+
+    @Override
+    public boolean isUnchanged(String gisaidEpiIsl, String metadataHash, String seqOriginalHash) {
+        return false;
+    }
+
+
+    @Override
+    public GisaidEpiIslSet missingFrom(GisaidEpiIslSet gisaidEpiIsls) {
+        return difference(gisaidEpiIsls);
+    }
+
+
+    /**
+     * @return A new set with the IDs that are in this set but not in the other set
+     */
+    public GisaidEpiIslSet difference(GisaidEpiIslSet other) {
+        GisaidEpiIslSet result = new GisaidEpiIslSet();
+        for (long key : table) {
+            if (key != 0 && !other.containsKey(key)) {
+                result.addKey(key);
+            }
+        }
+        for (String id : otherIds) {
+            if (!other.otherIds.contains(id)) {
+                result.otherIds.add(id);
+            }
+        }
+        return result;
+    }
+
+
+    @Override
+    public Iterator<String> iterator() {
+        Iterator<String> otherIdsIterator = otherIds.iterator();
+        return new Iterator<>() {
+            private int nextSlot = findNextSlot(0);
+
+            private int findNextSlot(int from) {
+                while (from < table.length && table[from] == 0) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextSlot < table.length || otherIdsIterator.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (nextSlot < table.length) {
+                    String id = decode(table[nextSlot]);
+                    nextSlot = findNextSlot(nextSlot + 1);
+                    return id;
+                }
+                return otherIdsIterator.next();
+            }
+        };
+    }
+
+
+    /**
+     * @return n + 1 if the ID has the form "EPI_ISL_<n>" (without leading zeros), otherwise 0
+     */
+    static long encode(String gisaidEpiIsl) {
+        if (gisaidEpiIsl == null || !gisaidEpiIsl.startsWith(PREFIX)) {
+            return 0;
+        }
+        int length = gisaidEpiIsl.length() - PREFIX.length();
+        if (length == 0 || length > MAX_DIGITS) {
+            return 0;
+        }
+        if (gisaidEpiIsl.charAt(PREFIX.length()) == '0' && length > 1) {
+            return 0;
+        }
+        long n = 0;
+        for (int i = PREFIX.length(); i < gisaidEpiIsl.length(); i++) {
+            char c = gisaidEpiIsl.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n + 1;
+    }
+
+
+    static String decode(long key) {
+        return PREFIX + (key - 1);
+    }
+
+
+    /**
+     * Adds an ID that was encoded with {@link #encode(String)}
+     */
+    void addEncoded(long key) {
+        addKey(key);
+    }
+
+
+    boolean containsEncoded(long key) {
+        return containsKey(key);
+    }
+
+
+    private static int hash(long key) {
+        // The finalizer of MurmurHash3 spreads consecutive IDs over the table.
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+
+    private boolean containsKey(long key) {
+        int slot = hash(key) & mask;
+        while (table[slot] != 0) {
+            if (table[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+
+    private boolean addKey(long key) {
+        if (numberNumericIds + 1 > table.length * MAX_LOAD_FACTOR) {
+            resize();
+        }
+        int slot = hash(key) & mask;
+        while (table[slot] != 0) {
+            if (table[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = key;
+        numberNumericIds++;
+        return true;
+    }
+
+
+    private void resize() {
+        long[] oldTable = table;
+        table = new long[oldTable.length * 2];
+        mask = table.length - 1;
+        for (long key : oldTable) {
+            if (key != 0) {
+                int slot = hash(key) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = key;
+            }
+        }
+    }
+}
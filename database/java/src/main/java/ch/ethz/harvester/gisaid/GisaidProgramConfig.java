@@ -4,6 +4,7 @@ import ch.ethz.harvester.core.Config;
 import ch.ethz.harvester.core.DatabaseConfig;
 import ch.ethz.harvester.core.HttpProxyConfig;
 import ch.ethz.harvester.core.NotificationConfig;
+import ch.ethz.harvester.general.NucleotideMutationStorage;
 
 public class GisaidProgramConfig implements Config {
 
@@ -45,8 +46,32 @@ public class GisaidProgramConfig implements Config {
         private Boolean updateSubmitterInformation;
         private String workdir;
         private Integer numberWorkers;
+        private Integer numberParseWorkers;
+        private Integer numberDecompressionThreads;
         private Integer batchSize;
+        private Integer batchWindow;
+        private Boolean adaptiveBatchSize;
+        private Integer minBatchSize;
+        private Integer maxBatchSize;
+        private Long targetBatchSeconds;
+        private Integer numberMutationWorkers;
+        private Integer numberDatabaseWriters;
+        private Integer groupCommitBatches;
         private String geoLocationRulesFile;
+        private Boolean streamDataPackage;
+        private String manifestFile;
+        private String checkpointDir;
+        private Boolean useCopy;
+        private Boolean stagingMerge;
+        private NucleotideMutationStorage nucleotideMutationStorage;
+        private Aligner aligner;
+        private AminoAcidCaller aminoAcidCaller;
+        private Integer maxMafftProcesses;
+        private Integer maxNextcladeProcesses;
+        private String analysisCacheDir;
+        private Integer analysisCacheMaxSizeMb;
+        private Integer cpuBudget;
+        private Integer maxThreadsPerTool;
 
         public ImportMode getImportMode() {
             return importMode;
@@ -84,6 +109,24 @@ public class GisaidProgramConfig implements Config {
             return this;
         }
 
+        public Integer getNumberParseWorkers() {
+            return numberParseWorkers;
+        }
+
+        public GisaidApiImporterConfig setNumberParseWorkers(Integer numberParseWorkers) {
+            this.numberParseWorkers = numberParseWorkers;
+            return this;
+        }
+
+        public Integer getNumberDecompressionThreads() {
+            return numberDecompressionThreads;
+        }
+
+        public GisaidApiImporterConfig setNumberDecompressionThreads(Integer numberDecompressionThreads) {
+            this.numberDecompressionThreads = numberDecompressionThreads;
+            return this;
+        }
+
         public Integer getBatchSize() {
             return batchSize;
         }
@@ -93,6 +136,78 @@ public class GisaidProgramConfig implements Config {
             return this;
         }
 
+        public Integer getBatchWindow() {
+            return batchWindow;
+        }
+
+        public GisaidApiImporterConfig setBatchWindow(Integer batchWindow) {
+            this.batchWindow = batchWindow;
+            return this;
+        }
+
+        public Boolean getAdaptiveBatchSize() {
+            return adaptiveBatchSize;
+        }
+
+        public GisaidApiImporterConfig setAdaptiveBatchSize(Boolean adaptiveBatchSize) {
+            this.adaptiveBatchSize = adaptiveBatchSize;
+            return this;
+        }
+
+        public Integer getMinBatchSize() {
+            return minBatchSize;
+        }
+
+        public GisaidApiImporterConfig setMinBatchSize(Integer minBatchSize) {
+            this.minBatchSize = minBatchSize;
+            return this;
+        }
+
+        public Integer getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        public GisaidApiImporterConfig setMaxBatchSize(Integer maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        public Long getTargetBatchSeconds() {
+            return targetBatchSeconds;
+        }
+
+        public GisaidApiImporterConfig setTargetBatchSeconds(Long targetBatchSeconds) {
+            this.targetBatchSeconds = targetBatchSeconds;
+            return this;
+        }
+
+        public Integer getNumberMutationWorkers() {
+            return numberMutationWorkers;
+        }
+
+        public GisaidApiImporterConfig setNumberMutationWorkers(Integer numberMutationWorkers) {
+            this.numberMutationWorkers = numberMutationWorkers;
+            return this;
+        }
+
+        public Integer getNumberDatabaseWriters() {
+            return numberDatabaseWriters;
+        }
+
+        public GisaidApiImporterConfig setNumberDatabaseWriters(Integer numberDatabaseWriters) {
+            this.numberDatabaseWriters = numberDatabaseWriters;
+            return this;
+        }
+
+        public Integer getGroupCommitBatches() {
+            return groupCommitBatches;
+        }
+
+        public GisaidApiImporterConfig setGroupCommitBatches(Integer groupCommitBatches) {
+            this.groupCommitBatches = groupCommitBatches;
+            return this;
+        }
+
         public String getGeoLocationRulesFile() {
             return geoLocationRulesFile;
         }
@@ -101,6 +216,134 @@ public class GisaidProgramConfig implements Config {
             this.geoLocationRulesFile = geoLocationRulesFile;
             return this;
         }
+
+        public Boolean getStreamDataPackage() {
+            return streamDataPackage;
+        }
+
+        public GisaidApiImporterConfig setStreamDataPackage(Boolean streamDataPackage) {
+            this.streamDataPackage = streamDataPackage;
+            return this;
+        }
+
+        public String getManifestFile() {
+            return manifestFile;
+        }
+
+        public GisaidApiImporterConfig setManifestFile(String manifestFile) {
+            this.manifestFile = manifestFile;
+            return this;
+        }
+
+        public String getCheckpointDir() {
+            return checkpointDir;
+        }
+
+        public GisaidApiImporterConfig setCheckpointDir(String checkpointDir) {
+            this.checkpointDir = checkpointDir;
+            return this;
+        }
+
+        public Boolean getUseCopy() {
+            return useCopy;
+        }
+
+        public GisaidApiImporterConfig setUseCopy(Boolean useCopy) {
+            this.useCopy = useCopy;
+            return this;
+        }
+
+        public Boolean getStagingMerge() {
+            return stagingMerge;
+        }
+
+        public GisaidApiImporterConfig setStagingMerge(Boolean stagingMerge) {
+            this.stagingMerge = stagingMerge;
+            return this;
+        }
+
+        public NucleotideMutationStorage getNucleotideMutationStorage() {
+            return nucleotideMutationStorage;
+        }
+
+        public GisaidApiImporterConfig setNucleotideMutationStorage(
+                NucleotideMutationStorage nucleotideMutationStorage
+        ) {
+            this.nucleotideMutationStorage = nucleotideMutationStorage;
+            return this;
+        }
+
+        public Aligner getAligner() {
+            return aligner;
+        }
+
+        public GisaidApiImporterConfig setAligner(Aligner aligner) {
+            this.aligner = aligner;
+            return this;
+        }
+
+        public AminoAcidCaller getAminoAcidCaller() {
+            return aminoAcidCaller;
+        }
+
+        public GisaidApiImporterConfig setAminoAcidCaller(AminoAcidCaller aminoAcidCaller) {
+            this.aminoAcidCaller = aminoAcidCaller;
+            return this;
+        }
+
+        public Integer getMaxMafftProcesses() {
+            return maxMafftProcesses;
+        }
+
+        public GisaidApiImporterConfig setMaxMafftProcesses(Integer maxMafftProcesses) {
+            this.maxMafftProcesses = maxMafftProcesses;
+            return this;
+        }
+
+        public Integer getMaxNextcladeProcesses() {
+            return maxNextcladeProcesses;
+        }
+
+        public GisaidApiImporterConfig setMaxNextcladeProcesses(Integer maxNextcladeProcesses) {
+            this.maxNextcladeProcesses = maxNextcladeProcesses;
+            return this;
+        }
+
+        public String getAnalysisCacheDir() {
+            return analysisCacheDir;
+        }
+
+        public GisaidApiImporterConfig setAnalysisCacheDir(String analysisCacheDir) {
+            this.analysisCacheDir = analysisCacheDir;
+            return this;
+        }
+
+        public Integer getAnalysisCacheMaxSizeMb() {
+            return analysisCacheMaxSizeMb;
+        }
+
+        public GisaidApiImporterConfig setAnalysisCacheMaxSizeMb(Integer analysisCacheMaxSizeMb) {
+            this.analysisCacheMaxSizeMb = analysisCacheMaxSizeMb;
+            return this;
+        }
+
+        public Integer getCpuBudget() {
+            return cpuBudget;
+        }
+
+        public GisaidApiImporterConfig setCpuBudget(Integer cpuBudget) {
+            this.cpuBudget = cpuBudget;
+            return this;
+        }
+
+        public Integer getMaxThreadsPerTool() {
+            return maxThreadsPerTool;
+        }
+
+        public GisaidApiImporterConfig setMaxThreadsPerTool(Integer maxThreadsPerTool) {
+            this.maxThreadsPerTool = maxThreadsPerTool;
+            return this;
+        }
     }
 
     private DatabaseConfig vineyard;
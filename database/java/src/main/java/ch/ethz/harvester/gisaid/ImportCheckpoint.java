@@ -0,0 +1,182 @@
+package ch.ethz.harvester.gisaid;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+
+
+/**
+ * The progress of an import run, kept in a directory outside of the work directory so that an interrupted run can be
+ * resumed by the next run. The automation state refers to the checkpoint by its ID and stores the identity of the data
+ * package; the checkpoint is only used if both match.
+ *
+ * Files:
+ *   checkpoint-id: the ID of the checkpoint
+ *   provision.json.xz: the downloaded data package
+ *   committed.txt: the GISAID EPI ISL that were committed into gisaid_api_sequence, one per line. The IDs of a
+ *                  transaction are appended (and synced to the disk) after the commit.
+ *   pending-deletes.txt: the GISAID EPI ISL that have to be deleted. The file is written when all batches are
+ *                        committed and the deletions are about to start.
+ */
+public class ImportCheckpoint {
+
+    private static final String ID_FILE = "checkpoint-id";
+    private static final String DATA_PACKAGE_FILE = "provision.json.xz";
+    private static final String COMMITTED_FILE = "committed.txt";
+    private static final String PENDING_DELETES_FILE = "pending-deletes.txt";
+
+    private final Path directory;
+    private final String id;
+    private FileOutputStream committedOut;
+
+
+    private ImportCheckpoint(Path directory, String id) {
+        this.directory = directory;
+        this.id = id;
+    }
+
+
+    /**
+     * Creates a new checkpoint. The files of an older checkpoint in the directory are deleted.
+     */
+    public static ImportCheckpoint create(Path directory, String id) throws IOException {
+        ImportCheckpoint checkpoint = new ImportCheckpoint(directory, id);
+        checkpoint.deleteFiles();
+        Files.writeString(directory.resolve(ID_FILE), id);
+        return checkpoint;
+    }
+
+
+    /**
+     * @return The checkpoint or null if the directory does not contain a complete checkpoint with the expected ID
+     */
+    public static ImportCheckpoint open(Path directory, String expectedId) throws IOException {
+        Path idFile = directory.resolve(ID_FILE);
+        if (expectedId == null || !Files.exists(idFile) || !Files.readString(idFile).equals(expectedId)
+                || !Files.exists(directory.resolve(DATA_PACKAGE_FILE))) {
+            return null;
+        }
+        ImportCheckpoint checkpoint = new ImportCheckpoint(directory, expectedId);
+        checkpoint.truncateIncompleteLine();
+        return checkpoint;
+    }
+
+
+    public String getId() {
+        return id;
+    }
+
+
+    public Path getDataPackageFile() {
+        return directory.resolve(DATA_PACKAGE_FILE);
+    }
+
+
+    /**
+     * Records that the entries were committed. The method returns after the IDs are on the disk.
+     */
+    public synchronized void markCommitted(Collection<String> gisaidEpiIsls) throws IOException {
+        if (committedOut == null) {
+            committedOut = new FileOutputStream(directory.resolve(COMMITTED_FILE).toFile(), true);
+        }
+        StringBuilder lines = new StringBuilder();
+        for (String gisaidEpiIsl : gisaidEpiIsls) {
+            lines.append(gisaidEpiIsl).append('\n');
+        }
+        committedOut.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+        committedOut.getChannel().force(false);
+    }
+
+
+    public GisaidEpiIslSet loadCommitted() throws IOException {
+        return readIds(directory.resolve(COMMITTED_FILE));
+    }
+
+
+    public void writePendingDeletes(GisaidEpiIslSet toDelete) throws IOException {
+        Path tmpFile = directory.resolve(PENDING_DELETES_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            for (String gisaidEpiIsl : toDelete) {
+                writer.write(gisaidEpiIsl);
+                writer.write('\n');
+            }
+        }
+        Files.move(tmpFile, directory.resolve(PENDING_DELETES_FILE));
+    }
+
+
+    /**
+     * @return The entries that have to be deleted or null if the previous run did not finish all batches
+     */
+    public GisaidEpiIslSet loadPendingDeletes() throws IOException {
+        Path file = directory.resolve(PENDING_DELETES_FILE);
+        return Files.exists(file) ? readIds(file) : null;
+    }
+
+
+    /**
+     * Deletes the files of the checkpoint. This is done after a successful run.
+     */
+    public synchronized void delete() throws IOException {
+        if (committedOut != null) {
+            committedOut.close();
+            committedOut = null;
+        }
+        deleteFiles();
+    }
+
+
+    private void deleteFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+
+    private static GisaidEpiIslSet readIds(Path file) throws IOException {
+        GisaidEpiIslSet ids = new GisaidEpiIslSet();
+        if (!Files.exists(file)) {
+            return ids;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    ids.add(line);
+                }
+            }
+        }
+        return ids;
+    }
+
+
+    /**
+     * If the process died while appending to committed.txt, the last line may be incomplete. It is removed so that it
+     * cannot be mistaken for a different ID. (The transaction was committed but the entries will simply be processed
+     * again.)
+     */
+    private void truncateIncompleteLine() throws IOException {
+        Path file = directory.resolve(COMMITTED_FILE);
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            long length = raf.length();
+            while (length > 0) {
+                raf.seek(length - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                length--;
+            }
+            raf.setLength(length);
+        }
+    }
+}
@@ -0,0 +1,399 @@
+package ch.ethz.harvester.gisaid;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+
+/**
+ * A file that lists the sequences in gisaid_api_sequence together with their fingerprints as they were at the end of
+ * an import run. The next run uses it instead of loading all IDs from the database.
+ *
+ * The entries with IDs of the form "EPI_ISL_<n>" are stored sorted by n with a fixed size and are accessed through a
+ * memory-mapped buffer. The few other IDs are loaded into a map.
+ *
+ * Layout:
+ *   header (40 bytes): magic, version, manifest id (UUID), number of numeric entries, number of other entries
+ *   numeric entries (40 bytes each): n + 1, metadata hash (16 bytes), sequence hash (16 bytes)
+ *   other entries: ID length (short), ID (UTF-8), metadata hash (16 bytes), sequence hash (16 bytes)
+ *
+ * A missing hash is stored as zeros.
+ */
+public class ImportManifest implements ImportedSequences {
+
+    public static class Entry {
+        private final String gisaidEpiIsl;
+        private final String metadataHash;
+        private final String seqOriginalHash;
+
+        public Entry(String gisaidEpiIsl, String metadataHash, String seqOriginalHash) {
+            this.gisaidEpiIsl = gisaidEpiIsl;
+            this.metadataHash = metadataHash;
+            this.seqOriginalHash = seqOriginalHash;
+        }
+
+        public String getGisaidEpiIsl() {
+            return gisaidEpiIsl;
+        }
+
+        public String getMetadataHash() {
+            return metadataHash;
+        }
+
+        public String getSeqOriginalHash() {
+            return seqOriginalHash;
+        }
+    }
+
+
+    private static final int MAGIC = 0x474d4e46;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int ENTRY_SIZE = 40;
+
+    private final UUID id;
+    private final ByteBuffer numericEntries;
+    private final int numberNumericEntries;
+    private final Map<String, long[]> otherEntries;
+
+
+    private ImportManifest(UUID id, ByteBuffer numericEntries, int numberNumericEntries,
+                           Map<String, long[]> otherEntries) {
+        this.id = id;
+        this.numericEntries = numericEntries;
+        this.numberNumericEntries = numberNumericEntries;
+        this.otherEntries = otherEntries;
+    }
+
+
+    public static ImportManifest open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The manifest " + file + " is too large to be mapped.");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("The file " + file + " is not a valid manifest.");
+            }
+            UUID id = new UUID(buffer.getLong(8), buffer.getLong(16));
+            long numberNumericEntries = buffer.getLong(24);
+            int numberOtherEntries = buffer.getInt(32);
+            long otherEntriesOffset = HEADER_SIZE + numberNumericEntries * ENTRY_SIZE;
+            if (otherEntriesOffset > buffer.limit()) {
+                throw new IOException("The manifest " + file + " is truncated.");
+            }
+            Map<String, long[]> otherEntries = new HashMap<>();
+            buffer.position((int) otherEntriesOffset);
+            for (int i = 0; i < numberOtherEntries; i++) {
+                byte[] idBytes = new byte[buffer.getShort()];
+                buffer.get(idBytes);
+                long[] hashes = {buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong()};
+                otherEntries.put(new String(idBytes, StandardCharsets.UTF_8), hashes);
+            }
+            ByteBuffer numericEntries = buffer.position(HEADER_SIZE).limit((int) otherEntriesOffset).slice();
+            return new ImportManifest(id, numericEntries, (int) numberNumericEntries, otherEntries);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("The manifest " + file + " is truncated.", e);
+        }
+    }
+
+
+    public UUID getId() {
+        return id;
+    }
+
+
+    public int size() {
+        return numberNumericEntries + otherEntries.size();
+    }
+
+
+    @Override
+    public boolean contains(String gisaidEpiIsl) {
+        long key = GisaidEpiIslSet.encode(gisaidEpiIsl);
+        if (key == 0) {
+            return otherEntries.containsKey(gisaidEpiIsl);
+        }
+        return find(key) >= 0;
+    }
+
+
+    @Override
+    public boolean isUnchanged(String gisaidEpiIsl, String metadataHash, String seqOriginalHash) {
+        long[] expected = new long[4];
+        if (!parseHash(metadataHash, expected, 0) || !parseHash(seqOriginalHash, expected, 2)) {
+            return false;
+        }
+        long key = GisaidEpiIslSet.encode(gisaidEpiIsl);
+        if (key == 0) {
+            return Arrays.equals(expected, otherEntries.get(gisaidEpiIsl));
+        }
+        int index = find(key);
+        if (index < 0) {
+            return false;
+        }
+        int offset = index * ENTRY_SIZE + 8;
+        for (int i = 0; i < 4; i++) {
+            if (numericEntries.getLong(offset + i * 8) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    @Override
+    public GisaidEpiIslSet missingFrom(GisaidEpiIslSet gisaidEpiIsls) {
+        GisaidEpiIslSet result = new GisaidEpiIslSet();
+        for (int i = 0; i < numberNumericEntries; i++) {
+            long key = numericEntries.getLong(i * ENTRY_SIZE);
+            if (!gisaidEpiIsls.containsEncoded(key)) {
+                result.addEncoded(key);
+            }
+        }
+        for (String otherId : otherEntries.keySet()) {
+            if (!gisaidEpiIsls.contains(otherId)) {
+                result.add(otherId);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * @return The index of the numeric entry or -1
+     */
+    private int find(long key) {
+        int low = 0;
+        int high = numberNumericEntries - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleKey = numericEntries.getLong(middle * ENTRY_SIZE);
+            if (middleKey < key) {
+                low = middle + 1;
+            } else if (middleKey > key) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Writes a manifest that consists of the previous manifest with the changes of the current run.
+     *
+     * @param changes The entries that were inserted or updated in the current run
+     * @param deleted The entries that were deleted in the current run
+     */
+    public static void writeMerged(
+            Path file,
+            UUID id,
+            ImportManifest previous,
+            Collection<Entry> changes,
+            GisaidEpiIslSet deleted
+    ) throws IOException {
+        List<Entry> numericChanges = new ArrayList<>();
+        Map<String, long[]> otherEntries = new HashMap<>(previous.otherEntries);
+        for (String deletedId : deleted) {
+            otherEntries.remove(deletedId);
+        }
+        for (Entry change : changes) {
+            if (GisaidEpiIslSet.encode(change.getGisaidEpiIsl()) == 0) {
+                otherEntries.put(change.getGisaidEpiIsl(), encodeHashes(change));
+            } else {
+                numericChanges.add(change);
+            }
+        }
+        numericChanges.sort(Comparator.comparingLong(e -> GisaidEpiIslSet.encode(e.getGisaidEpiIsl())));
+
+        try (Writer writer = new Writer(file, id)) {
+            int i = 0;
+            int j = 0;
+            while (i < previous.numberNumericEntries || j < numericChanges.size()) {
+                long previousKey = i < previous.numberNumericEntries
+                        ? previous.numericEntries.getLong(i * ENTRY_SIZE) : Long.MAX_VALUE;
+                long changeKey = j < numericChanges.size()
+                        ? GisaidEpiIslSet.encode(numericChanges.get(j).getGisaidEpiIsl()) : Long.MAX_VALUE;
+                if (changeKey <= previousKey) {
+                    // If an entry was changed multiple times, only the last change is kept.
+                    while (j + 1 < numericChanges.size()
+                            && GisaidEpiIslSet.encode(numericChanges.get(j + 1).getGisaidEpiIsl()) == changeKey) {
+                        j++;
+                    }
+                    writer.writeNumeric(changeKey, encodeHashes(numericChanges.get(j)));
+                    j++;
+                    if (changeKey == previousKey) {
+                        i++;
+                    }
+                } else {
+                    if (!deleted.containsEncoded(previousKey)) {
+                        int offset = i * ENTRY_SIZE + 8;
+                        long[] hashes = new long[4];
+                        for (int k = 0; k < 4; k++) {
+                            hashes[k] = previous.numericEntries.getLong(offset + k * 8);
+                        }
+                        writer.writeNumeric(previousKey, hashes);
+                    }
+                    i++;
+                }
+            }
+            writer.commit(otherEntries);
+        }
+    }
+
+
+    /**
+     * Writes a manifest with the current content of gisaid_api_sequence. The entries are sorted by the database and
+     * streamed into the file.
+     */
+    public static void writeFromDatabase(Path file, UUID id, Connection conn) throws IOException, SQLException {
+        String numericIdsSql = """
+            select gisaid_epi_isl, metadata_hash, seq_original_hash
+            from gisaid_api_sequence
+            where gisaid_epi_isl ~ '^EPI_ISL_(0|[1-9][0-9]{0,17})$'
+            order by substr(gisaid_epi_isl, 9)::bigint;
+        """;
+        String otherIdsSql = """
+            select gisaid_epi_isl, metadata_hash, seq_original_hash
+            from gisaid_api_sequence
+            where gisaid_epi_isl !~ '^EPI_ISL_(0|[1-9][0-9]{0,17})$';
+        """;
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Writer writer = new Writer(file, id)) {
+            Map<String, long[]> otherEntries = new HashMap<>();
+            try (Statement statement = conn.createStatement()) {
+                statement.setFetchSize(100000);
+                try (ResultSet rs = statement.executeQuery(numericIdsSql)) {
+                    while (rs.next()) {
+                        Entry entry = new Entry(rs.getString("gisaid_epi_isl"), rs.getString("metadata_hash"),
+                                rs.getString("seq_original_hash"));
+                        writer.writeNumeric(GisaidEpiIslSet.encode(entry.getGisaidEpiIsl()), encodeHashes(entry));
+                    }
+                }
+                try (ResultSet rs = statement.executeQuery(otherIdsSql)) {
+                    while (rs.next()) {
+                        Entry entry = new Entry(rs.getString("gisaid_epi_isl"), rs.getString("metadata_hash"),
+                                rs.getString("seq_original_hash"));
+                        otherEntries.put(entry.getGisaidEpiIsl(), encodeHashes(entry));
+                    }
+                }
+            }
+            writer.commit(otherEntries);
+        } finally {
+            conn.commit();
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+
+    private static long[] encodeHashes(Entry entry) {
+        long[] hashes = new long[4];
+        parseHash(entry.getMetadataHash(), hashes, 0);
+        parseHash(entry.getSeqOriginalHash(), hashes, 2);
+        return hashes;
+    }
+
+
+    /**
+     * Parses a hex-encoded MD5 hash into two longs.
+     *
+     * @return False if the hash is null or has an unexpected format. The longs are set to zero in this case.
+     */
+    private static boolean parseHash(String hash, long[] target, int offset) {
+        target[offset] = 0;
+        target[offset + 1] = 0;
+        if (hash == null || hash.length() != 32) {
+            return false;
+        }
+        try {
+            target[offset] = Long.parseUnsignedLong(hash, 0, 16, 16);
+            target[offset + 1] = Long.parseUnsignedLong(hash, 16, 32, 16);
+            return true;
+        } catch (NumberFormatException e) {
+            target[offset] = 0;
+            target[offset + 1] = 0;
+            return false;
+        }
+    }
+
+
+    /**
+     * Writes a manifest into a temporary file which replaces the target file on {@link #commit(Map)}. The numeric
+     * entries must be written in ascending order.
+     */
+    private static class Writer implements Closeable {
+        private final Path file;
+        private final Path temporaryFile;
+        private final UUID id;
+        private final DataOutputStream out;
+        private long numberNumericEntries = 0;
+        private long lastKey = 0;
+        private boolean committed = false;
+
+        private Writer(Path file, UUID id) throws IOException {
+            this.file = file;
+            this.temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+            this.id = id;
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temporaryFile.toFile()), 1024 * 1024));
+            out.write(new byte[HEADER_SIZE]);
+        }
+
+        private void writeNumeric(long key, long[] hashes) throws IOException {
+            if (key <= lastKey) {
+                throw new IllegalStateException("The manifest entries are not in ascending order.");
+            }
+            lastKey = key;
+            out.writeLong(key);
+            for (long hash : hashes) {
+                out.writeLong(hash);
+            }
+            numberNumericEntries++;
+        }
+
+        private void commit(Map<String, long[]> otherEntries) throws IOException {
+            for (Map.Entry<String, long[]> entry : otherEntries.entrySet()) {
+                byte[] idBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(idBytes.length);
+                out.write(idBytes);
+                for (long hash : entry.getValue()) {
+                    out.writeLong(hash);
+                }
+            }
+            out.close();
+            try (RandomAccessFile raf = new RandomAccessFile(temporaryFile.toFile(), "rw")) {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeLong(id.getMostSignificantBits());
+                raf.writeLong(id.getLeastSignificantBits());
+                raf.writeLong(numberNumericEntries);
+                raf.writeInt(otherEntries.size());
+                raf.getFD().sync();
+            }
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package ch.ethz.harvester.gisaid;
+
+
+/**
+ * The sequences that are in the database at the beginning of an import run
+ */
+public interface ImportedSequences {
+
+    boolean contains(String gisaidEpiIsl);
+
+    /**
+     * @return True if the entry is known and has the same fingerprints. False if it is unknown, has changed or if
+     * the fingerprints are not available.
+     */
+    boolean isUnchanged(String gisaidEpiIsl, String metadataHash, String seqOriginalHash);
+
+    /**
+     * @return The IDs that are not in the given set
+     */
+    GisaidEpiIslSet missingFrom(GisaidEpiIslSet gisaidEpiIsls);
+}
@@ -0,0 +1,39 @@
+package ch.ethz.harvester.gisaid;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Keeps track of the sequences that are currently analyzed (aligned and processed by Nextclade) by the batch workers.
+ * If a worker receives a sequence that is identical to a sequence that another worker is analyzing, it waits for that
+ * result instead of analyzing the sequence again. The sequences are identified by their content hash.
+ *
+ * A worker must call {@link #complete(String, Sequence)} for every sequence that it claimed, also if it failed.
+ * Otherwise, the other workers would wait forever. A worker should only wait for the results of other workers after it
+ * has completed its own claims so that no two workers can wait for each other.
+ */
+public class InFlightAnalyses {
+
+    private final ConcurrentHashMap<String, CompletableFuture<Sequence>> analyses = new ConcurrentHashMap<>();
+
+
+    /**
+     * @return null if the caller has claimed the sequence and has to analyze it, otherwise the result of the worker
+     * that is analyzing it. The result is null if that worker failed.
+     */
+    public CompletableFuture<Sequence> claim(String seqOriginalHash) {
+        return analyses.putIfAbsent(seqOriginalHash, new CompletableFuture<>());
+    }
+
+
+    /**
+     * @param analyzed The analyzed sequence or null if the analysis failed
+     */
+    public void complete(String seqOriginalHash, Sequence analyzed) {
+        CompletableFuture<Sequence> future = analyses.remove(seqOriginalHash);
+        if (future != null) {
+            future.complete(analyzed);
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package ch.ethz.harvester.gisaid;
+
+import java.util.Arrays;
+
+
+/**
+ * Aligns sequences against {@link Reference#REFERENCE} and returns them in the format of
+ * "mafft --addfragments --keeplength": the aligned sequence has the length of the reference, bases that are inserted
+ * relative to the reference are removed, deleted or uncovered reference positions are "-", and all bases are
+ * lower-case.
+ *
+ * The aligner uses seed-and-extend: exact k-mer matches with the (unique) k-mers of the reference are merged into
+ * anchors, the best co-linear chain of anchors is selected, and the regions between the anchors and at both ends are
+ * aligned with a banded affine-gap alignment.
+ *
+ * An instance reuses its buffers between the calls and is not thread-safe.
+ */
+public class ReferenceAligner {
+
+    /**
+     * Has to be increased when a change of the algorithm or the parameters changes the output.
+     */
+    public static final int VERSION = 1;
+
+    private static final int K = 15;
+    private static final int MATCH = 2;
+    private static final int MISMATCH = -4;
+    private static final int GAP_OPEN = -8; // Includes the first extension
+    private static final int GAP_EXTEND = -2;
+    private static final int BAND_MARGIN = 32;
+    private static final int CHAIN_LOOKBACK = 64;
+    private static final long MAX_CELLS = 64L * 1024 * 1024;
+    private static final int NEG_INF = Integer.MIN_VALUE / 4;
+
+    // Traceback: bits 0-1 = source of H (diagonal, E, F, start), bit 2 = E extended, bit 3 = F extended
+    private static final byte FROM_DIAGONAL = 0;
+    private static final byte FROM_E = 1;
+    private static final byte FROM_F = 2;
+    private static final byte FROM_START = 3;
+    private static final byte E_EXTENDED = 4;
+    private static final byte F_EXTENDED = 8;
+
+    // The reference and its k-mer index are shared by all instances.
+    private static final byte[] REFERENCE = Reference.REFERENCE.toUpperCase().getBytes();
+    private static final int INDEX_CAPACITY = Integer.highestOneBit(REFERENCE.length * 4);
+    private static final int[] INDEX_KEYS = new int[INDEX_CAPACITY];
+    private static final int[] INDEX_POSITIONS = new int[INDEX_CAPACITY];
+
+    static {
+        Arrays.fill(INDEX_KEYS, -1);
+        int key = 0;
+        int valid = 0;
+        for (int i = 0; i < REFERENCE.length; i++) {
+            int code = encode(REFERENCE[i]);
+            if (code < 0) {
+                valid = 0;
+                continue;
+            }
+            key = ((key << 2) | code) & ((1 << (2 * K)) - 1);
+            valid++;
+            if (valid >= K) {
+                int slot = indexSlot(key);
+                if (INDEX_KEYS[slot] == key) {
+                    INDEX_POSITIONS[slot] = -1; // Repeated k-mers are not used as seeds
+                } else {
+                    INDEX_KEYS[slot] = key;
+                    INDEX_POSITIONS[slot] = i - K + 1;
+                }
+            }
+        }
+    }
+
+    // Buffers
+    private byte[] query = new byte[32 * 1024];
+    private byte[] queryOut = new byte[32 * 1024];
+    private int queryLength;
+    private int[] anchorQuery = new int[1024];
+    private int[] anchorReference = new int[1024];
+    private int[] anchorLength = new int[1024];
+    private int numberAnchors;
+    private int[] chainScore = new int[1024];
+    private int[] chainPrevious = new int[1024];
+    private int[] chainStart = new int[1024];
+    private int[] chain = new int[1024];
+    private int[] hPrevious = new int[0];
+    private int[] hCurrent = new int[0];
+    private int[] fPrevious = new int[0];
+    private int[] fCurrent = new int[0];
+    private byte[] trace = new byte[0];
+    private final char[] out = new char[REFERENCE.length];
+
+
+    /**
+     * @return The aligned sequence or null if the sequence could not be aligned (e.g., because it does not share any
+     * k-mer with the reference)
+     */
+    public String align(String sequence) {
+        loadQuery(sequence);
+        findAnchors();
+        int numberChained = chainAnchors();
+        if (numberChained == 0) {
+            return null;
+        }
+        Arrays.fill(out, '-');
+
+        // Before the first anchor: the start of the reference and of the query may stay unaligned.
+        int first = chain[0];
+        int firstQuery = anchorQuery[first];
+        int firstReference = anchorReference[first];
+        if (!alignRegion(0, firstQuery, Math.max(0, firstReference - firstQuery - BAND_MARGIN), firstReference,
+                true, false)) {
+            return null;
+        }
+
+        // The anchors and the regions between them
+        int previousQueryEnd = -1;
+        int previousReferenceEnd = -1;
+        for (int c = 0; c < numberChained; c++) {
+            int a = chain[c];
+            int qStart = anchorQuery[a];
+            int rStart = anchorReference[a];
+            int length = anchorLength[a];
+            if (c > 0 && !alignRegion(previousQueryEnd, qStart, previousReferenceEnd, rStart, false, false)) {
+                return null;
+            }
+            for (int i = 0; i < length; i++) {
+                out[rStart + i] = (char) queryOut[qStart + i];
+            }
+            previousQueryEnd = qStart + length;
+            previousReferenceEnd = rStart + length;
+        }
+
+        // After the last anchor: the end of the reference and of the query may stay unaligned.
+        int remainingQuery = queryLength - previousQueryEnd;
+        if (!alignRegion(previousQueryEnd, queryLength, previousReferenceEnd,
+                Math.min(REFERENCE.length, previousReferenceEnd + remainingQuery + BAND_MARGIN), false, true)) {
+            return null;
+        }
+        return new String(out);
+    }
+
+
+    private void loadQuery(String sequence) {
+        if (query.length < sequence.length()) {
+            query = new byte[sequence.length()];
+            queryOut = new byte[sequence.length()];
+        }
+        int length = 0;
+        for (int i = 0; i < sequence.length(); i++) {
+            char c = sequence.charAt(i);
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            query[length] = (byte) Character.toUpperCase(c);
+            queryOut[length] = (byte) Character.toLowerCase(c);
+            length++;
+        }
+        queryLength = length;
+    }
+
+
+    /**
+     * Looks up all k-mers of the query in the reference index. Hits on the same diagonal that overlap or touch are
+     * merged into one anchor (an exact match).
+     */
+    private void findAnchors() {
+        numberAnchors = 0;
+        int key = 0;
+        int valid = 0;
+        for (int i = 0; i < queryLength; i++) {
+            int code = encode(query[i]);
+            if (code < 0) {
+                valid = 0;
+                continue;
+            }
+            key = ((key << 2) | code) & ((1 << (2 * K)) - 1);
+            valid++;
+            if (valid < K) {
+                continue;
+            }
+            int slot = indexSlot(key);
+            if (INDEX_KEYS[slot] != key || INDEX_POSITIONS[slot] < 0) {
+                continue;
+            }
+            int qStart = i - K + 1;
+            int rStart = INDEX_POSITIONS[slot];
+            if (numberAnchors > 0) {
+                int last = numberAnchors - 1;
+                int lastQueryEnd = anchorQuery[last] + anchorLength[last];
+                if (rStart - qStart == anchorReference[last] - anchorQuery[last] && qStart <= lastQueryEnd) {
+                    anchorLength[last] = qStart + K - anchorQuery[last];
+                    continue;
+                }
+            }
+            if (numberAnchors == anchorQuery.length) {
+                int capacity = anchorQuery.length * 2;
+                anchorQuery = Arrays.copyOf(anchorQuery, capacity);
+                anchorReference = Arrays.copyOf(anchorReference, capacity);
+                anchorLength = Arrays.copyOf(anchorLength, capacity);
+            }
+            anchorQuery[numberAnchors] = qStart;
+            anchorReference[numberAnchors] = rStart;
+            anchorLength[numberAnchors] = K;
+            numberAnchors++;
+        }
+    }
+
+
+    /**
+     * Selects the co-linear chain of anchors with the most matched bases. Overlaps between consecutive anchors are
+     * trimmed from the start of the later anchor. The chain is written to $chain and the anchors are adjusted.
+     *
+     * @return The length of the chain
+     */
+    private int chainAnchors() {
+        if (numberAnchors == 0) {
+            return 0;
+        }
+        if (chainScore.length < numberAnchors) {
+            chainScore = new int[anchorQuery.length];
+            chainPrevious = new int[anchorQuery.length];
+            chainStart = new int[anchorQuery.length];
+            chain = new int[anchorQuery.length];
+        }
+        int best = 0;
+        for (int b = 0; b < numberAnchors; b++) {
+            int bDiagonal = anchorReference[b] - anchorQuery[b];
+            int bEnd = anchorQuery[b] + anchorLength[b];
+            chainScore[b] = anchorLength[b];
+            chainPrevious[b] = -1;
+            chainStart[b] = anchorQuery[b];
+            for (int a = Math.max(0, b - CHAIN_LOOKBACK); a < b; a++) {
+                int aQueryEnd = anchorQuery[a] + anchorLength[a];
+                int aReferenceEnd = anchorReference[a] + anchorLength[a];
+                int start = Math.max(anchorQuery[b], Math.max(aQueryEnd, aReferenceEnd - bDiagonal));
+                if (start >= bEnd) {
+                    continue;
+                }
+                int diagonalChange = Math.abs(bDiagonal - (anchorReference[a] - anchorQuery[a]));
+                int gapCost = diagonalChange == 0 ? 0 : 10 + 32 - Integer.numberOfLeadingZeros(diagonalChange);
+                int score = chainScore[a] + (bEnd - start) - gapCost;
+                if (score > chainScore[b]) {
+                    chainScore[b] = score;
+                    chainPrevious[b] = a;
+                    chainStart[b] = start;
+                }
+            }
+            if (chainScore[b] > chainScore[best]) {
+                best = b;
+            }
+        }
+        int length = 0;
+        for (int a = best; a >= 0; a = chainPrevious[a]) {
+            length++;
+        }
+        int position = length;
+        for (int a = best; a >= 0; a = chainPrevious[a]) {
+            chain[--position] = a;
+            int trimmed = chainStart[a] - anchorQuery[a];
+            anchorQuery[a] += trimmed;
+            anchorReference[a] += trimmed;
+            anchorLength[a] -= trimmed;
+        }
+        return length;
+    }
+
+
+    /**
+     * Aligns query[qStart, qEnd) with REFERENCE[rStart, rEnd) and writes the aligned bases into $out.
+     *
+     * @param freeStart If true, leading bases of the query and the reference may stay unaligned without penalty
+     * @param freeEnd If true, trailing bases of the query and the reference may stay unaligned without penalty
+     * @return False if the region is too large
+     */
+    private boolean alignRegion(int qStart, int qEnd, int rStart, int rEnd, boolean freeStart, boolean freeEnd) {
+        int m = qEnd - qStart;
+        int n = rEnd - rStart;
+        if (m <= 0 || n <= 0) {
+            // Only insertions (which are removed) or deletions (which are already "-")
+            return true;
+        }
+        int diagonalLow = Math.min(0, n - m) - BAND_MARGIN;
+        int diagonalHigh = Math.max(0, n - m) + BAND_MARGIN;
+        int width = diagonalHigh - diagonalLow + 1;
+        long cells = (long) (m + 1) * width;
+        if (cells > MAX_CELLS) {
+            return false;
+        }
+        ensureDpCapacity(width, (int) cells);
+
+        // Row 0
+        Arrays.fill(hPrevious, 0, width, NEG_INF);
+        Arrays.fill(fPrevious, 0, width, NEG_INF);
+        for (int k = 0; k < width; k++) {
+            int j = k + diagonalLow;
+            if (j < 0 || j > n) {
+                continue;
+            }
+            if (j == 0 || freeStart) {
+                hPrevious[k] = 0;
+                trace[k] = FROM_START;
+            } else {
+                hPrevious[k] = GAP_OPEN + (j - 1) * GAP_EXTEND;
+                trace[k] = (byte) (FROM_E | (j > 1 ? E_EXTENDED : 0));
+            }
+        }
+
+        int bestScore = NEG_INF;
+        int bestI = m;
+        int bestJ = n;
+        if (freeEnd && n <= diagonalHigh) {
+            // The query might not be aligned at all
+            bestScore = hPrevious[n - diagonalLow];
+            bestI = 0;
+        }
+        for (int i = 1; i <= m; i++) {
+            byte q = query[qStart + i - 1];
+            int rowOffset = i * width;
+            int e = NEG_INF;
+            int hLeft = NEG_INF;
+            for (int k = 0; k < width; k++) {
+                int j = i + k + diagonalLow;
+                if (j < 0 || j > n) {
+                    hCurrent[k] = NEG_INF;
+                    fCurrent[k] = NEG_INF;
+                    e = NEG_INF;
+                    hLeft = NEG_INF;
+                    continue;
+                }
+                byte cellTrace;
+                int h;
+                if (j == 0) {
+                    int f = freeStart ? NEG_INF : GAP_OPEN + (i - 1) * GAP_EXTEND;
+                    fCurrent[k] = f;
+                    if (freeStart) {
+                        h = 0;
+                        cellTrace = FROM_START;
+                    } else {
+                        h = f;
+                        cellTrace = (byte) (FROM_F | (i > 1 ? F_EXTENDED : 0));
+                    }
+                    e = NEG_INF;
+                } else {
+                    cellTrace = 0;
+                    // E: gap in the query (deletion), from the left cell
+                    int eOpen = hLeft + GAP_OPEN;
+                    int eExtend = e + GAP_EXTEND;
+                    if (eExtend > eOpen) {
+                        e = eExtend;
+                        cellTrace |= E_EXTENDED;
+                    } else {
+                        e = eOpen;
+                    }
+                    // F: gap in the reference (insertion), from the cell above
+                    int f = NEG_INF;
+                    if (k + 1 < width) {
+                        int fOpen = hPrevious[k + 1] + GAP_OPEN;
+                        int fExtend = fPrevious[k + 1] + GAP_EXTEND;
+                        if (fExtend > fOpen) {
+                            f = fExtend;
+                            cellTrace |= F_EXTENDED;
+                        } else {
+                            f = fOpen;
+                        }
+                    }
+                    fCurrent[k] = f;
+                    // H
+                    h = hPrevious[k] + score(q, REFERENCE[rStart + j - 1]);
+                    cellTrace |= FROM_DIAGONAL;
+                    if (e > h) {
+                        h = e;
+                        cellTrace = (byte) ((cellTrace & ~3) | FROM_E);
+                    }
+                    if (f > h) {
+                        h = f;
+                        cellTrace = (byte) ((cellTrace & ~3) | FROM_F);
+                    }
+                }
+                hCurrent[k] = h;
+                trace[rowOffset + k] = cellTrace;
+                hLeft = h;
+                if (freeEnd && (i == m || j == n) && h > bestScore) {
+                    bestScore = h;
+                    bestI = i;
+                    bestJ = j;
+                }
+            }
+            int[] swap = hPrevious;
+            hPrevious = hCurrent;
+            hCurrent = swap;
+            swap = fPrevious;
+            fPrevious = fCurrent;
+            fCurrent = swap;
+        }
+
+        // Traceback
+        int i = bestI;
+        int j = bestJ;
+        int state = 0; // 0 = H, 1 = E, 2 = F
+        while (i > 0 || j > 0) {
+            byte cellTrace = trace[i * width + (j - i - diagonalLow)];
+            if (state == 0) {
+                int source = cellTrace & 3;
+                if (source == FROM_START) {
+                    break;
+                } else if (source == FROM_DIAGONAL) {
+                    out[rStart + j - 1] = (char) queryOut[qStart + i - 1];
+                    i--;
+                    j--;
+                } else {
+                    state = source;
+                }
+            } else if (state == 1) {
+                state = (cellTrace & E_EXTENDED) != 0 ? 1 : 0;
+                j--;
+            } else {
+                state = (cellTrace & F_EXTENDED) != 0 ? 2 : 0;
+                i--;
+            }
+        }
+        return true;
+    }
+
+
+    private void ensureDpCapacity(int width, int cells) {
+        if (hPrevious.length < width) {
+            hPrevious = new int[width];
+            hCurrent = new int[width];
+            fPrevious = new int[width];
+            fCurrent = new int[width];
+        }
+        if (trace.length < cells) {
+            trace = new byte[Math.max(cells, trace.length * 2)];
+        }
+    }
+
+
+    private static int score(byte q, byte r) {
+        if (encode(q) < 0 || encode(r) < 0) {
+            return 0;
+        }
+        return q == r ? MATCH : MISMATCH;
+    }
+
+
+    private static int encode(byte base) {
+        return switch (base) {
+            case 'A' -> 0;
+            case 'C' -> 1;
+            case 'G' -> 2;
+            case 'T' -> 3;
+            default -> -1;
+        };
+    }
+
+
+    private static int indexSlot(int key) {
+        int slot = (key * 0x9e3779b1) >>> 16 & (INDEX_CAPACITY - 1);
+        while (INDEX_KEYS[slot] != -1 && INDEX_KEYS[slot] != key) {
+            slot = (slot + 1) & (INDEX_CAPACITY - 1);
+        }
+        return slot;
+    }
+}
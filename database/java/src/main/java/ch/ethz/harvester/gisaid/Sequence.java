@@ -31,6 +31,8 @@ public class Sequence {
     private String samplingStrategy;
     private String seqOriginal;
     private String seqAligned;
+    private String metadataHash;
+    private String seqOriginalHash;
 
     private String nextcladeClade;
     private Float nextcladeQcOverallScore;
@@ -271,6 +273,24 @@ public class Sequence {
         return this;
     }
 
+    public String getMetadataHash() {
+        return metadataHash;
+    }
+
+    public Sequence setMetadataHash(String metadataHash) {
+        this.metadataHash = metadataHash;
+        return this;
+    }
+
+    public String getSeqOriginalHash() {
+        return seqOriginalHash;
+    }
+
+    public Sequence setSeqOriginalHash(String seqOriginalHash) {
+        this.seqOriginalHash = seqOriginalHash;
+        return this;
+    }
+
     public String getNextcladeClade() {
         return nextcladeClade;
     }
@@ -539,4 +559,41 @@ public class Sequence {
     public void setNucleotideMutations(List<NucleotideMutationFinder.Mutation> nucleotideMutations) {
         this.nucleotideMutations = nucleotideMutations;
     }
+
+    /**
+     * Copies the results of the alignment and of Nextclade from another sequence with the same seq_original.
+     */
+    public Sequence copyAnalysisFrom(Sequence other) {
+        this.seqAligned = other.seqAligned;
+        this.nextcladeClade = other.nextcladeClade;
+        this.nextcladeQcOverallScore = other.nextcladeQcOverallScore;
+        this.nextcladeQcOverallStatus = other.nextcladeQcOverallStatus;
+        this.nextcladeTotalGaps = other.nextcladeTotalGaps;
+        this.nextcladeTotalInsertions = other.nextcladeTotalInsertions;
+        this.nextcladeTotalMissing = other.nextcladeTotalMissing;
+        this.nextcladeTotalMutations = other.nextcladeTotalMutations;
+        this.nextcladeTotalNonAcgtns = other.nextcladeTotalNonAcgtns;
+        this.nextcladeTotalPcrPrimerChanges = other.nextcladeTotalPcrPrimerChanges;
+        this.nextcladeAlignmentStart = other.nextcladeAlignmentStart;
+        this.nextcladeAlignmentEnd = other.nextcladeAlignmentEnd;
+        this.nextcladeAlignmentScore = other.nextcladeAlignmentScore;
+        this.nextcladeQcMissingDataScore = other.nextcladeQcMissingDataScore;
+        this.nextcladeQcMissingDataStatus = other.nextcladeQcMissingDataStatus;
+        this.nextcladeQcMissingDataTotal = other.nextcladeQcMissingDataTotal;
+        this.nextcladeQcMixedSitesScore = other.nextcladeQcMixedSitesScore;
+        this.nextcladeQcMixedSitesStatus = other.nextcladeQcMixedSitesStatus;
+        this.nextcladeQcMixedSitesTotal = other.nextcladeQcMixedSitesTotal;
+        this.nextcladeQcPrivateMutationsCutoff = other.nextcladeQcPrivateMutationsCutoff;
+        this.nextcladeQcPrivateMutationsExcess = other.nextcladeQcPrivateMutationsExcess;
+        this.nextcladeQcPrivateMutationsScore = other.nextcladeQcPrivateMutationsScore;
+        this.nextcladeQcPrivateMutationsStatus = other.nextcladeQcPrivateMutationsStatus;
+        this.nextcladeQcPrivateMutationsTotal = other.nextcladeQcPrivateMutationsTotal;
+        this.nextcladeQcSnpClustersClustered = other.nextcladeQcSnpClustersClustered;
+        this.nextcladeQcSnpClustersScore = other.nextcladeQcSnpClustersScore;
+        this.nextcladeQcSnpClustersStatus = other.nextcladeQcSnpClustersStatus;
+        this.nextcladeQcSnpClustersTotal = other.nextcladeQcSnpClustersTotal;
+        this.nextcladeErrors = other.nextcladeErrors;
+        this.nextcladeMutations = other.nextcladeMutations;
+        return this;
+    }
 }
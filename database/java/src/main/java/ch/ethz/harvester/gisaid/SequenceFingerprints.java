@@ -0,0 +1,69 @@
+package ch.ethz.harvester.gisaid;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * Computes the fingerprints that are stored in gisaid_api_sequence.metadata_hash and .seq_original_hash. They are used
+ * by the UPDATE mode to find the entries that have changed without fetching and comparing the full rows.
+ *
+ * The sequence fingerprint is the hex-encoded MD5 hash of seq_original and therefore equals md5(seq_original) in
+ * Postgres.
+ */
+public class SequenceFingerprints {
+
+    private static final char SEPARATOR = '\u001f';
+    private static final String NULL_VALUE = "\u0000";
+
+
+    /**
+     * The metadata fingerprint covers all metadata columns that are derived from the data package. The submitter
+     * information is not included because it is fetched separately.
+     */
+    public static String metadata(Sequence sequence) {
+        Object[] values = {
+                sequence.getStrain(),
+                sequence.getVirus(),
+                sequence.getDate(),
+                sequence.getDateOriginal(),
+                sequence.getCountry(),
+                sequence.getRegionOriginal(),
+                sequence.getCountryOriginal(),
+                sequence.getDivision(),
+                sequence.getLocation(),
+                sequence.getHost(),
+                sequence.getAge(),
+                sequence.getSex(),
+                sequence.getPangolinLineage(),
+                sequence.getGisaidClade(),
+                sequence.getDateSubmitted(),
+                sequence.getSamplingStrategy()
+        };
+        StringBuilder serialized = new StringBuilder();
+        for (Object value : values) {
+            serialized.append(value != null ? value.toString() : NULL_VALUE).append(SEPARATOR);
+        }
+        return md5(serialized.toString());
+    }
+
+
+    public static String sequence(String seqOriginal) {
+        if (seqOriginal == null) {
+            return null;
+        }
+        return md5(seqOriginal);
+    }
+
+
+    private static String md5(String s) {
+        try {
+            byte[] hash = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+            return String.format("%032x", new BigInteger(1, hash));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
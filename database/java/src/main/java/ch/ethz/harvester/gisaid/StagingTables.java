@@ -0,0 +1,161 @@
+package ch.ethz.harvester.gisaid;
+
+import ch.ethz.harvester.core.PostgresCopyWriter;
+import ch.ethz.harvester.general.NucleotideMutationStorage;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+
+/**
+ * In the staging merge mode, the batch workers do not change gisaid_api_sequence directly but write into unlogged
+ * staging tables. At the end of the run, the changes are applied with a few set-based statements in one transaction.
+ *
+ * - gisaid_api_sequence_staging: new entries and entries with a changed sequence (they replace the existing row)
+ * - gisaid_api_sequence_staging_metadata: entries where only the metadata changed
+ * - gisaid_api_sequence_staging_nextclade_mutation_aa, gisaid_api_sequence_staging_mutation_nucleotide (or
+ *   gisaid_api_sequence_staging_mutation_nucleotide_packed with the packed storage): the mutations of the entries in
+ *   gisaid_api_sequence_staging
+ * - gisaid_api_sequence_staging_delete: the entries that are not in the data package anymore
+ */
+public class StagingTables {
+
+    public static final String SEQUENCE = "gisaid_api_sequence_staging";
+    public static final String METADATA = "gisaid_api_sequence_staging_metadata";
+    public static final String AA_MUTATION = "gisaid_api_sequence_staging_nextclade_mutation_aa";
+    public static final String NUC_MUTATION = "gisaid_api_sequence_staging_mutation_nucleotide";
+    public static final String NUC_MUTATION_PACKED = "gisaid_api_sequence_staging_mutation_nucleotide_packed";
+    public static final String DELETE = "gisaid_api_sequence_staging_delete";
+
+
+    /**
+     * (Re-)creates empty staging tables. Left-overs of an aborted run are dropped.
+     */
+    public static void create(Connection conn, NucleotideMutationStorage storage) throws SQLException {
+        drop(conn);
+        try (Statement statement = conn.createStatement()) {
+            statement.execute("create unlogged table " + SEQUENCE + " (like gisaid_api_sequence including defaults);");
+            statement.execute("create unlogged table " + METADATA + " (like gisaid_api_sequence including defaults);");
+            statement.execute("create unlogged table " + AA_MUTATION
+                    + " (like gisaid_api_sequence_nextclade_mutation_aa);");
+            statement.execute("create unlogged table " + nucMutationTable(storage)
+                    + " (like " + storage.getTable() + ");");
+            statement.execute("create unlogged table " + DELETE + " (gisaid_epi_isl text);");
+        }
+    }
+
+
+    public static void drop(Connection conn) throws SQLException {
+        try (Statement statement = conn.createStatement()) {
+            for (String table : new String[]{SEQUENCE, METADATA, AA_MUTATION, NUC_MUTATION, NUC_MUTATION_PACKED,
+                    DELETE}) {
+                statement.execute("drop table if exists " + table + ";");
+            }
+        }
+    }
+
+
+    /**
+     * Applies the staged changes and the deletions to gisaid_api_sequence and the mutation tables in one transaction.
+     * The mutations of deleted or replaced entries are removed through the foreign keys (on delete cascade).
+     *
+     * @return The number of deleted entries
+     */
+    public static int merge(
+            Connection conn,
+            GisaidEpiIslSet toDelete,
+            NucleotideMutationStorage storage
+    ) throws SQLException {
+        String deleteRemovedSql = """
+            delete from gisaid_api_sequence s
+            using gisaid_api_sequence_staging_delete d
+            where s.gisaid_epi_isl = d.gisaid_epi_isl;
+        """;
+        String deleteReplacedSql = """
+            delete from gisaid_api_sequence s
+            using gisaid_api_sequence_staging st
+            where s.gisaid_epi_isl = st.gisaid_epi_isl;
+        """;
+        String updateMetadataSql = """
+            update gisaid_api_sequence s
+            set
+              updated_at = m.updated_at,
+              strain = m.strain,
+              virus = m.virus,
+              date = m.date,
+              date_original = m.date_original,
+              country = m.country,
+              region_original = m.region_original,
+              country_original = m.country_original,
+              division = m.division,
+              location = m.location,
+              host = m.host,
+              age = m.age,
+              sex = m.sex,
+              pangolin_lineage = m.pangolin_lineage,
+              gisaid_clade = m.gisaid_clade,
+              originating_lab = coalesce(m.originating_lab, s.originating_lab),
+              submitting_lab = coalesce(m.submitting_lab, s.submitting_lab),
+              authors = coalesce(m.authors, s.authors),
+              date_submitted = m.date_submitted,
+              sampling_strategy = m.sampling_strategy,
+              metadata_hash = m.metadata_hash
+            from gisaid_api_sequence_staging_metadata m
+            where s.gisaid_epi_isl = m.gisaid_epi_isl;
+        """;
+        String insertSequencesSql = """
+            insert into gisaid_api_sequence
+            select * from gisaid_api_sequence_staging;
+        """;
+        String insertAaMutationsSql = """
+            insert into gisaid_api_sequence_nextclade_mutation_aa
+            select * from gisaid_api_sequence_staging_nextclade_mutation_aa;
+        """;
+        String insertNucMutationsSql = """
+            insert into NUC_MUTATION_TABLE
+            select * from STAGING_NUC_MUTATION_TABLE;
+        """
+                .replace("STAGING_NUC_MUTATION_TABLE", nucMutationTable(storage))
+                .replace("NUC_MUTATION_TABLE", storage.getTable());
+
+        conn.setAutoCommit(false);
+        int deleted;
+        try (Statement statement = conn.createStatement()) {
+            try (PostgresCopyWriter writer = new PostgresCopyWriter(conn, DELETE, "gisaid_epi_isl")) {
+                for (String gisaidEpiIsl : toDelete) {
+                    writer.add(gisaidEpiIsl).endRow();
+                }
+                writer.finish();
+            }
+            for (String table : new String[]{SEQUENCE, METADATA, AA_MUTATION, nucMutationTable(storage), DELETE}) {
+                statement.execute("analyze " + table + ";");
+            }
+            deleted = statement.executeUpdate(deleteRemovedSql);
+            System.out.println("[main] Merge: deleted " + deleted + " removed sequences");
+            int replaced = statement.executeUpdate(deleteReplacedSql);
+            System.out.println("[main] Merge: removed " + replaced + " sequences that will be replaced");
+            int updated = statement.executeUpdate(updateMetadataSql);
+            System.out.println("[main] Merge: updated the metadata of " + updated + " sequences");
+            int inserted = statement.executeUpdate(insertSequencesSql);
+            System.out.println("[main] Merge: inserted " + inserted + " sequences");
+            statement.executeUpdate(insertAaMutationsSql);
+            statement.executeUpdate(insertNucMutationsSql);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        return deleted;
+    }
+
+
+    /**
+     * @return The staging table for the nucleotide mutations
+     */
+    public static String nucMutationTable(NucleotideMutationStorage storage) {
+        return storage == NucleotideMutationStorage.PACKED ? NUC_MUTATION_PACKED : NUC_MUTATION;
+    }
+}
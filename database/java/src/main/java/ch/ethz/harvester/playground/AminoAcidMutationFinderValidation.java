@@ -0,0 +1,148 @@
+package ch.ethz.harvester.playground;
+
+import ch.ethz.harvester.core.DatabaseService;
+import ch.ethz.harvester.core.EmptyConfig;
+import ch.ethz.harvester.core.SubProgram;
+import ch.ethz.harvester.general.AminoAcidMutationFinder;
+import ch.ethz.harvester.gisaid.Reference;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.*;
+
+
+/**
+ * Compares the output of {@link AminoAcidMutationFinder} with the amino acid mutations of Nextclade that are stored in
+ * the database and measures its throughput.
+ *
+ * Usage:
+ *   AminoAcidMutationFinderValidation [number of sequences]
+ *
+ * The most recently submitted GISAID API sequences with an aligned sequence and a Nextclade result are loaded. Nextclade
+ * does not report mutations for frameshifted genes and can place deletions differently in repetitive regions, so some
+ * discrepancies are expected; they are listed per gene with a few examples.
+ */
+public class AminoAcidMutationFinderValidation extends SubProgram<EmptyConfig> {
+
+    private static final int MAX_EXAMPLES = 20;
+
+
+    public AminoAcidMutationFinderValidation() {
+        super("AminoAcidMutationFinderValidation", EmptyConfig.class);
+    }
+
+
+    @Override
+    public void run(String[] args, EmptyConfig config) throws Exception {
+        int numberSequences = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        // Load the sequences with the mutations of Nextclade
+        LinkedHashMap<String, String> sequences = new LinkedHashMap<>();
+        Map<String, Set<String>> expected = new HashMap<>();
+        try (Connection conn = DatabaseService.openDatabaseConnection("server")) {
+            conn.setAutoCommit(false);
+            String sql = """
+                select s.gisaid_epi_isl, s.seq_aligned, m.aa_mutation
+                from
+                  (
+                    select gisaid_epi_isl, seq_aligned
+                    from gisaid_api_sequence
+                    where seq_aligned is not null and nextclade_qc_overall_score is not null
+                    order by date_submitted desc nulls last
+                    limit ?
+                  ) s
+                  left join gisaid_api_sequence_nextclade_mutation_aa m on s.gisaid_epi_isl = m.gisaid_epi_isl;
+            """;
+            try (PreparedStatement statement = conn.prepareStatement(sql)) {
+                statement.setFetchSize(10000);
+                statement.setInt(1, numberSequences);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        String gisaidEpiIsl = rs.getString("gisaid_epi_isl");
+                        sequences.putIfAbsent(gisaidEpiIsl, rs.getString("seq_aligned"));
+                        Set<String> mutations = expected.computeIfAbsent(gisaidEpiIsl, k -> new HashSet<>());
+                        String aaMutation = rs.getString("aa_mutation");
+                        if (aaMutation != null) {
+                            mutations.add(aaMutation);
+                        }
+                    }
+                }
+            }
+            conn.commit();
+        }
+        System.out.println("Loaded sequences: " + sequences.size());
+        if (sequences.isEmpty()) {
+            return;
+        }
+
+        // Warm-up, then measure
+        AminoAcidMutationFinder finder = new AminoAcidMutationFinder(Reference.REFERENCE,
+                AminoAcidMutationFinder.loadGeneMap());
+        int warmUp = Math.min(200, sequences.size());
+        Iterator<String> warmUpIterator = sequences.values().iterator();
+        for (int i = 0; i < warmUp; i++) {
+            finder.findMutations(warmUpIterator.next());
+        }
+        Map<String, List<String>> found = new HashMap<>();
+        long start = System.nanoTime();
+        for (Map.Entry<String, String> entry : sequences.entrySet()) {
+            found.put(entry.getKey(), finder.findMutations(entry.getValue()));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("AminoAcidMutationFinder: %d sequences in %.2f s (%.1f sequences/s, single thread)%n",
+                sequences.size(), seconds, sequences.size() / seconds);
+
+        // Compare
+        int identical = 0;
+        long expectedMutations = 0;
+        long agreeingMutations = 0;
+        Map<String, int[]> missingAndExtraPerGene = new TreeMap<>();
+        List<String> examples = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : found.entrySet()) {
+            Set<String> expectedSet = expected.get(entry.getKey());
+            Set<String> foundSet = new HashSet<>(entry.getValue());
+            expectedMutations += expectedSet.size();
+            if (foundSet.equals(expectedSet)) {
+                identical++;
+                agreeingMutations += expectedSet.size();
+                continue;
+            }
+            Set<String> missing = new TreeSet<>(expectedSet);
+            missing.removeAll(foundSet);
+            Set<String> extra = new TreeSet<>(foundSet);
+            extra.removeAll(expectedSet);
+            agreeingMutations += expectedSet.size() - missing.size();
+            for (String mutation : missing) {
+                missingAndExtraPerGene.computeIfAbsent(gene(mutation), k -> new int[2])[0]++;
+            }
+            for (String mutation : extra) {
+                missingAndExtraPerGene.computeIfAbsent(gene(mutation), k -> new int[2])[1]++;
+            }
+            if (examples.size() < MAX_EXAMPLES) {
+                examples.add(entry.getKey() + ": missing " + missing + ", extra " + extra);
+            }
+        }
+        int compared = found.size();
+        System.out.println("Compared sequences: " + compared);
+        System.out.printf("  Identical amino acid mutations: %d (%.2f%%)%n", identical, 100.0 * identical / compared);
+        System.out.printf("  Mutations of Nextclade that were found: %.4f%%%n",
+                expectedMutations > 0 ? 100.0 * agreeingMutations / expectedMutations : 100.0);
+        if (!missingAndExtraPerGene.isEmpty()) {
+            System.out.println("Discrepancies per gene (missing / extra):");
+            for (Map.Entry<String, int[]> entry : missingAndExtraPerGene.entrySet()) {
+                System.out.printf("  %s: %d / %d%n", entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+            }
+            System.out.println("Examples:");
+            for (String example : examples) {
+                System.out.println("  " + example);
+            }
+        }
+    }
+
+
+    private static String gene(String aaMutation) {
+        int colon = aaMutation.indexOf(':');
+        return colon >= 0 ? aaMutation.substring(0, colon) : aaMutation;
+    }
+}
@@ -0,0 +1,163 @@
+package ch.ethz.harvester.playground;
+
+import ch.ethz.harvester.core.EmptyConfig;
+import ch.ethz.harvester.core.SubProgram;
+import ch.ethz.harvester.gisaid.DataPackageLineParser;
+import ch.ethz.harvester.gisaid.Reference;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.tukaani.xz.XZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+
+/**
+ * Compares the json-simple based parsing of the GISAID data package lines with the {@link DataPackageLineParser}.
+ *
+ * Usage: DataPackageLineParserBenchmark [path to provision.json.xz] [number of lines]
+ *
+ * If no data package is provided, a synthetic line of a realistic size (full-length sequence, long covsurver
+ * mutation lists) is used.
+ */
+public class DataPackageLineParserBenchmark extends SubProgram<EmptyConfig> {
+
+    public DataPackageLineParserBenchmark() {
+        super("DataPackageLineParserBenchmark", EmptyConfig.class);
+    }
+
+
+    @Override
+    public void run(String[] args, EmptyConfig config) throws Exception {
+        List<String> lines = new ArrayList<>();
+        if (args.length > 0) {
+            int numberLines = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new XZInputStream(
+                    new BufferedInputStream(new FileInputStream(args[0]))), StandardCharsets.UTF_8))) {
+                String line;
+                while (lines.size() < numberLines && (line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            }
+        } else {
+            lines.add(createSyntheticLine());
+        }
+        long totalChars = lines.stream().mapToLong(String::length).sum();
+        System.out.println("Lines: " + lines.size() + ", average length: " + totalChars / lines.size());
+
+        // Check that both parsers return the same values
+        DataPackageLineParser parser = new DataPackageLineParser();
+        for (String line : lines) {
+            JSONObject json = (JSONObject) new JSONParser().parse(line);
+            parser.parse(line);
+            for (DataPackageLineParser.Field field : DataPackageLineParser.Field.values()) {
+                Object expected = json.get(field.getKey());
+                String actual = parser.get(field);
+                if (!Objects.equals(expected != null ? expected.toString() : null, actual)) {
+                    throw new RuntimeException("Mismatch in field " + field.getKey() + ": " + expected + " vs. " + actual);
+                }
+            }
+        }
+
+        int iterations = Math.max(1, 20000 / lines.size());
+        for (int round = 0; round < 3; round++) {
+            long jsonSimpleNanos = measure(iterations, lines, line -> {
+                JSONObject json = (JSONObject) new JSONParser().parse(line);
+                return json.get("sequence") != null ? 1 : 0;
+            });
+            long streamingNanos = measure(iterations, lines, line -> {
+                parser.parse(line);
+                return parser.get(DataPackageLineParser.Field.SEQUENCE) != null ? 1 : 0;
+            });
+            long parsedLines = (long) iterations * lines.size();
+            System.out.println("Round " + round + ":");
+            System.out.println("  json-simple:           " + format(jsonSimpleNanos, parsedLines, totalChars * iterations));
+            System.out.println("  DataPackageLineParser: " + format(streamingNanos, parsedLines, totalChars * iterations));
+            System.out.println("  Speed-up: " + String.format("%.1f", (double) jsonSimpleNanos / streamingNanos));
+        }
+    }
+
+
+    private interface LineConsumer {
+        int accept(String line) throws Exception;
+    }
+
+
+    private long measure(int iterations, List<String> lines, LineConsumer consumer) throws Exception {
+        int blackhole = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (String line : lines) {
+                blackhole += consumer.accept(line);
+            }
+        }
+        long duration = System.nanoTime() - start;
+        if (blackhole < 0) {
+            System.out.println(blackhole);
+        }
+        return duration;
+    }
+
+
+    private String format(long nanos, long lines, long chars) {
+        double seconds = nanos / 1e9;
+        return String.format("%,.0f lines/s, %.1f MB/s", lines / seconds, chars / seconds / 1e6);
+    }
+
+
+    private String createSyntheticLine() {
+        Random random = new Random(42);
+        char[] bases = Reference.REFERENCE.toCharArray();
+        for (int i = 0; i < 300; i++) {
+            bases[random.nextInt(bases.length)] = 'N';
+        }
+        StringBuilder protMutations = new StringBuilder("(");
+        StringBuilder uniqueMutations = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            if (i > 0) {
+                protMutations.append(",");
+                uniqueMutations.append(",");
+            }
+            protMutations.append("NSP").append(random.nextInt(16)).append("_P").append(random.nextInt(1000)).append("L");
+            uniqueMutations.append("Spike_").append((char) ('A' + random.nextInt(26))).append(random.nextInt(1300))
+                    .append((char) ('A' + random.nextInt(26)));
+        }
+        protMutations.append(")");
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("covv_accession_id", "EPI_ISL_1234567");
+        json.put("covv_virus_name", "hCoV-19/Switzerland/BE-ETHZ-123456/2021");
+        json.put("covv_type", "betacoronavirus");
+        json.put("covv_collection_date", "2021-03-04");
+        json.put("covv_location", "Europe / Switzerland / Bern");
+        json.put("covv_host", "Human");
+        json.put("covv_patient_age", "unknown");
+        json.put("covv_gender", "unknown");
+        json.put("covv_lineage", "B.1.1.7");
+        json.put("covv_clade", "GRY");
+        json.put("covv_subm_date", "2021-03-15");
+        json.put("covv_sampling_strategy", "Baseline surveillance");
+        json.put("covv_variant", "VOC Alpha GRY (B.1.1.7+Q.*) first detected in the UK");
+        json.put("covv_add_host_info", "");
+        json.put("pangolin_lineages_version", "2021-06-01");
+        json.put("covsurver_prot_mutations", protMutations.toString());
+        json.put("covsurver_uniquemutlist", uniqueMutations.toString());
+        json.put("is_high_coverage", true);
+        json.put("is_complete", true);
+        json.put("is_reference", false);
+        json.put("sequence_length", bases.length);
+        json.put("gc_content", 0.379);
+        json.put("n_content", 0.01);
+        json.put("sequence", new String(bases));
+        return JSONValue.toJSONString(json);
+    }
+}
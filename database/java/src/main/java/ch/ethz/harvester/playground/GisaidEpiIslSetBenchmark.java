@@ -0,0 +1,112 @@
+package ch.ethz.harvester.playground;
+
+import ch.ethz.harvester.core.EmptyConfig;
+import ch.ethz.harvester.core.SubProgram;
+import ch.ethz.harvester.gisaid.GisaidEpiIslSet;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+
+/**
+ * Measures the heap usage and the speed of a HashSet<String> and a {@link GisaidEpiIslSet} with the same IDs.
+ *
+ * Usage: GisaidEpiIslSetBenchmark [number of IDs]
+ *
+ * The IDs are drawn from the range of the currently used GISAID EPI ISL (with gaps as in the real data package).
+ */
+public class GisaidEpiIslSetBenchmark extends SubProgram<EmptyConfig> {
+
+    public GisaidEpiIslSetBenchmark() {
+        super("GisaidEpiIslSetBenchmark", EmptyConfig.class);
+    }
+
+
+    @Override
+    public void run(String[] args, EmptyConfig config) {
+        int numberIds = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        String[] ids = createIds(numberIds);
+        long baseline = usedHeap();
+
+        long start = System.nanoTime();
+        Set<String> hashSet = new HashSet<>();
+        for (String id : ids) {
+            // The IDs are copied as they would be when read from the database.
+            hashSet.add(new String(id.toCharArray()));
+        }
+        long hashSetNanos = System.nanoTime() - start;
+        long hashSetBytes = usedHeap() - baseline;
+        int found = 0;
+        start = System.nanoTime();
+        for (String id : ids) {
+            found += hashSet.contains(id) ? 1 : 0;
+        }
+        long hashSetContainsNanos = System.nanoTime() - start;
+        hashSet = null;
+        baseline = usedHeap();
+
+        start = System.nanoTime();
+        GisaidEpiIslSet epiIslSet = new GisaidEpiIslSet();
+        for (String id : ids) {
+            epiIslSet.add(id);
+        }
+        long epiIslSetNanos = System.nanoTime() - start;
+        long epiIslSetBytes = usedHeap() - baseline;
+        start = System.nanoTime();
+        for (String id : ids) {
+            found -= epiIslSet.contains(id) ? 1 : 0;
+        }
+        long epiIslSetContainsNanos = System.nanoTime() - start;
+        if (found != 0 || epiIslSet.size() != numberIds) {
+            throw new RuntimeException("The sets do not contain the same IDs.");
+        }
+
+        // Check the set difference against a set with every other ID and a few malformed IDs
+        GisaidEpiIslSet other = new GisaidEpiIslSet();
+        for (int i = 0; i < numberIds; i += 2) {
+            other.add(ids[i]);
+        }
+        epiIslSet.add("EPI_ISL_0042");
+        epiIslSet.add("unknown");
+        other.add("unknown");
+        GisaidEpiIslSet difference = epiIslSet.difference(other);
+        int differenceSize = 0;
+        for (String id : difference) {
+            if (other.contains(id) || !epiIslSet.contains(id)) {
+                throw new RuntimeException("Wrong set difference: " + id);
+            }
+            differenceSize++;
+        }
+        if (differenceSize != numberIds / 2 + 1 || difference.size() != differenceSize) {
+            throw new RuntimeException("Wrong size of the set difference: " + differenceSize);
+        }
+
+        System.out.println("IDs: " + numberIds);
+        System.out.println("  HashSet<String>: " + hashSetBytes / 1024 / 1024 + " MB, add: "
+                + hashSetNanos / 1000000 + " ms, contains: " + hashSetContainsNanos / 1000000 + " ms");
+        System.out.println("  GisaidEpiIslSet: " + epiIslSetBytes / 1024 / 1024 + " MB, add: "
+                + epiIslSetNanos / 1000000 + " ms, contains: " + epiIslSetContainsNanos / 1000000 + " ms");
+    }
+
+
+    private static String[] createIds(int numberIds) {
+        Random random = new Random(0);
+        String[] ids = new String[numberIds];
+        long n = 402124;
+        for (int i = 0; i < numberIds; i++) {
+            n += 1 + random.nextInt(3);
+            ids[i] = "EPI_ISL_" + n;
+        }
+        return ids;
+    }
+
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
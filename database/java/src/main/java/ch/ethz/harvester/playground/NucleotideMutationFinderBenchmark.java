@@ -0,0 +1,244 @@
+package ch.ethz.harvester.playground;
+
+import ch.ethz.harvester.core.EmptyConfig;
+import ch.ethz.harvester.core.SubProgram;
+import ch.ethz.harvester.general.NucleotideMutationFinder;
+import ch.ethz.harvester.gisaid.Reference;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+
+/**
+ * Compares the previous implementation of {@link NucleotideMutationFinder#getMutations(String)} (upper-case copy to a
+ * char[], Set<Integer> of mask sites, a Mutation object per difference) with the current String adapter, the
+ * base-by-base byte[] engine ({@link NucleotideMutationFinder#findMutationsScalar}) and the byte[] engine that compares
+ * eight bases at a time, once with unwrapped sequences and once with the sequences as they are in a FASTA file with 60
+ * bases per line. It checks that all variants find the same mutations and reports the time and the allocated bytes per
+ * sequence.
+ *
+ * Usage: NucleotideMutationFinderBenchmark [number of sequences] [rounds]
+ *
+ * The sequences are simulated from the reference with around 50 substitutions, a few deletions, runs of N and leading
+ * and trailing deletions; 200 random sites are masked.
+ */
+public class NucleotideMutationFinderBenchmark extends SubProgram<EmptyConfig> {
+
+    private interface Variant {
+        long run();
+    }
+
+
+    public NucleotideMutationFinderBenchmark() {
+        super("NucleotideMutationFinderBenchmark", EmptyConfig.class);
+    }
+
+
+    @Override
+    public void run(String[] args, EmptyConfig config) {
+        int numberSequences = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Random random = new Random(0);
+        String reference = Reference.REFERENCE;
+        Set<Integer> maskSites = new HashSet<>();
+        while (maskSites.size() < 200) {
+            maskSites.add(1 + random.nextInt(reference.length()));
+        }
+        NucleotideMutationFinder finder = new NucleotideMutationFinder(reference, maskSites);
+        char[] referenceChars = reference.toUpperCase().toCharArray();
+
+        String[] sequences = new String[numberSequences];
+        byte[][] sequenceBytes = new byte[numberSequences][];
+        byte[] fasta;
+        int[] fastaStarts = new int[numberSequences];
+        int[] fastaEnds = new int[numberSequences];
+        StringBuilder fastaBuilder = new StringBuilder();
+        for (int i = 0; i < numberSequences; i++) {
+            sequences[i] = simulate(reference, random);
+            sequenceBytes[i] = sequences[i].getBytes(StandardCharsets.US_ASCII);
+            fastaBuilder.append(">seq").append(i).append('\n');
+            fastaStarts[i] = fastaBuilder.length();
+            for (int j = 0; j < sequences[i].length(); j += 60) {
+                fastaBuilder.append(sequences[i], j, Math.min(j + 60, sequences[i].length())).append('\n');
+            }
+            fastaEnds[i] = fastaBuilder.length();
+        }
+        fasta = fastaBuilder.toString().getBytes(StandardCharsets.US_ASCII);
+
+        // Check that all variants find the same mutations
+        NucleotideMutationFinder.MutationBuffer buffer = new NucleotideMutationFinder.MutationBuffer();
+        long totalMutations = 0;
+        for (int i = 0; i < numberSequences; i++) {
+            String expected = format(legacyGetMutations(referenceChars, maskSites, sequences[i]));
+            String adapter = format(finder.getMutations(sequences[i]));
+            buffer.clear();
+            finder.findMutations(sequenceBytes[i], 0, sequenceBytes[i].length, buffer);
+            String engine = format(buffer.toMutations());
+            buffer.clear();
+            finder.findMutationsScalar(sequenceBytes[i], 0, sequenceBytes[i].length, buffer);
+            String scalarEngine = format(buffer.toMutations());
+            buffer.clear();
+            finder.findMutationsScalar(fasta, fastaStarts[i], fastaEnds[i], buffer);
+            String scalarFastaEngine = format(buffer.toMutations());
+            buffer.clear();
+            finder.findMutations(fasta, fastaStarts[i], fastaEnds[i], buffer);
+            String fastaEngine = format(buffer.toMutations());
+            if (!expected.equals(adapter) || !expected.equals(engine) || !expected.equals(fastaEngine)
+                    || !expected.equals(scalarEngine) || !expected.equals(scalarFastaEngine)) {
+                throw new RuntimeException("The variants found different mutations for sequence " + i);
+            }
+            totalMutations += buffer.size();
+        }
+        System.out.println(numberSequences + " sequences, " + totalMutations + " mutations, " + rounds + " rounds");
+
+        Map<String, Variant> variants = new LinkedHashMap<>();
+        variants.put("previous implementation", () -> {
+            long n = 0;
+            for (String sequence : sequences) {
+                n += legacyGetMutations(referenceChars, maskSites, sequence).size();
+            }
+            return n;
+        });
+        variants.put("String adapter", () -> {
+            long n = 0;
+            for (String sequence : sequences) {
+                n += finder.getMutations(sequence).size();
+            }
+            return n;
+        });
+        variants.put("byte[] scalar engine", () -> {
+            long n = 0;
+            for (byte[] sequence : sequenceBytes) {
+                buffer.clear();
+                n += finder.findMutationsScalar(sequence, 0, sequence.length, buffer);
+            }
+            return n;
+        });
+        variants.put("byte[] scalar on FASTA", () -> {
+            long n = 0;
+            for (int i = 0; i < numberSequences; i++) {
+                buffer.clear();
+                n += finder.findMutationsScalar(fasta, fastaStarts[i], fastaEnds[i], buffer);
+            }
+            return n;
+        });
+        variants.put("byte[] engine", () -> {
+            long n = 0;
+            for (byte[] sequence : sequenceBytes) {
+                buffer.clear();
+                n += finder.findMutations(sequence, 0, sequence.length, buffer);
+            }
+            return n;
+        });
+        variants.put("byte[] engine on FASTA", () -> {
+            long n = 0;
+            for (int i = 0; i < numberSequences; i++) {
+                buffer.clear();
+                n += finder.findMutations(fasta, fastaStarts[i], fastaEnds[i], buffer);
+            }
+            return n;
+        });
+
+        for (Map.Entry<String, Variant> variant : variants.entrySet()) {
+            // Warm-up
+            for (int i = 0; i < 3; i++) {
+                variant.getValue().run();
+            }
+            long bestNanos = Long.MAX_VALUE;
+            long allocatedBefore = allocatedBytes();
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                if (variant.getValue().run() != totalMutations) {
+                    throw new RuntimeException("Unexpected number of mutations");
+                }
+                bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            }
+            long allocated = allocatedBytes() - allocatedBefore;
+            System.out.println(String.format("  %-25s %8.1f us/sequence, %9d bytes allocated/sequence",
+                    variant.getKey(), bestNanos / 1000.0 / numberSequences,
+                    allocated < 0 ? -1 : allocated / rounds / numberSequences));
+        }
+    }
+
+
+    /**
+     * The implementation before the byte[] engine
+     */
+    private static List<NucleotideMutationFinder.Mutation> legacyGetMutations(
+            char[] reference,
+            Set<Integer> maskSites,
+            String seq
+    ) {
+        char[] sequence = seq.toUpperCase().toCharArray();
+        for (int i = 0; i < sequence.length; i++) {
+            if (sequence[i] != '-') {
+                break;
+            }
+            sequence[i] = 'N';
+        }
+        for (int i = sequence.length - 1; i >= 0; i--) {
+            if (sequence[i] != '-') {
+                break;
+            }
+            sequence[i] = 'N';
+        }
+        List<NucleotideMutationFinder.Mutation> mutations = new ArrayList<>();
+        for (int i = 0; i < reference.length; i++) {
+            int pos = i + 1;
+            char refBase = reference[i];
+            char seqBase = sequence[i];
+            if (maskSites.contains(pos)) {
+                continue;
+            }
+            if (seqBase != 'C' && seqBase != 'T' && seqBase != 'A' && seqBase != 'G' && seqBase != '-') {
+                continue;
+            }
+            if (seqBase != refBase) {
+                mutations.add(new NucleotideMutationFinder.Mutation(pos, seqBase));
+            }
+        }
+        return mutations;
+    }
+
+
+    private static String simulate(String reference, Random random) {
+        char[] sequence = reference.toLowerCase().toCharArray();
+        char[] bases = {'a', 'c', 'g', 't'};
+        for (int i = 0; i < 50; i++) {
+            sequence[random.nextInt(sequence.length)] = bases[random.nextInt(4)];
+        }
+        for (int i = 0; i < 3; i++) {
+            int start = random.nextInt(sequence.length - 30);
+            Arrays.fill(sequence, start, start + 3 + random.nextInt(27), '-');
+        }
+        for (int i = 0; i < 5; i++) {
+            int start = random.nextInt(sequence.length - 300);
+            Arrays.fill(sequence, start, start + random.nextInt(300), 'n');
+        }
+        Arrays.fill(sequence, 0, random.nextInt(60), '-');
+        Arrays.fill(sequence, sequence.length - random.nextInt(60), sequence.length, '-');
+        return new String(sequence);
+    }
+
+
+    private static String format(List<NucleotideMutationFinder.Mutation> mutations) {
+        StringBuilder sb = new StringBuilder();
+        for (NucleotideMutationFinder.Mutation mutation : mutations) {
+            sb.append(mutation.getPosition()).append(mutation.getMutation()).append(',');
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * @return The bytes that the current thread has allocated so far or -1 if the JVM does not provide it
+     */
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,236 @@
+package ch.ethz.harvester.playground;
+
+import ch.ethz.harvester.core.EmptyConfig;
+import ch.ethz.harvester.core.SubProgram;
+import ch.ethz.harvester.general.NucleotideMutationFinder;
+import ch.ethz.harvester.gisaid.Reference;
+import ch.ethz.harvester.gisaid.ReferenceAligner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+
+/**
+ * Compares the output of {@link ReferenceAligner} with an expected alignment and measures its throughput.
+ *
+ * Usage:
+ *   ReferenceAlignerValidation [number of sequences]
+ *   ReferenceAlignerValidation --fasta <file> [--mafft]
+ *
+ * Without a fasta file, sequences are simulated from the reference (substitutions, insertions, deletions, N runs and
+ * truncated ends) and the simulated alignment is expected. With a fasta file and --mafft, the expected alignment is
+ * computed with the same mafft command as in BatchProcessingWorker; without --mafft, only the throughput is measured.
+ *
+ * Deletions and insertions in repetitive regions (or next to N runs) can be placed at different but equivalent
+ * positions. Two alignments are counted as equivalent if they keep the same bases of the sequence in the same order and
+ * have the same number of substitutions.
+ */
+public class ReferenceAlignerValidation extends SubProgram<EmptyConfig> {
+
+    public ReferenceAlignerValidation() {
+        super("ReferenceAlignerValidation", EmptyConfig.class);
+    }
+
+
+    @Override
+    public void run(String[] args, EmptyConfig config) throws Exception {
+        LinkedHashMap<String, String> sequences;
+        Map<String, String> expected = null;
+        if (args.length > 0 && args[0].equals("--fasta")) {
+            sequences = readFasta(Files.readAllLines(Path.of(args[1])));
+            if (args.length > 2 && args[2].equals("--mafft")) {
+                long start = System.nanoTime();
+                expected = runMafft(Path.of(args[1]));
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("mafft: %d sequences in %.1f s (%.1f sequences/s)%n", sequences.size(), seconds,
+                        sequences.size() / seconds);
+            }
+        } else {
+            int numberSequences = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+            sequences = new LinkedHashMap<>();
+            expected = new HashMap<>();
+            Random random = new Random(0);
+            for (int i = 0; i < numberSequences; i++) {
+                String[] simulated = simulate(random);
+                sequences.put("seq" + i, simulated[0]);
+                expected.put("seq" + i, simulated[1]);
+            }
+        }
+
+        // Warm-up, then measure
+        ReferenceAligner aligner = new ReferenceAligner();
+        int warmUp = Math.min(200, sequences.size());
+        Iterator<String> warmUpIterator = sequences.values().iterator();
+        for (int i = 0; i < warmUp; i++) {
+            aligner.align(warmUpIterator.next());
+        }
+        Map<String, String> aligned = new HashMap<>();
+        long start = System.nanoTime();
+        for (Map.Entry<String, String> entry : sequences.entrySet()) {
+            aligned.put(entry.getKey(), aligner.align(entry.getValue()));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("ReferenceAligner: %d sequences in %.2f s (%.1f sequences/s, single thread)%n",
+                sequences.size(), seconds, sequences.size() / seconds);
+        if (expected == null) {
+            return;
+        }
+
+        NucleotideMutationFinder mutationFinder = new NucleotideMutationFinder(Reference.REFERENCE, Set.of());
+        int compared = 0;
+        int failed = 0;
+        int identical = 0;
+        int equivalent = 0;
+        int sameMutations = 0;
+        long positions = 0;
+        long agreeingPositions = 0;
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            String expectedSeq = entry.getValue().toLowerCase();
+            String alignedSeq = aligned.get(entry.getKey());
+            compared++;
+            if (alignedSeq == null) {
+                failed++;
+                continue;
+            }
+            if (alignedSeq.equals(expectedSeq)) {
+                identical++;
+                equivalent++;
+            } else if (alignedSeq.replace("-", "").equals(expectedSeq.replace("-", ""))
+                    && countSubstitutions(alignedSeq) == countSubstitutions(expectedSeq)) {
+                equivalent++;
+            }
+            for (int i = 0; i < expectedSeq.length(); i++) {
+                positions++;
+                if (expectedSeq.charAt(i) == alignedSeq.charAt(i)) {
+                    agreeingPositions++;
+                }
+            }
+            if (formatMutations(mutationFinder.getMutations(alignedSeq))
+                    .equals(formatMutations(mutationFinder.getMutations(expectedSeq)))) {
+                sameMutations++;
+            }
+        }
+        System.out.println("Compared sequences: " + compared);
+        System.out.printf("  Not aligned: %d%n", failed);
+        System.out.printf("  Identical alignment: %d (%.2f%%)%n", identical, 100.0 * identical / compared);
+        System.out.printf("  Equivalent alignment: %d (%.2f%%)%n", equivalent, 100.0 * equivalent / compared);
+        System.out.printf("  Identical nucleotide mutations: %d (%.2f%%)%n", sameMutations,
+                100.0 * sameMutations / compared);
+        System.out.printf("  Agreeing positions: %.4f%%%n", 100.0 * agreeingPositions / positions);
+    }
+
+
+    /**
+     * @return The simulated sequence and its alignment with the reference
+     */
+    private static String[] simulate(Random random) {
+        String bases = "ACGT";
+        String reference = Reference.REFERENCE.toUpperCase();
+        char[] alignment = new char[reference.length()];
+        Arrays.fill(alignment, '-');
+        StringBuilder sequence = new StringBuilder();
+        int start = random.nextInt(60);
+        int end = reference.length() - random.nextInt(120);
+        int nRunRemaining = 0;
+        int i = start;
+        while (i < end) {
+            double event = random.nextDouble();
+            // Indels are not placed in N runs: their position could not be determined there.
+            boolean indelPossible = i > start + 100 && i < end - 100 && nRunRemaining == 0;
+            if (indelPossible && event < 0.0002) {
+                // Deletion (sometimes a long one)
+                i += random.nextInt(10) == 0 ? 100 + random.nextInt(300) : 1 + random.nextInt(30);
+                continue;
+            }
+            if (indelPossible && event < 0.0003) {
+                int length = 1 + random.nextInt(12);
+                for (int j = 0; j < length; j++) {
+                    sequence.append(bases.charAt(random.nextInt(4)));
+                }
+            }
+            if (nRunRemaining == 0 && event > 0.9997) {
+                nRunRemaining = 50 + random.nextInt(450);
+            }
+            char c;
+            if (nRunRemaining > 0) {
+                c = 'N';
+                nRunRemaining--;
+            } else if (random.nextDouble() < 0.001) {
+                c = bases.charAt(random.nextInt(4));
+            } else {
+                c = reference.charAt(i);
+            }
+            sequence.append(c);
+            alignment[i] = Character.toLowerCase(c);
+            i++;
+        }
+        return new String[]{sequence.toString(), new String(alignment)};
+    }
+
+
+    private static Map<String, String> runMafft(Path fasta) throws IOException, InterruptedException {
+        Path referenceFasta = Files.createTempFile("reference", ".fasta");
+        Files.writeString(referenceFasta, ">REFERENCE\n" + Reference.REFERENCE + "\n");
+        Process process = new ProcessBuilder("mafft", "--addfragments", fasta.toAbsolutePath().toString(),
+                "--keeplength", "--auto", "--thread", "1", referenceFasta.toAbsolutePath().toString())
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        List<String> lines;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            lines = reader.lines().collect(Collectors.toList());
+        }
+        if (process.waitFor() != 0) {
+            throw new RuntimeException("mafft exited with code " + process.exitValue());
+        }
+        Files.delete(referenceFasta);
+        Map<String, String> aligned = readFasta(lines);
+        aligned.remove("REFERENCE");
+        return aligned;
+    }
+
+
+    private static LinkedHashMap<String, String> readFasta(List<String> lines) {
+        LinkedHashMap<String, String> sequences = new LinkedHashMap<>();
+        String name = null;
+        StringBuilder seq = new StringBuilder();
+        for (String line : lines) {
+            if (line.startsWith(">")) {
+                if (name != null) {
+                    sequences.put(name, seq.toString());
+                }
+                name = line.substring(1).trim();
+                seq.setLength(0);
+            } else {
+                seq.append(line.trim());
+            }
+        }
+        if (name != null) {
+            sequences.put(name, seq.toString());
+        }
+        return sequences;
+    }
+
+
+    private static int countSubstitutions(String alignedSeq) {
+        int substitutions = 0;
+        for (int i = 0; i < alignedSeq.length(); i++) {
+            char c = Character.toUpperCase(alignedSeq.charAt(i));
+            if ("ACGT".indexOf(c) >= 0 && c != Character.toUpperCase(Reference.REFERENCE.charAt(i))) {
+                substitutions++;
+            }
+        }
+        return substitutions;
+    }
+
+
+    private static String formatMutations(List<NucleotideMutationFinder.Mutation> mutations) {
+        return mutations.stream()
+                .map(m -> m.getPosition() + "" + m.getMutation())
+                .collect(Collectors.joining(","));
+    }
+}
@@ -0,0 +1,123 @@
+package ch.ethz.harvester.playground;
+
+import ch.ethz.harvester.core.EmptyConfig;
+import ch.ethz.harvester.core.ParallelXZInputStream;
+import ch.ethz.harvester.core.SubProgram;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+
+
+/**
+ * Compares the single-threaded decompression of a .xz file with the {@link ParallelXZInputStream}.
+ *
+ * Usage:
+ *   XZDecompressionBenchmark <file.xz> [number threads]
+ *   XZDecompressionBenchmark --generate <file.xz> <size in MB>
+ *
+ * The second form writes a file with synthetic data package lines that consists of multiple xz blocks (similar to a
+ * file compressed with "xz -T0").
+ */
+public class XZDecompressionBenchmark extends SubProgram<EmptyConfig> {
+
+    private static class Consumed {
+        private final String checksum;
+        private final long bytes;
+
+        private Consumed(String checksum, long bytes) {
+            this.checksum = checksum;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final long BLOCK_SIZE = 24L * 1024 * 1024;
+
+
+    public XZDecompressionBenchmark() {
+        super("XZDecompressionBenchmark", EmptyConfig.class);
+    }
+
+
+    @Override
+    public void run(String[] args, EmptyConfig config) throws Exception {
+        if (args.length >= 3 && args[0].equals("--generate")) {
+            generate(Path.of(args[1]), Long.parseLong(args[2]) * 1024 * 1024);
+            return;
+        }
+        Path file = Path.of(args[0]);
+        int numberThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            Consumed single = consume(new XZInputStream(new BufferedInputStream(new FileInputStream(file.toFile()))));
+            long singleNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Consumed parallel = consume(ParallelXZInputStream.open(file, numberThreads));
+            long parallelNanos = System.nanoTime() - start;
+
+            if (!single.checksum.equals(parallel.checksum) || single.bytes != parallel.bytes) {
+                throw new RuntimeException("The decompressed data differ.");
+            }
+            System.out.println("Round " + round + " (" + single.bytes / 1024 / 1024 + " MB decompressed):");
+            System.out.println("  XZInputStream:         " + formatTime(singleNanos, single.bytes));
+            System.out.println("  ParallelXZInputStream: " + formatTime(parallelNanos, parallel.bytes) + " ("
+                    + numberThreads + " threads, " + Runtime.getRuntime().availableProcessors() + " cores)");
+        }
+    }
+
+
+    private static Consumed consume(InputStream in) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        long bytes = 0;
+        try (in) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, n);
+                bytes += n;
+            }
+        }
+        return new Consumed(new BigInteger(1, digest.digest()).toString(16), bytes);
+    }
+
+
+    private static String formatTime(long nanos, long bytes) {
+        return String.format("%,d ms, %.1f MB/s", nanos / 1000000, bytes / 1024.0 / 1024 / (nanos / 1e9));
+    }
+
+
+    private static void generate(Path file, long size) throws IOException {
+        Random random = new Random(0);
+        char[] nucleotides = {'A', 'C', 'G', 'T'};
+        LZMA2Options options = new LZMA2Options(1);
+        long written = 0;
+        long writtenInBlock = 0;
+        int id = 0;
+        try (XZOutputStream out = new XZOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile())),
+                options)) {
+            while (written < size) {
+                StringBuilder sequence = new StringBuilder(30000);
+                for (int i = 0; i < 30000; i++) {
+                    sequence.append(nucleotides[random.nextInt(4)]);
+                }
+                byte[] line = ("{\"covv_accession_id\": \"EPI_ISL_" + id++ + "\", \"sequence\": \"" + sequence
+                        + "\"}\n").getBytes(StandardCharsets.UTF_8);
+                out.write(line);
+                written += line.length;
+                writtenInBlock += line.length;
+                if (writtenInBlock >= BLOCK_SIZE) {
+                    out.endBlock();
+                    writtenInBlock = 0;
+                }
+            }
+        }
+    }
+}
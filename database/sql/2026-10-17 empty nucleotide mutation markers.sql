@@ -0,0 +1,23 @@
+-- Records the sequences that the NucleotideMutationImporter processed but that have no row in the mutation table (no
+-- mutations, or not analyzable). Without these tables, such sequences are fetched and analyzed again in every run.
+--
+-- The existing sequences without mutations are not added here: the next run of the NucleotideMutationImporter
+-- analyzes them once more and records them.
+
+begin;
+
+create table consensus_sequence_mutation_nucleotide_empty
+(
+  sample_name text primary key
+    references consensus_sequence on update cascade on delete cascade,
+  analyzable boolean not null
+);
+
+create table gisaid_api_sequence_mutation_nucleotide_empty
+(
+  gisaid_epi_isl text primary key
+    references gisaid_api_sequence (gisaid_epi_isl) on update cascade on delete cascade,
+  analyzable boolean not null
+);
+
+commit;
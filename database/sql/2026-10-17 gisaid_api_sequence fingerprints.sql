@@ -0,0 +1,11 @@
+-- Adds the fingerprints that are used by the GisaidApiImporter (UPDATE mode) to detect changed entries.
+-- seq_original_hash is equal to md5(seq_original) and can be filled directly. metadata_hash is computed by the
+-- importer: entries without a metadata_hash receive it with a (cheap) metadata update during the next run.
+
+alter table gisaid_api_sequence
+  add column metadata_hash text,
+  add column seq_original_hash text;
+
+update gisaid_api_sequence
+set seq_original_hash = md5(seq_original)
+where seq_original is not null;
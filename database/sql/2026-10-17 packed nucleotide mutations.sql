@@ -0,0 +1,65 @@
+-- Switches the nucleotide mutations of gisaid_api_sequence to the packed storage: instead of one row per mutation
+-- (plus three indexes), every sequence has one row with an int[] of (position << 3) | base code, with A = 1, C = 2,
+-- G = 3, T = 4 and - = 5 (see PackedNucleotideMutations). A sequence without mutations has an empty array, so it is
+-- not analyzed again by the NucleotideMutationImporter.
+--
+-- gisaid_api_sequence_mutation_nucleotide becomes a view with the old columns, so that the existing queries continue
+-- to work. Filters on the position cannot use an index through the view. For lookups of a mutation, the GIN index of
+-- the packed table can be used directly, e.g., for C241T (241 << 3 | 4 = 1932):
+--
+--   select gisaid_epi_isl
+--   from gisaid_api_sequence_mutation_nucleotide_packed
+--   where mutations @> array[1932];
+--
+-- Materialized views that read gisaid_api_sequence_mutation_nucleotide keep reading the renamed backup table until
+-- they are re-created (see sql/spectrum/sequences_gisaid_api_based.sql).
+--
+-- After the migration, the GisaidApiImporter and the NucleotideMutationImporter must be configured with
+-- "nucleotide_mutation_storage: packed".
+
+begin;
+
+create table if not exists gisaid_api_sequence_mutation_nucleotide_packed
+(
+  gisaid_epi_isl text primary key
+    references gisaid_api_sequence (gisaid_epi_isl) on update cascade on delete cascade,
+  mutations int[] not null
+);
+
+insert into gisaid_api_sequence_mutation_nucleotide_packed (gisaid_epi_isl, mutations)
+select
+  m.gisaid_epi_isl,
+  array_agg((m.position << 3) | strpos('ACGT-', m.mutation) order by m.position)
+from gisaid_api_sequence_mutation_nucleotide m
+group by m.gisaid_epi_isl;
+
+-- The analyzed sequences without mutations had no rows in the old table; they get an empty array.
+insert into gisaid_api_sequence_mutation_nucleotide_packed (gisaid_epi_isl, mutations)
+select gs.gisaid_epi_isl, '{}'
+from gisaid_api_sequence gs
+where
+  gs.seq_aligned is not null
+  and gs.pangolin_lineage <> 'None'
+  and not exists(
+    select
+    from gisaid_api_sequence_mutation_nucleotide_packed p
+    where gs.gisaid_epi_isl = p.gisaid_epi_isl
+  );
+
+create index on gisaid_api_sequence_mutation_nucleotide_packed using gin (mutations);
+
+alter table gisaid_api_sequence_mutation_nucleotide rename to backup_261017_gisaid_api_sequence_mutation_nucleotide;
+
+create view gisaid_api_sequence_mutation_nucleotide as
+select
+  p.gisaid_epi_isl,
+  m >> 3 as position,
+  substr('ACGT-', m & 7, 1) as mutation
+from
+  gisaid_api_sequence_mutation_nucleotide_packed p,
+  unnest(p.mutations) m;
+
+commit;
+
+-- When everything works:
+-- drop table backup_261017_gisaid_api_sequence_mutation_nucleotide;